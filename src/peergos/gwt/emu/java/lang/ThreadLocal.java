@@ -0,0 +1,44 @@
+package java.lang;
+
+import java.util.function.*;
+
+/**
+ * Emulation of ThreadLocal. There is only one thread in javascript, so this is just a lazily initialised value.
+ */
+public class ThreadLocal<T> {
+    private boolean initialised = false;
+    private T value;
+
+    public ThreadLocal() {}
+
+    protected T initialValue() {
+        return null;
+    }
+
+    public static <S> ThreadLocal<S> withInitial(Supplier<? extends S> supplier) {
+        return new ThreadLocal<S>() {
+            @Override
+            protected S initialValue() {
+                return supplier.get();
+            }
+        };
+    }
+
+    public T get() {
+        if (! initialised) {
+            value = initialValue();
+            initialised = true;
+        }
+        return value;
+    }
+
+    public void set(T value) {
+        this.value = value;
+        initialised = true;
+    }
+
+    public void remove() {
+        value = null;
+        initialised = false;
+    }
+}
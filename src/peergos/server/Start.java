@@ -1,5 +1,6 @@
 package peergos.server;
 
+import peergos.server.net.*;
 import peergos.server.corenode.*;
 import peergos.server.mutable.*;
 import peergos.shared.*;
@@ -36,7 +37,9 @@ public class Start
                     new Command.Arg("corenodePath", "Path to a local corenode sql file (created if it doesn't exist)", false, ":memory:"),
                     new Command.Arg("keyfile", "Path to keyfile", false),
                     new Command.Arg("passphrase", "Passphrase for keyfile", false),
-                    new Command.Arg("corenodePort", "Service port", true, "" + HttpCoreNodeServer.PORT)
+                    new Command.Arg("corenodePort", "Service port", true, "" + HttpCoreNodeServer.PORT),
+                    new Command.Arg("blockstorePath", "Directory for an on disk block store, used instead of the RAM store when not using IPFS", false),
+                    new Command.Arg("ramStorageBytes", "Once the RAM store holds this many bytes, unpinned blocks are evicted", false)
             ).collect(Collectors.toList())
     );
 
@@ -48,6 +51,10 @@ public class Start
                     new Command.Arg("corenodeURL", "Core node address", false, "http://localhost:" + HttpCoreNodeServer.PORT),
                     new Command.Arg("domain", "Domain name to bind to,", false, "localhost"),
                     new Command.Arg("useIPFS", "Use IPFS for storage or ephemeral RAM store", false, "true"),
+                    new Command.Arg("blockstorePath", "Directory for an on disk block store, used instead of the RAM store when not using IPFS", false),
+                    new Command.Arg("ramStorageBytes", "Once the RAM store holds this many bytes, unpinned blocks are evicted", false),
+                    new Command.Arg("scrubBytesPerSecond", "Re-hash pinned blocks in the background at up to this rate, rebuilding lost fragments", false),
+                    new Command.Arg("scrubCheckpoint", "Path to the file recording the scrubber's progress", false, "scrub-checkpoint.txt"),
                     new Command.Arg("webroot", "the path to the directory to serve as the web root", false),
                     new Command.Arg("publicserver", "listen on all network interfaces, not just localhost", false)
             ).collect(Collectors.toList())
@@ -102,15 +109,20 @@ public class Start
             InetSocketAddress userAPIAddress = new InetSocketAddress(domain, webPort);
 
             boolean useIPFS = a.getBoolean("useIPFS");
-            int dhtCacheEntries = 1000;
+            long dhtCacheBytes = 50 * 1024 * 1024;
             int maxValueSizeToCache = 50 * 1024;
-            ContentAddressedStorage dht = useIPFS ? new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) : RAMStorage.getSingleton();
+            ContentAddressedStorage storage = useIPFS ? new IpfsDHT() : buildLocalStorage(a);
+            ContentAddressedStorage dht = useIPFS ? new CachingStorage(storage, dhtCacheBytes, maxValueSizeToCache) : storage;
+            if (a.hasArg("scrubBytesPerSecond"))
+                // scrub the underlying store, not the cache in front of it
+                new Scrubber(storage, (PinnedRoots) storage, a.getLong("scrubBytesPerSecond"),
+                        Optional.of(Paths.get(a.getArg("scrubCheckpoint")))).start();
 
             // start the User Service
             String hostname = a.getArg("domain");
 
-            CoreNode core = HTTPCoreNode.getInstance(coreAddress);
-            MutablePointers mutable = HttpMutablePointers.getInstance(coreAddress);
+            CoreNode core = new HTTPCoreNode(new PooledJavaPoster(coreAddress));
+            MutablePointers mutable = new HttpMutablePointers(new PooledJavaPoster(coreAddress));
             String blacklistPath = "blacklist.txt";
             PublicKeyBlackList blacklist = new UserBasedBlacklist(Paths.get(blacklistPath), core, mutable, dht);
             MutablePointers pinner = new BlockingMutablePointers(new PinningMutablePointers(mutable, dht), blacklist);
@@ -162,19 +174,28 @@ public class Start
         int maxUserCount = a.getInt("maxUserCount", CoreNode.MAX_USERNAME_COUNT);
         System.out.println("Using core node path " + path);
         boolean useIPFS = a.getBoolean("useIPFS");
-        int dhtCacheEntries = 1000;
+        long dhtCacheBytes = 100 * 1024 * 1024;
         int maxValueSizeToCache = 2 * 1024 * 1024;
-        ContentAddressedStorage dht = useIPFS ?
-                new CachingStorage(new IpfsDHT(), dhtCacheEntries, maxValueSizeToCache) :
-                RAMStorage.getSingleton();
         try {
+            ContentAddressedStorage dht = useIPFS ?
+                    new CachingStorage(new IpfsDHT(), dhtCacheBytes, maxValueSizeToCache) :
+                    buildLocalStorage(a);
             UserRepository userRepository = UserRepository.buildSqlLite(path, dht, maxUserCount);
             HttpCoreNodeServer.createAndStart(keyfile, passphrase, corenodePort, userRepository, userRepository, a);
-        } catch (SQLException e) {
+        } catch (SQLException | IOException e) {
             throw new RuntimeException(e);
         }
     }
 
+    private static ContentAddressedStorage buildLocalStorage(Args a) throws IOException {
+        if (a.hasArg("blockstorePath"))
+            return SegmentedFileStorage.open(Paths.get(a.getArg("blockstorePath")));
+        RAMStorage ram = RAMStorage.getSingleton();
+        if (a.hasArg("ramStorageBytes"))
+            ram.setByteBudget(a.getLong("ramStorageBytes"));
+        return ram;
+    }
+
     public static final Command MAIN = new Command("Main",
             "Run a Peergos server and/or a corenode server",
             args -> {
@@ -6,24 +6,33 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.api.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.io.ipfs.cid.*;
-import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.storage.*;
 import com.sun.net.httpserver.*;
+import peergos.server.storage.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.nio.channels.*;
 import java.util.*;
+import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
 public class DHTHandler implements HttpHandler
 {
     private static final boolean LOGGING = true;
+    private static final long MAX_PUT_BYTES = 32 * 1024 * 1024;
+    private static final long PUT_BATCH_BYTES = 1024 * 1024;
+    // room for the largest cids we accept, and their cbor framing
+    private static final int MAX_GET_MANY_REQUEST_BYTES = ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY * 128;
     private final ContentAddressedStorage dht;
+    private final Optional<FileRegionStorage> regions;
     private final String apiPrefix;
 
     public DHTHandler(ContentAddressedStorage dht, String apiPrefix) throws IOException
     {
         this.dht = dht;
+        this.regions = dht instanceof FileRegionStorage ? Optional.of((FileRegionStorage) dht) : Optional.empty();
         this.apiPrefix = apiPrefix;
     }
 
@@ -70,25 +79,91 @@ public class DHTHandler implements HttpHandler
                             .map(s -> s.substring(s.indexOf("=") + 1))
                             .findAny()
                             .get();
-                    List<byte[]> data = MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary);
                     boolean isRaw = last.apply("format").equals("raw");
+                    // hand blocks to storage in batches while the rest of the request is still being read
+                    List<CompletableFuture<List<Multihash>>> batches = new ArrayList<>();
+                    List<byte[]> batch = new ArrayList<>();
+                    long[] batchBytes = new long[1];
+                    MultipartReceiver.extractFiles(httpExchange.getRequestBody(), boundary, MAX_PUT_BYTES, part -> {
+                        batch.add(part);
+                        batchBytes[0] += part.length;
+                        if (batchBytes[0] >= PUT_BATCH_BYTES) {
+                            List<byte[]> toPut = new ArrayList<>(batch);
+                            batches.add(isRaw ? dht.putRaw(writer, toPut) : dht.put(writer, toPut));
+                            batch.clear();
+                            batchBytes[0] = 0;
+                        }
+                    });
+                    if (! batch.isEmpty())
+                        batches.add(isRaw ? dht.putRaw(writer, batch) : dht.put(writer, batch));
 
-                    (isRaw ? dht.putRaw(writer, data) : dht.put(writer, data)).thenAccept(hashes -> {
-                        List<Object> json = hashes.stream().map(h -> wrapHash(h)).collect(Collectors.toList());
+                    Futures.combineAllInOrder(batches).thenAccept(results -> {
+                        List<Object> json = results.stream()
+                                .flatMap(List::stream)
+                                .map(h -> wrapHash(h))
+                                .collect(Collectors.toList());
                         // make stream of JSON objects
                         String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
                         replyJson(httpExchange, jsonStream, Optional.empty());
-                    }).exceptionally(Futures::logError);
+                    }).exceptionally(t -> replyAsyncError(httpExchange, t));
                     break;
                 }
                 case "block/get":{
                     Multihash hash = Cid.decode(args.get(0));
-                    (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw ?
-                            dht.getRaw(hash) :
-                            dht.get(hash).thenApply(opt -> opt.map(CborObject::toByteArray)))
+                    Optional<FileRegionStorage.Region> region = regions.isPresent() ?
+                            regions.get().getRegion(hash) :
+                            Optional.empty();
+                    if (region.isPresent()) {
+                        replyRegion(httpExchange, region.get(), hash);
+                        break;
+                    }
+                    // the stored block bytes are already the canonical cbor, so don't parse and reserialize them
+                    dht.getRaw(hash)
                             .thenAccept(opt -> replyBytes(httpExchange,
                                     opt.orElse(new byte[0]), opt.map(x -> hash)))
-                            .exceptionally(Futures::logError);
+                            .exceptionally(t -> replyAsyncError(httpExchange, t));
+                    break;
+                }
+                case "block/get-many": {
+                    CborObject request = CborObject.fromByteArray(Serialize.readFully(httpExchange.getRequestBody(), MAX_GET_MANY_REQUEST_BYTES));
+                    List<Multihash> hashes = ((CborObject.CborList) request).value.stream()
+                            .map(link -> ((CborObject.CborMerkleLink) link).target)
+                            .collect(Collectors.toList());
+                    if (hashes.size() > ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY)
+                        throw new IllegalStateException("Too many blocks requested: " + hashes.size());
+                    dht.getMany(hashes)
+                            .thenAccept(blocks -> replyBytes(httpExchange,
+                                    ContentAddressedStorage.HTTP.serializeBlocks(blocks).toByteArray(), Optional.empty()))
+                            .exceptionally(t -> replyAsyncError(httpExchange, t));
+                    break;
+                }
+                case "dag/export": {
+                    Multihash root = Cid.decode(args.get(0));
+                    int maxDepth = params.containsKey("depth") ? Integer.parseInt(last.apply("depth")) : Integer.MAX_VALUE;
+                    long maxBytes = Math.min(ContentAddressedStorage.MAX_DAG_EXPORT_BYTES,
+                            params.containsKey("max-bytes") ? Long.parseLong(last.apply("max-bytes")) : Long.MAX_VALUE);
+                    // blocks are written as they are found, so the length isn't known up front
+                    httpExchange.sendResponseHeaders(200, 0);
+                    DataOutputStream dout = new DataOutputStream(new BufferedOutputStream(httpExchange.getResponseBody()));
+                    DagExport.walk(dht, root, maxDepth, maxBytes, block -> {
+                        try {
+                            DagExport.writeFrame(block.left, block.right, dout);
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }).thenAccept(complete -> {
+                        try {
+                            // a client asking for more than our cap is told it didn't get everything
+                            DagExport.writeEnd(! complete, dout);
+                            dout.close();
+                        } catch (IOException e) {
+                            throw new UncheckedIOException(e);
+                        }
+                    }).exceptionally(t -> {
+                        // the status has already been sent, so all we can do is cut the response short
+                        httpExchange.close();
+                        return Futures.logError(t);
+                    });
                     break;
                 }
                 case "pin/add": {
@@ -97,7 +172,7 @@ public class DHTHandler implements HttpHandler
                         Map<String, Object> json = new TreeMap<>();
                         json.put("Pins", pinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError);
+                    }).exceptionally(t -> replyAsyncError(httpExchange, t));
                     break;
                 }
                 case "pin/rm": {
@@ -109,7 +184,7 @@ public class DHTHandler implements HttpHandler
                         Map<String, Object> json = new TreeMap<>();
                         json.put("Pins", unpinned.stream().map(h -> h.toString()).collect(Collectors.toList()));
                         replyJson(httpExchange, JSONParser.toString(json), Optional.empty());
-                    }).exceptionally(Futures::logError);
+                    }).exceptionally(t -> replyAsyncError(httpExchange, t));
                     break;
                 }
                 case "block/stat": {
@@ -119,7 +194,7 @@ public class DHTHandler implements HttpHandler
                         res.put("Size", sizeOpt.orElse(0));
                         String json = JSONParser.toString(res);
                         replyJson(httpExchange, json, Optional.of(block));
-                    }).exceptionally(Futures::logError);
+                    }).exceptionally(t -> replyAsyncError(httpExchange, t));
                     break;
                 }
                 case "refs": {
@@ -129,7 +204,7 @@ public class DHTHandler implements HttpHandler
                         // make stream of JSON objects
                         String jsonStream = json.stream().map(m -> JSONParser.toString(m)).reduce("", (a, b) -> a + b);
                         replyJson(httpExchange, jsonStream, Optional.of(block));
-                    }).exceptionally(Futures::logError);
+                    }).exceptionally(t -> replyAsyncError(httpExchange, t));
                     break;
                 }
                 default: {
@@ -157,11 +232,18 @@ public class DHTHandler implements HttpHandler
         return json;
     }
 
+    /** The handler has already returned by the time an asynchronous operation fails, so reply with the error here */
+    private static <T> T replyAsyncError(HttpExchange exchange, Throwable t) {
+        Throwable cause = t instanceof CompletionException && t.getCause() != null ? t.getCause() : t;
+        replyError(exchange, cause);
+        return Futures.logError(cause);
+    }
+
     private static void replyError(HttpExchange exchange, Throwable t) {
         try {
             exchange.sendResponseHeaders(500, 0);
             DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
-            String body = t.getMessage();
+            String body = String.valueOf(t.getMessage());
             dout.write(body.getBytes());
             dout.flush();
             dout.close();
@@ -177,9 +259,10 @@ public class DHTHandler implements HttpHandler
                 exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
                 exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
             }
-            exchange.sendResponseHeaders(200, 0);
+            byte[] body = json.getBytes();
+            exchange.sendResponseHeaders(200, body.length);
             DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
-            dout.write(json.getBytes());
+            dout.write(body);
             dout.flush();
             dout.close();
         } catch (IOException e)
@@ -194,7 +277,7 @@ public class DHTHandler implements HttpHandler
                 exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
                 exchange.getResponseHeaders().set("ETag", "\"" + key.get().toString() + "\"");
             }
-            exchange.sendResponseHeaders(200, 0);
+            exchange.sendResponseHeaders(200, body.length == 0 ? -1 : body.length);
             DataOutputStream dout = new DataOutputStream(exchange.getResponseBody());
             dout.write(body);
             dout.flush();
@@ -204,4 +287,18 @@ public class DHTHandler implements HttpHandler
             e.printStackTrace();
         }
     }
+
+    private static void replyRegion(HttpExchange exchange, FileRegionStorage.Region region, Multihash key) {
+        try {
+            exchange.getResponseHeaders().set("Cache-Control", "public, max-age=31622400 immutable");
+            exchange.getResponseHeaders().set("ETag", "\"" + key.toString() + "\"");
+            exchange.sendResponseHeaders(200, region.length == 0 ? -1 : region.length);
+            WritableByteChannel out = Channels.newChannel(exchange.getResponseBody());
+            region.transferTo(out);
+            out.close();
+        } catch (IOException e)
+        {
+            e.printStackTrace();
+        }
+    }
 }
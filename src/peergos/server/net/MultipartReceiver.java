@@ -2,83 +2,160 @@ package peergos.server.net;
 
 import java.io.*;
 import java.util.*;
+import java.util.function.*;
 
+/** A streaming multipart/form-data decoder. The body is read in large blocks and searched for the boundary with
+ *  Boyer-Moore-Horspool, and each part is handed to the caller as soon as it is complete, so only one part and the
+ *  read buffer are held in memory at a time.
+ */
 public class MultipartReceiver {
     private static final byte[] DOUBLE_NEW_LINE = "\r\n\r\n".getBytes();
+    private static final byte[] NEW_LINE = "\r\n".getBytes();
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final int MAX_HEADER_SIZE = 8 * 1024;
 
     public static List<byte[]> extractFiles(InputStream rawIn, String boundary) {
-        try {
-            int maxLineSize = 1024;
-            InputStream in = new BufferedInputStream(rawIn);
-            String first = readLine(in, maxLineSize);
-            if (!first.substring(2).equals(boundary))
-                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + first.substring(2));
-            byte[] firstHeaders = readUntil(DOUBLE_NEW_LINE, in);
+        List<byte[]> files = new ArrayList<>();
+        extractFiles(rawIn, boundary, Long.MAX_VALUE, files::add);
+        return files;
+    }
 
-            byte[] boundaryBytes = ("\r\n--" + boundary).getBytes();
-            List<byte[]> files = new ArrayList<>();
+    /**
+     *
+     * @param rawIn
+     * @param boundary
+     * @param maxBytes the maximum total size of the parts
+     * @param onPart called with the contents of each part, in order, as soon as it has been read
+     */
+    public static void extractFiles(InputStream rawIn, String boundary, long maxBytes, Consumer<byte[]> onPart) {
+        try {
+            Scanner in = new Scanner(rawIn);
+            byte[] first = in.readUntil(new Pattern(NEW_LINE), MAX_HEADER_SIZE);
+            String firstLine = new String(first);
+            if (firstLine.length() < 2 || !firstLine.substring(2).equals(boundary))
+                throw new IllegalStateException("Incorrect boundary! " + boundary + " != " + (firstLine.length() < 2 ? firstLine : firstLine.substring(2)));
+            Pattern headerEnd = new Pattern(DOUBLE_NEW_LINE);
+            in.readUntil(headerEnd, MAX_HEADER_SIZE);
 
+            Pattern partEnd = new Pattern(("\r\n--" + boundary).getBytes());
+            long total = 0;
             while (true) {
-                byte[] file = readUntil(boundaryBytes, in);
-                files.add(file);
-                byte[] headers = readUntil(DOUBLE_NEW_LINE, in);
+                byte[] part = in.readUntil(partEnd, maxBytes - total);
+                total += part.length;
+                onPart.accept(part);
+                byte[] headers = in.readUntil(headerEnd, MAX_HEADER_SIZE);
                 if (headers.length == 0 || Arrays.equals(headers, "--".getBytes()))
-                    return files;
+                    return;
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
 
-    /**
-     *
-     * @param pattern the pattern of bytes to search until
-     * @param in
-     * @return the bytes in this stream until pattern is encountered, or the end of the stream is reached
-     * @throws IOException
-     */
-    private static byte[] readUntil(byte[] pattern, InputStream in) throws IOException {
-        ByteArrayOutputStream prior = new ByteArrayOutputStream();
-        int r;
-        int indexInPattern = 0;
-        while ((r = in.read()) != -1) {
-            if ((byte) r == pattern[indexInPattern]) {
-                indexInPattern++;
-                if (indexInPattern == pattern.length)
-                    return prior.toByteArray();
-            } else {
-                if (indexInPattern > 0)
-                    prior.write(pattern, 0, indexInPattern);
-                indexInPattern = 0;
-                // be careful of case where last byte before pattern == first byte of pattern
-                if ((byte) r == pattern[0]) {
-                    indexInPattern = 1;
-                    if (pattern.length == 1)
-                        return prior.toByteArray();
-                } else
-                    prior.write(r);
+    /** A byte pattern with its Horspool bad character shift table */
+    private static final class Pattern {
+        private final byte[] bytes;
+        private final int[] shift = new int[256];
+
+        public Pattern(byte[] bytes) {
+            this.bytes = bytes;
+            Arrays.fill(shift, bytes.length);
+            for (int i=0; i < bytes.length - 1; i++)
+                shift[bytes[i] & 0xff] = bytes.length - 1 - i;
+        }
+
+        /**
+         *
+         * @return the index of the first occurrence of this pattern in data[from, to), or -1
+         */
+        public int indexIn(byte[] data, int from, int to) {
+            int last = bytes.length - 1;
+            int i = from;
+            while (i + last < to) {
+                int j = last;
+                while (data[i + j] == bytes[j]) {
+                    if (j == 0)
+                        return i;
+                    j--;
+                }
+                i += shift[data[i + last] & 0xff];
             }
+            return -1;
         }
-        return prior.toByteArray();
     }
 
-    private static String readLine(InputStream in, int maxSize) throws IOException {
-        ByteArrayOutputStream bout = new ByteArrayOutputStream();
-        int r, total = 0;
-        while ((r = in.read()) >= 0) {
-            total++;
+    private static final class Scanner {
+        private final InputStream in;
+        private byte[] buf = new byte[BUFFER_SIZE];
+        private int start = 0, end = 0;
+        private boolean eof = false;
+
+        public Scanner(InputStream in) {
+            this.in = in;
+        }
+
+        /** Move the unread bytes to the front of the buffer and read as much as fits after them */
+        private void fill() throws IOException {
+            if (start > 0) {
+                System.arraycopy(buf, start, buf, 0, end - start);
+                end -= start;
+                start = 0;
+            }
+            if (end == buf.length)
+                buf = Arrays.copyOf(buf, buf.length * 2);
+            int read = in.read(buf, end, buf.length - end);
+            if (read < 0)
+                eof = true;
+            else
+                end += read;
+        }
+
+        /**
+         *
+         * @return the bytes before the next occurrence of pattern, or before the end of the stream, consuming the pattern
+         */
+        public byte[] readUntil(Pattern pattern, long maxSize) throws IOException {
+            ByteArrayOutputStream prior = new ByteArrayOutputStream();
+            int tail = pattern.bytes.length - 1;
+            while (true) {
+                int index = pattern.indexIn(buf, start, end);
+                if (index >= 0) {
+                    write(prior, index - start, maxSize);
+                    start = index + pattern.bytes.length;
+                    return prior.toByteArray();
+                }
+                if (eof) {
+                    // like the pattern, a partial match at the very end isn't part of the result
+                    int keep = end - start;
+                    for (int matched = Math.min(tail, end - start); matched > 0; matched--)
+                        if (endsWithPrefix(pattern.bytes, matched)) {
+                            keep -= matched;
+                            break;
+                        }
+                    write(prior, keep, maxSize);
+                    start = end;
+                    return prior.toByteArray();
+                }
+                // everything except a possible partial match at the end is definitely before the pattern
+                int safe = end - start - tail;
+                if (safe > 0)
+                    write(prior, safe, maxSize);
+                fill();
+            }
+        }
+
+        private boolean endsWithPrefix(byte[] pattern, int length) {
+            for (int i=0; i < length; i++)
+                if (buf[end - length + i] != pattern[i])
+                    return false;
+            return true;
+        }
 
-            if (r == '\r') {
-                int next = in.read();
-                if (next == '\n')
-                    break;
-                bout.write(r);
-                bout.write(next);
-            } else
-                bout.write(r);
-            if (total > maxSize)
-                break;
+        private void write(ByteArrayOutputStream out, int length, long maxSize) {
+            if (out.size() + (long) length > maxSize)
+                throw new IllegalStateException("Multipart request exceeded maximum size of " + maxSize + " bytes");
+            out.write(buf, start, length);
+            start += length;
         }
-        return new String(bout.toByteArray());
     }
 }
@@ -0,0 +1,38 @@
+package peergos.server.net;
+
+import peergos.shared.io.ipfs.api.*;
+import peergos.shared.user.*;
+
+import java.net.*;
+import java.util.concurrent.*;
+
+/** A JavaPoster which makes its requests on a shared bounded pool of threads, and streams request bodies rather than
+ *  letting the connection buffer them to find their length.
+ */
+public class PooledJavaPoster extends JavaPoster {
+    private static final int MAX_CONCURRENT_REQUESTS = 32;
+
+    static {
+        // the size of the keep-alive cache per host, which defaults to 5
+        if (System.getProperty("http.maxConnections") == null)
+            System.setProperty("http.maxConnections", Integer.toString(MAX_CONCURRENT_REQUESTS));
+    }
+
+    private static final ExecutorService requests = Executors.newFixedThreadPool(MAX_CONCURRENT_REQUESTS, r -> {
+        Thread t = new Thread(r, "JavaPoster");
+        t.setDaemon(true);
+        return t;
+    });
+
+    public PooledJavaPoster(URL dht) {
+        super(dht, requests);
+    }
+
+    @Override
+    protected void prepareBody(HttpURLConnection conn, int length) {
+        if (length >= 0)
+            conn.setFixedLengthStreamingMode(length);
+        else
+            conn.setChunkedStreamingMode(Multipart.CHUNK_SIZE);
+    }
+}
@@ -0,0 +1,44 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.channels.*;
+import java.util.*;
+
+/** Implemented by block stores that keep blocks in local files, so they can be served without copying them onto
+ *  the heap first.
+ */
+public interface FileRegionStorage {
+
+    /**
+     *
+     * @param hash
+     * @return the location of the block's bytes on disk, or empty if it is not stored locally
+     * @throws IOException
+     */
+    Optional<Region> getRegion(Multihash hash) throws IOException;
+
+    class Region {
+        public final FileChannel channel;
+        public final long offset;
+        public final int length;
+
+        public Region(FileChannel channel, long offset, int length) {
+            this.channel = channel;
+            this.offset = offset;
+            this.length = length;
+        }
+
+        /** Copy this region to target, letting the OS do the copy where it can */
+        public void transferTo(WritableByteChannel target) throws IOException {
+            long done = 0;
+            while (done < length) {
+                long written = channel.transferTo(offset + done, length - done, target);
+                if (written <= 0)
+                    throw new EOFException("Block region truncated at " + (offset + done));
+                done += written;
+            }
+        }
+    }
+}
@@ -9,6 +9,7 @@ import peergos.shared.util.*;
 import java.io.*;
 import java.net.*;
 import java.util.*;
+import java.util.function.*;
 import java.util.stream.*;
 
 public class IPFS {
@@ -78,7 +79,7 @@ public class IPFS {
     }
 
     public List<MerkleNode> add(List<NamedStreamable> files) throws IOException {
-        Multipart m = new Multipart("http://" + host + ":" + port + version+"add?stream-channels=true", "UTF-8");
+        Multipart m = streamingMultipart("http://" + host + ":" + port + version+"add?stream-channels=true", "UTF-8");
         for (NamedStreamable file: files) {
             if (file.isDirectory()) {
                 m.addSubtree("", ((NamedStreamable.FileWrapper)file).getFile());
@@ -113,11 +114,16 @@ public class IPFS {
     }
 
     public List<Multihash> refs(Multihash hash, boolean recursive) throws IOException {
-        String jsonStream = new String(retrieve("refs?arg=" + hash + "&r=" + recursive));
-        return JSONParser.parseStream(jsonStream).stream()
-                .map(m -> (String) (((Map) m).get("Ref")))
-                .map(Cid::decode)
-                .collect(Collectors.toList());
+        List<Multihash> res = new ArrayList<>();
+        refs(hash, recursive, res::add);
+        return res;
+    }
+
+    /** Stream the refs of hash to onRef as they arrive, rather than reading the whole response first */
+    public void refs(Multihash hash, boolean recursive, Consumer<Multihash> onRef) throws IOException {
+        try (InputStream in = retrieveStream("refs?arg=" + hash + "&r=" + recursive)) {
+            JSONReader.forEachStringField(in, ref -> onRef.accept(Cid.decode(ref)), "Ref");
+        }
     }
 
     public Map resolve(String scheme, Multihash hash, boolean recursive) throws IOException {
@@ -142,11 +148,11 @@ public class IPFS {
     // level 2 commands
     public class Refs {
         public List<Multihash> local() throws IOException {
-            String jsonStream = new String(retrieve("refs/local"));
-            return JSONParser.parseStream(jsonStream).stream()
-                    .map(m -> (String) (((Map) m).get("Ref")))
-                    .map(Cid::decode)
-                    .collect(Collectors.toList());
+            List<Multihash> res = new ArrayList<>();
+            try (InputStream in = retrieveStream("refs/local")) {
+                JSONReader.forEachStringField(in, ref -> res.add(Cid.decode(ref)), "Ref");
+            }
+            return res;
         }
     }
 
@@ -160,14 +166,50 @@ public class IPFS {
                     .collect(Collectors.toList());
         }
 
-        public Map<Multihash, Object> ls() throws IOException {
+        public Map<Multihash, String> ls() throws IOException {
             return ls(PinType.direct);
         }
 
-        public Map<Multihash, Object> ls(PinType type) throws IOException {
-            return ((Map<String, Object>)(((Map)retrieveAndParse("pin/ls?stream-channels=true&t="+type.name())).get("Keys"))).entrySet()
-                    .stream()
-                    .collect(Collectors.toMap(x -> Cid.decode(x.getKey()), x-> x.getValue()));
+        /**
+         *
+         * @param type
+         * @return the pinned hashes, each mapped to its pin type
+         * @throws IOException
+         */
+        public Map<Multihash, String> ls(PinType type) throws IOException {
+            Map<Multihash, String> res = new HashMap<>();
+            ls(type, res::put);
+            return res;
+        }
+
+        /** Stream each pinned hash and its pin type to onPin as they arrive */
+        public void ls(PinType type, BiConsumer<Multihash, String> onPin) throws IOException {
+            try (InputStream in = retrieveStream("pin/ls?stream-channels=true&t=" + type.name())) {
+                JSONReader reader = new JSONReader(in);
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    if (! reader.nextName().equals("Keys")) {
+                        reader.skipValue();
+                        continue;
+                    }
+                    reader.beginObject();
+                    while (reader.hasNext()) {
+                        Multihash pinned = Cid.decode(reader.nextName());
+                        String pinType = null;
+                        reader.beginObject();
+                        while (reader.hasNext()) {
+                            if (reader.nextName().equals("Type"))
+                                pinType = reader.nextString();
+                            else
+                                reader.skipValue();
+                        }
+                        reader.endObject();
+                        onPin.accept(pinned, pinType);
+                    }
+                    reader.endObject();
+                }
+                reader.endObject();
+            }
         }
 
         public List<Multihash> rm(Multihash hash) throws IOException {
@@ -208,11 +250,12 @@ public class IPFS {
 
         public List<MerkleNode> put(List<byte[]> data, Optional<String> format) throws IOException {
             String fmt = format.map(f -> "&format=" + f).orElse("");
-            Multipart m = new Multipart("http://" + host + ":" + port + version+"block/put?stream-channels=true" + fmt, "UTF-8");
+            Multipart m = streamingMultipart("http://" + host + ":" + port + version+"block/put?stream-channels=true" + fmt, "UTF-8");
             for (byte[] f : data)
                 m.addFilePart("file", new NamedStreamable.ByteArrayWrapper(f));
-            String res = m.finish();
-            return JSONParser.parseStream(res).stream().map(x -> MerkleNode.fromJSON((Map<String, Object>) x)).collect(Collectors.toList());
+            return JSONReader.readStringFields(m.finishBytes(), "Key", "Hash").stream()
+                    .map(MerkleNode::new)
+                    .collect(Collectors.toList());
         }
 
         public Map stat(Multihash hash) throws IOException {
@@ -224,7 +267,7 @@ public class IPFS {
      */
     public class IPFSObject {
         public List<MerkleNode> put(List<byte[]> data) throws IOException {
-            Multipart m = new Multipart("http://" + host + ":" + port + version+"object/put?stream-channels=true", "UTF-8");
+            Multipart m = streamingMultipart("http://" + host + ":" + port + version+"object/put?stream-channels=true", "UTF-8");
             for (byte[] f : data)
                 m.addFilePart("file", new NamedStreamable.ByteArrayWrapper(f));
             String res = m.finish();
@@ -234,7 +277,7 @@ public class IPFS {
         public List<MerkleNode> put(String encoding, List<byte[]> data) throws IOException {
             if (!"json".equals(encoding) && !"protobuf".equals(encoding))
                 throw new IllegalArgumentException("Encoding must be json or protobuf");
-            Multipart m = new Multipart("http://" + host + ":" + port + version+"object/put?stream-channels=true&encoding="+encoding, "UTF-8");
+            Multipart m = streamingMultipart("http://" + host + ":" + port + version+"object/put?stream-channels=true&encoding="+encoding, "UTF-8");
             for (byte[] f : data)
                 m.addFilePart("file", new NamedStreamable.ByteArrayWrapper(f));
             String res = m.finish();
@@ -288,7 +331,7 @@ public class IPFS {
                 case "append-data":
                     if (!data.isPresent())
                         throw new IllegalStateException("set-data requires data!");
-                    Multipart m = new Multipart("http://" + host + ":" + port + version+"object/patch/"+command+"?arg="+base.toBase58()+"&stream-channels=true", "UTF-8");
+                    Multipart m = streamingMultipart("http://" + host + ":" + port + version+"object/patch/"+command+"?arg="+base.toBase58()+"&stream-channels=true", "UTF-8");
                     m.addFilePart("file", new NamedStreamable.ByteArrayWrapper(data.get()));
                     String res = m.finish();
                     return MerkleNode.fromJSON(JSONParser.parse(res));
@@ -412,7 +455,7 @@ public class IPFS {
         public MerkleNode put(String inputFormat, byte[] object, String outputFormat) throws IOException {
             block.put(Arrays.asList(object));
             String prefix = "http://" + host + ":" + port + version;
-            Multipart m = new Multipart(prefix + "block/put/?stream-channels=true&input-enc=" + inputFormat + "&f=" + outputFormat, "UTF-8");
+            Multipart m = streamingMultipart(prefix + "block/put/?stream-channels=true&input-enc=" + inputFormat + "&f=" + outputFormat, "UTF-8");
             m.addFilePart("file", new NamedStreamable.ByteArrayWrapper(object));
             String res = m.finish();
             return MerkleNode.fromJSON(JSONParser.parse(res));
@@ -459,7 +502,7 @@ public class IPFS {
         }
 
         public void replace(NamedStreamable file) throws IOException {
-            Multipart m = new Multipart("http://" + host + ":" + port + version+"config/replace?stream-channels=true", "UTF-8");
+            Multipart m = streamingMultipart("http://" + host + ":" + port + version+"config/replace?stream-channels=true", "UTF-8");
             m.addFilePart("file", file);
             String res = m.finish();
         }
@@ -502,6 +545,13 @@ public class IPFS {
         return IPFS.get(target);
     }
 
+    /** Stream the body to the daemon as it is written rather than buffering it all to find its length */
+    private static Multipart streamingMultipart(String url, String charset) throws IOException {
+        HttpURLConnection conn = (HttpURLConnection) new URL(url).openConnection();
+        conn.setChunkedStreamingMode(Multipart.CHUNK_SIZE);
+        return new Multipart(conn, charset);
+    }
+
     private static byte[] get(URL target) throws IOException {
         HttpURLConnection conn = (HttpURLConnection) target.openConnection();
         conn.setRequestMethod("GET");
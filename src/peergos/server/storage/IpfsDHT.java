@@ -6,14 +6,31 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multiaddr.MultiAddress;
 import peergos.shared.io.ipfs.multihash.Multihash;
 import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 import java.util.stream.*;
 
-public class IpfsDHT implements ContentAddressedStorage {
+/** Calls to the ipfs http api are made on a bounded pool of threads per type of operation, so the calling thread
+ *  gets a future back straight away, and a burst of one kind of request (e.g. block gets) can't starve the others.
+ *  Concurrent stat and refs calls for the same block share a single request. The queue depths are logged
+ *  periodically while requests are waiting.
+ */
+public class IpfsDHT implements ContentAddressedStorage, PinnedRoots {
+    private static final boolean LOGGING = true;
+    private static final int MAX_QUEUED_REQUESTS = 10_000;
+    private static final long QUEUE_LOG_PERIOD_SECONDS = 60;
+
     private final IPFS ipfs;
+    private final Pipeline gets = new Pipeline("get", 32);
+    private final Pipeline puts = new Pipeline("put", 8);
+    private final Pipeline pins = new Pipeline("pin", 4);
+    private final Pipeline queries = new Pipeline("query", 16);
+    private final Map<Multihash, CompletableFuture<Optional<Integer>>> pendingSizes = new ConcurrentHashMap<>();
+    private final Map<Multihash, CompletableFuture<List<Multihash>>> pendingLinks = new ConcurrentHashMap<>();
 
     public IpfsDHT(IPFS ipfs) {
         this.ipfs = ipfs;
@@ -23,12 +40,105 @@ public class IpfsDHT implements ContentAddressedStorage {
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
+        if (LOGGING) {
+            ScheduledExecutorService monitor = Executors.newSingleThreadScheduledExecutor(r -> {
+                Thread t = new Thread(r, "IpfsDHT-monitor");
+                t.setDaemon(true);
+                return t;
+            });
+            monitor.scheduleAtFixedRate(this::logQueueDepths, QUEUE_LOG_PERIOD_SECONDS, QUEUE_LOG_PERIOD_SECONDS, TimeUnit.SECONDS);
+        }
     }
 
     public IpfsDHT() {
         this(new IPFS(new MultiAddress("/ip4/127.0.0.1/tcp/5001")));
     }
 
+    private interface IpfsCall<T> {
+        T call() throws IOException;
+    }
+
+    /** A fixed number of threads making one type of request, with a bounded queue of requests waiting for them */
+    private static final class Pipeline {
+        private final String name;
+        private final ThreadPoolExecutor executor;
+
+        public Pipeline(String name, int threads) {
+            this.name = name;
+            this.executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS,
+                    new LinkedBlockingQueue<>(MAX_QUEUED_REQUESTS), r -> {
+                Thread t = new Thread(r, "IpfsDHT-" + name);
+                t.setDaemon(true);
+                return t;
+            });
+            executor.allowCoreThreadTimeOut(true);
+        }
+
+        public <T> CompletableFuture<T> submit(IpfsCall<T> call) {
+            CompletableFuture<T> res = new CompletableFuture<>();
+            try {
+                executor.execute(() -> {
+                    try {
+                        res.complete(call.call());
+                    } catch (Throwable t) {
+                        res.completeExceptionally(t);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                res.completeExceptionally(new IllegalStateException("Too many queued ipfs " + name + " requests!"));
+            }
+            return res;
+        }
+
+        public int queued() {
+            return executor.getQueue().size();
+        }
+
+        public int active() {
+            return executor.getActiveCount();
+        }
+    }
+
+    /**
+     *
+     * @return the number of requests of each type waiting for a thread, and the number being made, keyed by name
+     */
+    public Map<String, Integer> queueDepths() {
+        Map<String, Integer> res = new TreeMap<>();
+        for (Pipeline pipeline : Arrays.asList(gets, puts, pins, queries)) {
+            res.put(pipeline.name + ".queued", pipeline.queued());
+            res.put(pipeline.name + ".active", pipeline.active());
+        }
+        return res;
+    }
+
+    /** Only log when something is waiting, so an idle node stays quiet */
+    private void logQueueDepths() {
+        Map<String, Integer> depths = queueDepths();
+        boolean waiting = depths.entrySet().stream()
+                .anyMatch(e -> e.getKey().endsWith(".queued") && e.getValue() > 0);
+        if (waiting)
+            System.out.println("IpfsDHT request queues: " + depths);
+    }
+
+    /** Make the request unless one for the same key is already in flight, in which case share its result */
+    private static <K, V> CompletableFuture<V> coalesce(Map<K, CompletableFuture<V>> pending,
+                                                        K key,
+                                                        Supplier<CompletableFuture<V>> request) {
+        CompletableFuture<V> res = new CompletableFuture<>();
+        CompletableFuture<V> inFlight = pending.putIfAbsent(key, res);
+        if (inFlight != null)
+            return inFlight;
+        request.get().whenComplete((value, error) -> {
+            pending.remove(key, res);
+            if (error != null)
+                res.completeExceptionally(error);
+            else
+                res.complete(value);
+        });
+        return res;
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks) {
         return put(writer, blocks, "cbor");
@@ -40,83 +150,56 @@ public class IpfsDHT implements ContentAddressedStorage {
     }
 
     private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks, String format) {
-        try {
-            return CompletableFuture.completedFuture(ipfs.block.put(blocks, Optional.of(format)))
-                    .thenApply(nodes -> nodes.stream().map(n -> n.hash).collect(Collectors.toList()));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return puts.submit(() -> ipfs.block.put(blocks, Optional.of(format)))
+                .thenApply(nodes -> nodes.stream().map(n -> n.hash).collect(Collectors.toList()));
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
-        try {
-            byte[] raw = ipfs.block.get(hash);
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(raw)));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return gets.submit(() -> Optional.of(CborObject.fromByteArray(ipfs.block.get(hash))));
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
-        try {
-            byte[] raw = ipfs.block.get(hash);
-            return CompletableFuture.completedFuture(Optional.of(raw));
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return gets.submit(() -> Optional.of(ipfs.block.get(hash)));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        // ipfs has no batch block get, so at least make the requests concurrently
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
     }
 
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
-        try {
-            List<MultiAddress> added = ipfs.pin.update(existing, updated, false);
-            return CompletableFuture.completedFuture(added);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return pins.submit(() -> ipfs.pin.update(existing, updated, false));
     }
 
     @Override
     public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
-        try {
-            List<Multihash> added = ipfs.pin.add(h);
-            return CompletableFuture.completedFuture(added);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return pins.submit(() -> ipfs.pin.add(h));
     }
 
     @Override
     public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
-        try {
-            List<Multihash> removed = ipfs.pin.rm(h, true);
-            return CompletableFuture.completedFuture(removed);
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+        return pins.submit(() -> ipfs.pin.rm(h, true));
+    }
+
+    @Override
+    public CompletableFuture<Set<Multihash>> getPinnedRoots() {
+        return pins.submit(() -> ipfs.pin.ls(IPFS.PinType.recursive).keySet());
     }
 
     @Override
     public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
-        CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
-        try {
-            res.complete(ipfs.refs(root, false));
-        } catch (IOException e) {
-            res.completeExceptionally(e);
-        }
-        return res;
+        return coalesce(pendingLinks, root, () -> queries.submit(() -> ipfs.refs(root, false)));
     }
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
-        CompletableFuture<Optional<Integer>> res = new CompletableFuture<>();
-        try {
-            res.complete(Optional.of((Integer)ipfs.block.stat(block).get("Size")));
-        } catch (IOException e) {
-            res.completeExceptionally(e);
-        }
-        return res;
+        return coalesce(pendingSizes, block,
+                () -> queries.submit(() -> Optional.of((Integer) ipfs.block.stat(block).get("Size"))));
     }
 }
@@ -0,0 +1,16 @@
+package peergos.server.storage;
+
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** Implemented by block stores that can list the roots of the DAGs they keep pinned */
+public interface PinnedRoots {
+
+    /**
+     *
+     * @return the recursively pinned roots
+     */
+    CompletableFuture<Set<Multihash>> getPinnedRoots();
+}
@@ -8,17 +8,94 @@ import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.storage.ContentAddressedStorage;
 
-import java.security.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.stream.*;
 
-public class RAMStorage implements ContentAddressedStorage {
+/** An in memory block store split into independently locked shards.
+ *
+ *  When there is a byte budget, blocks reachable from a pinned root are reference counted: a block has one count for
+ *  each pin of it and one for each link to it from a referenced block, so pinning and unpinning only walk the blocks
+ *  whose count goes from or to zero. Once the total stored bytes exceed the budget, blocks with no references are
+ *  evicted in the order they became unreferenced, either when written or when their last reference was removed. Blocks
+ *  written within the grace period are never evicted, as a writer is probably still building the tree that will link
+ *  to them before it is pinned.
+ */
+public class RAMStorage implements ContentAddressedStorage, PinnedRoots {
     private static final int CID_V1 = 1;
+    private static final int SHARDS = 16;
+    public static final long DEFAULT_EVICTION_GRACE_MILLIS = 60_000;
 
-    private Map<Multihash, byte[]> storage = new HashMap<>();
+    private static final class Block {
+        public final byte[] data;
+        public final long writeTime;
 
+        public Block(byte[] data, long writeTime) {
+            this.data = data;
+            this.writeTime = writeTime;
+        }
+    }
+
+    private static final class Shard {
+        private final Map<Multihash, Block> blocks = new HashMap<>();
+        // the stored blocks with no references, in the order they became unreferenced so eviction takes the head
+        private final LinkedHashMap<Multihash, Block> unreferenced = new LinkedHashMap<>();
+    }
+
+    private final Shard[] shards = new Shard[SHARDS];
+    private final AtomicLong totalBytes = new AtomicLong(0);
+    private volatile long byteBudget;
+    private final long evictionGraceMillis;
+
+    // guards pinnedRoots, refCounts and changes to the byte budget, and is held while evicting so a block can't be
+    // evicted as it is pinned
+    private final Object pinLock = new Object();
     private final Set<Multihash> pinnedRoots = new HashSet<>();
+    private final Map<Multihash, Integer> refCounts = new HashMap<>();
+    private int nextEvictionShard = 0;
+
+    public RAMStorage(long byteBudget, long evictionGraceMillis) {
+        this.byteBudget = byteBudget;
+        this.evictionGraceMillis = evictionGraceMillis;
+        for (int i=0; i < SHARDS; i++)
+            shards[i] = new Shard();
+    }
+
+    public RAMStorage(long byteBudget) {
+        this(byteBudget, DEFAULT_EVICTION_GRACE_MILLIS);
+    }
+
+    public RAMStorage() {
+        this(Long.MAX_VALUE);
+    }
+
+    private Shard shard(Multihash hash) {
+        return shards[(hash.hashCode() & 0x7fffffff) % SHARDS];
+    }
+
+    /** Without a budget nothing is evicted, so there is no need to reference count */
+    private boolean isCounting() {
+        return byteBudget != Long.MAX_VALUE;
+    }
+
+    public void setByteBudget(long byteBudget) {
+        synchronized (pinLock) {
+            boolean wasCounting = isCounting();
+            this.byteBudget = byteBudget;
+            if (wasCounting && ! isCounting()) {
+                refCounts.keySet().forEach(this::unreferenced);
+                refCounts.clear();
+            } else if (! wasCounting && isCounting()) {
+                for (Multihash root : pinnedRoots) {
+                    Optional<Multihash> missing = addReference(root);
+                    if (missing.isPresent())
+                        System.err.println("Pinned root " + root + " is missing block " + missing.get());
+                }
+            }
+        }
+        evictIfNeeded();
+    }
 
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks) {
@@ -31,21 +108,47 @@ public class RAMStorage implements ContentAddressedStorage {
     }
 
     private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks, boolean isRaw) {
-        return CompletableFuture.completedFuture(blocks.stream()
+        List<Multihash> res = blocks.stream()
                 .map(b -> {
                     Cid cid = hashToCid(b, isRaw);
                     put(cid, b);
-                    return cid;
-                }).collect(Collectors.toList()));
+                    return (Multihash) cid;
+                }).collect(Collectors.toList());
+        evictIfNeeded();
+        return CompletableFuture.completedFuture(res);
     }
 
-    private synchronized void put(Cid cid, byte[] data) {
-        storage.put(cid, data);
+    private void put(Cid cid, byte[] data) {
+        Shard shard = shard(cid);
+        synchronized (shard) {
+            Block block = new Block(data, System.currentTimeMillis());
+            Block existing = shard.blocks.put(cid, block);
+            // a new or unreferenced block goes to the back of the eviction order, a referenced block stays referenced
+            if (existing == null || shard.unreferenced.remove(cid) != null)
+                shard.unreferenced.put(cid, block);
+            totalBytes.addAndGet(data.length - (existing == null ? 0 : existing.data.length));
+        }
+    }
+
+    private byte[] getBlock(Multihash hash) {
+        Shard shard = shard(hash);
+        synchronized (shard) {
+            Block block = shard.blocks.get(hash);
+            return block == null ? null : block.data;
+        }
     }
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
-        return CompletableFuture.completedFuture(Optional.of(storage.getOrDefault(object, new byte[0])));
+        byte[] block = getBlock(object);
+        return CompletableFuture.completedFuture(Optional.of(block == null ? new byte[0] : block));
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return CompletableFuture.completedFuture(hashes.stream()
+                .map(h -> Optional.ofNullable(getBlock(h)))
+                .collect(Collectors.toList()));
     }
 
     @Override
@@ -55,33 +158,192 @@ public class RAMStorage implements ContentAddressedStorage {
         return CompletableFuture.completedFuture(Optional.of(getAndParseObject(hash)));
     }
 
-    private synchronized CborObject getAndParseObject(Multihash hash) {
-        if (!storage.containsKey(hash))
+    private CborObject getAndParseObject(Multihash hash) {
+        byte[] block = getBlock(hash);
+        if (block == null)
             throw new IllegalStateException("Hash not present! "+ hash);
-        return CborObject.fromByteArray(storage.get(hash));
+        return CborObject.fromByteArray(block);
+    }
+
+    public void clear() {
+        synchronized (pinLock) {
+            for (Shard shard : shards) {
+                synchronized (shard) {
+                    shard.blocks.clear();
+                    shard.unreferenced.clear();
+                }
+            }
+            totalBytes.set(0);
+            pinnedRoots.clear();
+            refCounts.clear();
+        }
+    }
+
+    public int size() {
+        int total = 0;
+        for (Shard shard : shards) {
+            synchronized (shard) {
+                total += shard.blocks.size();
+            }
+        }
+        return total;
     }
 
-    public synchronized void clear() {
-        storage.clear();
+    public long totalBytes() {
+        return totalBytes.get();
     }
 
-    public synchronized int size() {
-        return storage.size();
+    public int pinnedBlockCount() {
+        synchronized (pinLock) {
+            return refCounts.size();
+        }
     }
 
     @Override
     public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
+        synchronized (pinLock) {
+            if (! pinnedRoots.contains(h) && isCounting()) {
+                Optional<Multihash> missing = addReference(h);
+                if (missing.isPresent()) {
+                    CompletableFuture<List<Multihash>> err = new CompletableFuture<>();
+                    err.completeExceptionally(new IllegalStateException("Can't pin " + h + ", block " + missing.get() + " is missing"));
+                    return err;
+                }
+            }
+            pinnedRoots.add(h);
+        }
         return CompletableFuture.completedFuture(Arrays.asList(h));
     }
 
     @Override
     public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
+        synchronized (pinLock) {
+            if (pinnedRoots.remove(h) && isCounting())
+                removeReference(h);
+        }
+        evictIfNeeded();
         return CompletableFuture.completedFuture(Arrays.asList(h));
     }
 
+    @Override
+    public CompletableFuture<Set<Multihash>> getPinnedRoots() {
+        synchronized (pinLock) {
+            return CompletableFuture.completedFuture(new HashSet<>(pinnedRoots));
+        }
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
-        return CompletableFuture.completedFuture(Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+        // like ipfs pin update with unpin=false, the existing root stays pinned until explicitly unpinned
+        return recursivePin(updated)
+                .thenApply(pinned -> Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    private static boolean isRaw(Multihash hash) {
+        return hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+    }
+
+    /** Add a reference to root, only descending into blocks which weren't already referenced. Must be called with the
+     *  pin lock held.
+     *
+     * @return a newly referenced block which isn't stored, in which case no counts are changed
+     */
+    private Optional<Multihash> addReference(Multihash root) {
+        Map<Multihash, List<Multihash>> newlyReferenced = new HashMap<>();
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.pop();
+            if (refCounts.containsKey(next) || newlyReferenced.containsKey(next))
+                continue;
+            byte[] block = getBlock(next);
+            if (block == null)
+                return Optional.of(next);
+            List<Multihash> links = isRaw(next) ? Collections.emptyList() : CborObject.fromByteArray(block).links();
+            newlyReferenced.put(next, links);
+            links.forEach(toVisit::push);
+        }
+        refCounts.merge(root, 1, Integer::sum);
+        for (List<Multihash> links : newlyReferenced.values())
+            for (Multihash link : links)
+                refCounts.merge(link, 1, Integer::sum);
+        newlyReferenced.keySet().forEach(this::referenced);
+        return Optional.empty();
+    }
+
+    /** Take a block out of the eviction order. Must be called with the pin lock held. */
+    private void referenced(Multihash hash) {
+        Shard shard = shard(hash);
+        synchronized (shard) {
+            shard.unreferenced.remove(hash);
+        }
+    }
+
+    /** Put a stored block at the back of the eviction order. Must be called with the pin lock held. */
+    private void unreferenced(Multihash hash) {
+        Shard shard = shard(hash);
+        synchronized (shard) {
+            Block block = shard.blocks.get(hash);
+            if (block != null)
+                shard.unreferenced.put(hash, block);
+        }
+    }
+
+    /** Remove a reference to root, only descending into blocks which are no longer referenced. Must be called with
+     *  the pin lock held. */
+    private void removeReference(Multihash root) {
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.pop();
+            Integer count = refCounts.get(next);
+            if (count == null)
+                continue;
+            if (count > 1) {
+                refCounts.put(next, count - 1);
+                continue;
+            }
+            refCounts.remove(next);
+            unreferenced(next);
+            byte[] block = getBlock(next);
+            if (block != null && ! isRaw(next))
+                CborObject.fromByteArray(block).links().forEach(toVisit::push);
+        }
+    }
+
+    private void evictIfNeeded() {
+        if (totalBytes.get() <= byteBudget)
+            return;
+        synchronized (pinLock) {
+            int fullShards = 0;
+            // take a little from each shard in turn so no one shard is emptied
+            while (totalBytes.get() > byteBudget && fullShards < SHARDS) {
+                Shard shard = shards[nextEvictionShard];
+                nextEvictionShard = (nextEvictionShard + 1) % SHARDS;
+                if (evictOldestUnpinned(shard))
+                    fullShards = 0;
+                else
+                    fullShards++;
+            }
+        }
+    }
+
+    /** Must be called with the pin lock held */
+    private boolean evictOldestUnpinned(Shard shard) {
+        long graceStart = System.currentTimeMillis() - evictionGraceMillis;
+        synchronized (shard) {
+            Iterator<Map.Entry<Multihash, Block>> it = shard.unreferenced.entrySet().iterator();
+            if (! it.hasNext())
+                return false;
+            Map.Entry<Multihash, Block> oldest = it.next();
+            // everything behind this became unreferenced later, so this shard has nothing evictable yet
+            if (oldest.getValue().writeTime > graceStart)
+                return false;
+            it.remove();
+            shard.blocks.remove(oldest.getKey());
+            totalBytes.addAndGet(-oldest.getValue().data.length);
+            return true;
+        }
     }
 
     @Override
@@ -96,9 +358,10 @@ public class RAMStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
-        if (!storage.containsKey(block))
+        byte[] data = getBlock(block);
+        if (data == null)
             return CompletableFuture.completedFuture(Optional.empty());
-        return CompletableFuture.completedFuture(Optional.of(storage.get(block).length));
+        return CompletableFuture.completedFuture(Optional.of(data.length));
     }
 
     public static Cid hashToCid(byte[] input, boolean isRaw) {
@@ -107,16 +370,8 @@ public class RAMStorage implements ContentAddressedStorage {
         return new Cid(CID_V1, isRaw ? Cid.Codec.Raw : Cid.Codec.DagCbor, multihash);
     }
 
-    public static byte[] hash(byte[] input)
-    {
-        try {
-            MessageDigest md = MessageDigest.getInstance("SHA-256");
-            md.update(input);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e)
-        {
-            throw new IllegalStateException("couldn't find hash algorithm");
-        }
+    public static byte[] hash(byte[] input) {
+        return Hash.sha256(input);
     }
 
     private static RAMStorage singleton = new RAMStorage();
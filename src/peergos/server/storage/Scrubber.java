@@ -0,0 +1,366 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.user.fs.*;
+
+import java.io.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+import java.util.stream.*;
+
+/** Walks the pinned DAGs of a block store in the background and re-hashes every block, recording any which are corrupt
+ *  or missing. Lost fragments of an erasure coded chunk are rebuilt from the surviving fragments and put back.
+ *
+ *  Reads are rate limited so that scrubbing doesn't compete with serving users. Roots are scrubbed in sorted order and
+ *  the last one finished in the current pass is written to a checkpoint file, so a restarted server carries on from
+ *  where it was rather than starting again. Roots pinned since then which sort before it wait for the next pass.
+ */
+public class Scrubber implements Runnable {
+    private static final boolean LOGGING = true;
+    private static final long PASS_INTERVAL_MILLIS = 60 * 60 * 1000;
+    // a block which doesn't arrive in this long is treated as missing, ipfs will otherwise search the network for it
+    private static final long READ_TIMEOUT_SECONDS = 60;
+    // the most blocks to remember as already checked, after which shared blocks may be checked again
+    private static final int MAX_VISITED = 1_000_000;
+
+    private final ContentAddressedStorage storage;
+    private final PinnedRoots roots;
+    private final long bytesPerSecond;
+    private final Optional<Path> checkpoint;
+
+    private final AtomicLong passes = new AtomicLong(0);
+    private final AtomicLong blocksChecked = new AtomicLong(0);
+    private final AtomicLong bytesChecked = new AtomicLong(0);
+    private final AtomicLong corruptBlocks = new AtomicLong(0);
+    private final AtomicLong missingBlocks = new AtomicLong(0);
+    private final AtomicLong repairedFragments = new AtomicLong(0);
+    private final AtomicLong unrepairableChunks = new AtomicLong(0);
+    // corrupt or missing blocks which haven't been repaired
+    private final Set<Multihash> damaged = Collections.synchronizedSet(new LinkedHashSet<>());
+    private volatile boolean running = true;
+    private long nextReadNanos = System.nanoTime();
+
+    /** What we have learnt about blocks in the current pass */
+    private static final class Pass {
+        // blocks shared between roots, like the unchanged parts of successive versions of a tree, are only checked once
+        public final Set<Multihash> visited = new HashSet<>();
+        // the visited blocks which were found damaged and haven't been repaired
+        public final Set<Multihash> lost = new HashSet<>();
+
+        public boolean visit(Multihash hash) {
+            if (visited.size() >= MAX_VISITED)
+                visited.clear();
+            return visited.add(hash);
+        }
+    }
+
+    /**
+     *
+     * @param bytesPerSecond the most block data to read per second
+     * @param checkpoint where to record progress through the current pass
+     */
+    public Scrubber(ContentAddressedStorage storage, PinnedRoots roots, long bytesPerSecond, Optional<Path> checkpoint) {
+        if (bytesPerSecond <= 0)
+            throw new IllegalArgumentException("Scrub rate must be positive!");
+        this.storage = storage;
+        this.roots = roots;
+        this.bytesPerSecond = bytesPerSecond;
+        this.checkpoint = checkpoint;
+    }
+
+    public void start() {
+        Thread scrubber = new Thread(this, "Scrubber");
+        scrubber.setDaemon(true);
+        scrubber.start();
+    }
+
+    public void stop() {
+        running = false;
+    }
+
+    @Override
+    public void run() {
+        while (running) {
+            try {
+                scrub();
+                Thread.sleep(PASS_INTERVAL_MILLIS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (Exception e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /** Scrub every pinned root which hasn't been done in the current pass, then finish the pass
+     *
+     * @return whether the pass finished, rather than being stopped
+     */
+    public boolean scrub() throws IOException, InterruptedException {
+        Optional<String> done = readCheckpoint();
+        List<Multihash> todo;
+        try {
+            todo = roots.getPinnedRoots().get().stream()
+                    .filter(root -> ! done.isPresent() || root.toString().compareTo(done.get()) > 0)
+                    .sorted(Comparator.comparing(Multihash::toString))
+                    .collect(Collectors.toList());
+        } catch (ExecutionException e) {
+            throw new IOException(e.getCause());
+        }
+        Pass pass = new Pass();
+        for (Multihash root : todo) {
+            scrub(root, pass);
+            if (! running)
+                return false;
+            writeCheckpoint(root.toString());
+        }
+        passes.incrementAndGet();
+        if (checkpoint.isPresent())
+            Files.deleteIfExists(checkpoint.get());
+        if (LOGGING)
+            System.out.println("Scrub pass complete: " + metrics());
+        return true;
+    }
+
+    private void scrub(Multihash root, Pass pass) throws InterruptedException {
+        Deque<Multihash> toVisit = new ArrayDeque<>();
+        toVisit.push(root);
+        while (! toVisit.isEmpty() && running) {
+            Multihash next = toVisit.pop();
+            if (! pass.visit(next))
+                continue;
+            Optional<byte[]> block = check(next, pass);
+            if (! block.isPresent() || isRaw(next))
+                continue;
+            CborObject cbor;
+            try {
+                cbor = CborObject.fromByteArray(block.get());
+            } catch (RuntimeException e) {
+                // an intact block which isn't cbor has no links for us to follow
+                continue;
+            }
+            Optional<EncryptedChunkRetriever> chunk = getChunkRetriever(cbor, next);
+            if (chunk.isPresent())
+                scrubFragments(chunk.get(), pass);
+            for (Multihash link : cbor.links())
+                toVisit.push(link);
+        }
+    }
+
+    /** Check all the fragments of a chunk together, so lost ones can be rebuilt from the rest. Each fragment is only
+     *  read once per pass, unless a newly lost fragment of the same chunk needs it for a rebuild. */
+    private void scrubFragments(EncryptedChunkRetriever chunk, Pass pass) throws InterruptedException {
+        List<Multihash> hashes = chunk.getFragmentHashes();
+        byte[][] fragments = new byte[hashes.size()][];
+        List<Integer> lost = new ArrayList<>();
+        boolean newlyLost = false;
+        for (int i=0; i < fragments.length; i++) {
+            Multihash hash = hashes.get(i);
+            if (! pass.visit(hash)) {
+                if (pass.lost.contains(hash))
+                    lost.add(i);
+                continue;
+            }
+            fragments[i] = check(hash, pass).orElse(null);
+            if (fragments[i] == null) {
+                lost.add(i);
+                newlyLost = true;
+            }
+        }
+        // any lost fragments we already knew about had their rebuild attempted when we first found them
+        if (! newlyLost)
+            return;
+        for (int i=0; i < fragments.length; i++)
+            if (fragments[i] == null && ! lost.contains(i)) {
+                fragments[i] = check(hashes.get(i), pass).orElse(null);
+                if (fragments[i] == null)
+                    lost.add(i);
+            }
+        byte[][] repaired;
+        try {
+            repaired = chunk.getFragmenter().repair(fragments);
+        } catch (RuntimeException e) {
+            unrepairableChunks.incrementAndGet();
+            if (LOGGING)
+                System.out.println("Scrubber couldn't rebuild " + lost.size() + " lost fragments: " + e.getMessage());
+            return;
+        }
+        for (int i : lost) {
+            Multihash hash = hashes.get(i);
+            if (! matches(hash, repaired[i])) {
+                unrepairableChunks.incrementAndGet();
+                if (LOGGING)
+                    System.out.println("Scrubber rebuilt a fragment which doesn't match its hash " + hash);
+                return;
+            }
+        }
+        boolean allPutBack = true;
+        for (int i : lost) {
+            Multihash hash = hashes.get(i);
+            if (! putBack(hash, repaired[i])) {
+                allPutBack = false;
+                if (LOGGING)
+                    System.out.println("Scrubber rebuilt fragment " + hash + " but couldn't put it back");
+                continue;
+            }
+            damaged.remove(hash);
+            pass.lost.remove(hash);
+            repairedFragments.incrementAndGet();
+            if (LOGGING)
+                System.out.println("Scrubber rebuilt fragment " + hash);
+        }
+        if (! allPutBack)
+            unrepairableChunks.incrementAndGet();
+    }
+
+    /** A plain put is a no-op for a block the store already has, even if its copy is damaged, as in ipfs. So a block
+     *  only counts as put back once we have read it back intact.
+     *
+     * @return whether the store now holds an intact copy of the block
+     */
+    private boolean putBack(Multihash hash, byte[] block) throws InterruptedException {
+        try {
+            if (storage instanceof SegmentedFileStorage && hash instanceof Cid)
+                ((SegmentedFileStorage) storage).replace((Cid) hash, block);
+            else
+                storage.putRaw(PublicKeyHash.NULL, block).get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            Optional<byte[]> stored = storage.getRaw(hash).get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+            return stored.isPresent() && stored.get().length > 0 && matches(hash, stored.get());
+        } catch (IOException | ExecutionException | TimeoutException e) {
+            return false;
+        }
+    }
+
+    /**
+     *
+     * @return the block's data if it is present and matches its hash
+     */
+    private Optional<byte[]> check(Multihash hash, Pass pass) throws InterruptedException {
+        Optional<byte[]> block;
+        try {
+            block = storage.getRaw(hash).get(READ_TIMEOUT_SECONDS, TimeUnit.SECONDS);
+        } catch (ExecutionException | TimeoutException e) {
+            // e.g. a truncated segment, or ipfs refusing to return a block that fails its own check
+            block = Optional.empty();
+        }
+        byte[] data = block.orElse(new byte[0]);
+        throttle(data.length);
+        blocksChecked.incrementAndGet();
+        bytesChecked.addAndGet(data.length);
+        if (data.length == 0 && ! matches(hash, data)) {
+            missingBlocks.incrementAndGet();
+            pass.lost.add(hash);
+            record(hash, "missing");
+            return Optional.empty();
+        }
+        if (hash.type == Multihash.Type.sha2_256 && ! matches(hash, data)) {
+            corruptBlocks.incrementAndGet();
+            pass.lost.add(hash);
+            record(hash, "corrupt");
+            return Optional.empty();
+        }
+        return Optional.of(data);
+    }
+
+    private void record(Multihash hash, String problem) {
+        damaged.add(hash);
+        if (LOGGING)
+            System.out.println("Scrubber found " + problem + " block " + hash);
+    }
+
+    /** Sleep for long enough that we average at most bytesPerSecond */
+    private void throttle(int bytes) throws InterruptedException {
+        long now = System.nanoTime();
+        nextReadNanos = Math.max(nextReadNanos, now) + bytes * 1_000_000_000L / bytesPerSecond;
+        long wait = nextReadNanos - now;
+        if (wait > 0)
+            Thread.sleep(wait / 1_000_000, (int) (wait % 1_000_000));
+    }
+
+    private static boolean matches(Multihash hash, byte[] data) {
+        if (hash.type != Multihash.Type.sha2_256)
+            return true;
+        Multihash actual = new Multihash(Multihash.Type.sha2_256, RAMStorage.hash(data));
+        // compare the bare multihashes, a cid's codec isn't part of the hash
+        return Arrays.equals(new Multihash(hash).toBytes(), actual.toBytes());
+    }
+
+    private static boolean isRaw(Multihash hash) {
+        return hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+    }
+
+    /**
+     *
+     * @return the retriever of a block which is a file's cryptree node with erasure coded fragments
+     */
+    private static Optional<EncryptedChunkRetriever> getChunkRetriever(CborObject cbor, Multihash hash) {
+        if (! (cbor instanceof CborObject.CborList))
+            return Optional.empty();
+        List<CborObject> fields = ((CborObject.CborList) cbor).value;
+        if (fields.isEmpty() || ! (fields.get(0) instanceof CborObject.CborLong))
+            return Optional.empty();
+        boolean isFile = (((CborObject.CborLong) fields.get(0)).value & 1) != 0;
+        if (! isFile)
+            return Optional.empty();
+        try {
+            FileRetriever retriever = FileAccess.fromCbor(cbor, hash).retriever();
+            return retriever instanceof EncryptedChunkRetriever ?
+                    Optional.of((EncryptedChunkRetriever) retriever) :
+                    Optional.empty();
+        } catch (RuntimeException e) {
+            // some other list which happens to start with an odd number
+            return Optional.empty();
+        }
+    }
+
+    /**
+     *
+     * @return the last root finished in the current pass
+     */
+    private Optional<String> readCheckpoint() throws IOException {
+        if (! checkpoint.isPresent() || ! Files.exists(checkpoint.get()))
+            return Optional.empty();
+        return Files.readAllLines(checkpoint.get()).stream()
+                .filter(line -> ! line.isEmpty())
+                .findFirst();
+    }
+
+    private void writeCheckpoint(String lastRoot) throws IOException {
+        if (! checkpoint.isPresent())
+            return;
+        Path target = checkpoint.get();
+        Path tmp = target.resolveSibling(target.getFileName() + ".tmp");
+        Files.write(tmp, Collections.singletonList(lastRoot));
+        Files.move(tmp, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     *
+     * @return the corrupt or missing blocks which haven't been repaired
+     */
+    public Set<Multihash> getDamagedBlocks() {
+        synchronized (damaged) {
+            return new HashSet<>(damaged);
+        }
+    }
+
+    public Map<String, Long> metrics() {
+        Map<String, Long> res = new LinkedHashMap<>();
+        res.put("passes", passes.get());
+        res.put("blocksChecked", blocksChecked.get());
+        res.put("bytesChecked", bytesChecked.get());
+        res.put("corruptBlocks", corruptBlocks.get());
+        res.put("missingBlocks", missingBlocks.get());
+        res.put("repairedFragments", repairedFragments.get());
+        res.put("unrepairableChunks", unrepairableChunks.get());
+        res.put("damagedBlocks", (long) damaged.size());
+        return res;
+    }
+}
@@ -0,0 +1,435 @@
+package peergos.server.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multiaddr.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.ContentAddressedStorage;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+import java.util.zip.*;
+
+/** A local disk block store. Blocks are appended to a series of segment files and located through an in memory
+ *  index which is rebuilt by scanning the segments on startup.
+ *
+ *  Each record in a segment is: magic(4) | cid length(4) | data length(4) | crc32 of cid and data(4) | cid | data
+ *
+ *  Pins and unpins are records with their own magic and no data, replayed in order on startup to rebuild the pin set.
+ *
+ *  Only the active (last) segment can have a torn tail after a crash; it is checksummed on startup and truncated
+ *  after the last complete record. Earlier segments are forced to disk before a new segment is started.
+ */
+public class SegmentedFileStorage implements ContentAddressedStorage, FileRegionStorage, PinnedRoots, Closeable {
+    private static final boolean LOGGING = true;
+    private static final int RECORD_MAGIC = 0x50475342;
+    private static final int PIN_MAGIC = 0x50475350;
+    private static final int UNPIN_MAGIC = 0x50475355;
+    private static final int HEADER_SIZE = 16;
+    private static final int MAX_CID_LENGTH = 128;
+    public static final long DEFAULT_SEGMENT_SIZE = 256 * 1024 * 1024;
+    private static final String SEGMENT_PREFIX = "segment-";
+    private static final String SEGMENT_SUFFIX = ".log";
+
+    private static final class Position implements Comparable<Position> {
+        public final int segment;
+        public final long offset;
+
+        public Position(int segment, long offset) {
+            this.segment = segment;
+            this.offset = offset;
+        }
+
+        @Override
+        public int compareTo(Position other) {
+            if (segment != other.segment)
+                return Integer.compare(segment, other.segment);
+            return Long.compare(offset, other.offset);
+        }
+    }
+
+    private static final class BlockLocation {
+        public final int segment;
+        public final long offset;
+        public final int length;
+
+        public BlockLocation(int segment, long offset, int length) {
+            this.segment = segment;
+            this.offset = offset;
+            this.length = length;
+        }
+    }
+
+    private final Path dir;
+    private final long maxSegmentSize;
+    private final Map<Multihash, BlockLocation> index = new ConcurrentHashMap<>();
+    private final Map<Integer, FileChannel> segments = new ConcurrentHashMap<>();
+    private final Set<Multihash> pinnedRoots = ConcurrentHashMap.newKeySet();
+
+    // guards appends and the current segment
+    private final Object writeLock = new Object();
+    private int currentSegment;
+    private long writePosition;
+    private volatile Position appended;
+
+    // guards fsync, concurrent writers that arrive while a sync is in progress share the next one
+    private final Object syncLock = new Object();
+    private Position synced;
+
+    public SegmentedFileStorage(Path dir, long maxSegmentSize) throws IOException {
+        this.dir = dir;
+        this.maxSegmentSize = maxSegmentSize;
+        Files.createDirectories(dir);
+        List<Integer> existing = listSegments(dir);
+        for (int i=0; i < existing.size(); i++)
+            recover(existing.get(i), i == existing.size() - 1);
+        this.currentSegment = existing.isEmpty() ? 0 : existing.get(existing.size() - 1);
+        this.writePosition = openSegment(currentSegment).size();
+        this.appended = new Position(currentSegment, writePosition);
+        this.synced = appended;
+        if (LOGGING)
+            System.out.println("Opened block store at " + dir + " with " + index.size() + " blocks in "
+                    + (currentSegment + 1) + " segments");
+    }
+
+    public SegmentedFileStorage(Path dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks) {
+        return put(writer, blocks, false);
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> blocks) {
+        return put(writer, blocks, true);
+    }
+
+    private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks, boolean isRaw) {
+        CompletableFuture<List<Multihash>> res = new CompletableFuture<>();
+        try {
+            List<Multihash> hashes = new ArrayList<>(blocks.size());
+            Position written = null;
+            synchronized (writeLock) {
+                for (byte[] block : blocks) {
+                    Cid cid = RAMStorage.hashToCid(block, isRaw);
+                    hashes.add(cid);
+                    if (index.containsKey(cid))
+                        continue;
+                    append(cid, block);
+                    written = appended;
+                }
+            }
+            if (written != null)
+                sync(written);
+            res.complete(hashes);
+        } catch (IOException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    /** Write a block even if we already have it, so that it replaces a damaged copy. This is how the scrubber repairs
+     *  blocks, a normal put of a block we already have is a no-op.
+     */
+    public void replace(Cid cid, byte[] block) throws IOException {
+        if (! RAMStorage.hashToCid(block, cid.codec == Cid.Codec.Raw).equals(cid))
+            throw new IllegalArgumentException("Replacement block doesn't match its hash " + cid);
+        Position written;
+        synchronized (writeLock) {
+            append(cid, block);
+            written = appended;
+        }
+        sync(written);
+    }
+
+    /** Must be called with the write lock held */
+    private void append(Cid cid, byte[] data) throws IOException {
+        append(RECORD_MAGIC, cid, data);
+        index.put(cid, new BlockLocation(appended.segment, appended.offset - data.length, data.length));
+    }
+
+    /** Must be called with the write lock held */
+    private void append(int magic, Multihash hash, byte[] data) throws IOException {
+        byte[] cidBytes = hash.toBytes();
+        int recordSize = HEADER_SIZE + cidBytes.length + data.length;
+        if (writePosition > 0 && writePosition + recordSize > maxSegmentSize)
+            rollSegment();
+
+        CRC32 crc = new CRC32();
+        crc.update(cidBytes);
+        crc.update(data);
+        ByteBuffer record = ByteBuffer.allocate(recordSize);
+        record.putInt(magic);
+        record.putInt(cidBytes.length);
+        record.putInt(data.length);
+        record.putInt((int) crc.getValue());
+        record.put(cidBytes);
+        record.put(data);
+        record.flip();
+
+        FileChannel channel = segments.get(currentSegment);
+        long start = writePosition;
+        while (record.hasRemaining())
+            start += channel.write(record, start);
+        writePosition = start;
+        appended = new Position(currentSegment, writePosition);
+    }
+
+    /** Must be called with the write lock held */
+    private void rollSegment() throws IOException {
+        FileChannel old = segments.get(currentSegment);
+        old.force(false);
+        openSegment(currentSegment + 1);
+        currentSegment++;
+        writePosition = 0;
+        appended = new Position(currentSegment, writePosition);
+    }
+
+    /** Make everything up to target durable, syncing whatever else has been appended since in the same call */
+    private void sync(Position target) throws IOException {
+        synchronized (syncLock) {
+            if (synced.compareTo(target) >= 0)
+                return;
+            Position upTo = appended;
+            if (upTo.segment == target.segment)
+                segments.get(upTo.segment).force(false);
+            // otherwise the target segment was forced when it was rolled, and anything after it will be synced by its own writer
+            synced = upTo.segment == target.segment ? upTo : target;
+        }
+    }
+
+    private FileChannel openSegment(int segment) throws IOException {
+        FileChannel existing = segments.get(segment);
+        if (existing != null)
+            return existing;
+        FileChannel channel = FileChannel.open(segmentPath(segment),
+                StandardOpenOption.CREATE, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segments.put(segment, channel);
+        return channel;
+    }
+
+    private Path segmentPath(int segment) {
+        return dir.resolve(String.format("%s%08d%s", SEGMENT_PREFIX, segment, SEGMENT_SUFFIX));
+    }
+
+    private static List<Integer> listSegments(Path dir) throws IOException {
+        try (Stream<Path> files = Files.list(dir)) {
+            return files.map(p -> p.getFileName().toString())
+                    .filter(name -> name.startsWith(SEGMENT_PREFIX) && name.endsWith(SEGMENT_SUFFIX))
+                    .map(name -> Integer.parseInt(name.substring(SEGMENT_PREFIX.length(), name.length() - SEGMENT_SUFFIX.length())))
+                    .sorted()
+                    .collect(Collectors.toList());
+        }
+    }
+
+    /** Rebuild the index entries for a segment, checksumming and truncating a torn tail if this is the active segment */
+    private void recover(int segment, boolean isActive) throws IOException {
+        FileChannel channel = openSegment(segment);
+        long size = channel.size();
+        long position = 0;
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+        while (position < size) {
+            header.clear();
+            if (!readFully(channel, header, position))
+                break;
+            header.flip();
+            int magic = header.getInt();
+            int cidLength = header.getInt();
+            int dataLength = header.getInt();
+            int checksum = header.getInt();
+            boolean isPin = magic == PIN_MAGIC || magic == UNPIN_MAGIC;
+            if ((magic != RECORD_MAGIC && ! isPin) || cidLength <= 0 || cidLength > MAX_CID_LENGTH || dataLength < 0
+                    || position + HEADER_SIZE + cidLength + dataLength > size)
+                break;
+            ByteBuffer body = ByteBuffer.allocate(cidLength + (isActive ? dataLength : 0));
+            if (!readFully(channel, body, position + HEADER_SIZE))
+                break;
+            byte[] bodyBytes = body.array();
+            if (isActive) {
+                CRC32 crc = new CRC32();
+                crc.update(bodyBytes);
+                if ((int) crc.getValue() != checksum)
+                    break;
+            }
+            Cid cid;
+            try {
+                cid = Cid.cast(Arrays.copyOfRange(bodyBytes, 0, cidLength));
+            } catch (Cid.CidEncodingException e) {
+                break;
+            }
+            if (magic == PIN_MAGIC)
+                pinnedRoots.add(cid);
+            else if (magic == UNPIN_MAGIC)
+                pinnedRoots.remove(cid);
+            else
+                index.put(cid, new BlockLocation(segment, position + HEADER_SIZE + cidLength, dataLength));
+            position += HEADER_SIZE + cidLength + dataLength;
+        }
+        if (position < size) {
+            if (isActive) {
+                System.err.println("Truncating block store segment " + segmentPath(segment) + " from " + size
+                        + " to last complete record at " + position);
+                channel.truncate(position);
+                channel.force(true);
+            } else
+                System.err.println("Ignoring corrupt data in block store segment " + segmentPath(segment)
+                        + " after offset " + position);
+        }
+    }
+
+    private static boolean readFully(FileChannel channel, ByteBuffer dest, long position) throws IOException {
+        while (dest.hasRemaining()) {
+            int read = channel.read(dest, position);
+            if (read < 0)
+                return false;
+            position += read;
+        }
+        return true;
+    }
+
+    private Optional<byte[]> read(Multihash hash) throws IOException {
+        BlockLocation location = index.get(hash);
+        if (location == null)
+            return Optional.empty();
+        ByteBuffer data = ByteBuffer.allocate(location.length);
+        if (!readFully(segments.get(location.segment), data, location.offset))
+            throw new EOFException("Block " + hash + " truncated in segment " + location.segment);
+        return Optional.of(data.array());
+    }
+
+    @Override
+    public Optional<Region> getRegion(Multihash hash) {
+        BlockLocation location = index.get(hash);
+        if (location == null)
+            return Optional.empty();
+        return Optional.of(new Region(segments.get(location.segment), location.offset, location.length));
+    }
+
+    @Override
+    public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+        CompletableFuture<Optional<byte[]>> res = new CompletableFuture<>();
+        try {
+            res.complete(read(hash));
+        } catch (IOException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        CompletableFuture<List<Optional<byte[]>>> res = new CompletableFuture<>();
+        try {
+            List<Optional<byte[]>> blocks = new ArrayList<>(hashes.size());
+            for (Multihash hash : hashes)
+                blocks.add(read(hash));
+            res.complete(blocks);
+        } catch (IOException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
+        if (hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw)
+            throw new IllegalStateException("Need to call getRaw if cid is not cbor!");
+        return getRaw(hash).thenApply(opt -> opt.map(CborObject::fromByteArray));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> getLinks(Multihash root) {
+        if (root instanceof Cid && ((Cid) root).codec == Cid.Codec.Raw)
+            return CompletableFuture.completedFuture(Collections.emptyList());
+        return get(root).thenApply(opt -> opt
+                .map(cbor -> cbor.links())
+                .orElse(Collections.emptyList())
+        );
+    }
+
+    @Override
+    public CompletableFuture<Optional<Integer>> getSize(Multihash block) {
+        BlockLocation location = index.get(block);
+        return CompletableFuture.completedFuture(Optional.ofNullable(location).map(l -> l.length));
+    }
+
+    /** Record a pin or unpin durably, in the log along with the blocks */
+    private <T> CompletableFuture<T> updatePins(int magic, Multihash h, T result) {
+        CompletableFuture<T> res = new CompletableFuture<>();
+        try {
+            Position written;
+            synchronized (writeLock) {
+                append(magic, h, new byte[0]);
+                if (magic == PIN_MAGIC)
+                    pinnedRoots.add(h);
+                else
+                    pinnedRoots.remove(h);
+                written = appended;
+            }
+            sync(written);
+            res.complete(result);
+        } catch (IOException e) {
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursivePin(Multihash h) {
+        return updatePins(PIN_MAGIC, h, Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<List<Multihash>> recursiveUnpin(Multihash h) {
+        return updatePins(UNPIN_MAGIC, h, Arrays.asList(h));
+    }
+
+    @Override
+    public CompletableFuture<Set<Multihash>> getPinnedRoots() {
+        return CompletableFuture.completedFuture(new HashSet<>(pinnedRoots));
+    }
+
+    @Override
+    public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
+        return updatePins(PIN_MAGIC, updated, Arrays.asList(new MultiAddress("/ipfs/"+existing), new MultiAddress("/ipfs/"+updated)));
+    }
+
+    public int size() {
+        return index.size();
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (writeLock) {
+            for (FileChannel channel : segments.values()) {
+                channel.force(false);
+                channel.close();
+            }
+            segments.clear();
+        }
+        synchronized (SegmentedFileStorage.class) {
+            open.remove(dir.toAbsolutePath().normalize(), this);
+        }
+    }
+
+    private static final Map<Path, SegmentedFileStorage> open = new HashMap<>();
+
+    /** Stores opened through here are shared within the process, e.g. between a colocated core node and server */
+    public static synchronized SegmentedFileStorage open(Path dir) throws IOException {
+        Path key = dir.toAbsolutePath().normalize();
+        SegmentedFileStorage existing = open.get(key);
+        if (existing != null)
+            return existing;
+        SegmentedFileStorage store = new SegmentedFileStorage(key);
+        open.put(key, store);
+        return store;
+    }
+}
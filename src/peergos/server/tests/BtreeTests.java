@@ -0,0 +1,191 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.corenode.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.corenode.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.mutable.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
+
+public class BtreeTests {
+    private static Random random = new Random(7);
+
+    private static byte[] randomKey() {
+        byte[] key = new byte[32];
+        random.nextBytes(key);
+        return key;
+    }
+
+    private static class CountingPointers implements MutablePointers {
+        private final MutablePointers target;
+        public final AtomicInteger sets = new AtomicInteger(0);
+        // pointer updates wait for this
+        public volatile CompletableFuture<Boolean> gate = CompletableFuture.completedFuture(true);
+
+        public CountingPointers(MutablePointers target) {
+            this.target = target;
+        }
+
+        @Override
+        public CompletableFuture<Boolean> setPointer(PublicKeyHash owner, PublicKeyHash writer, byte[] signed) {
+            sets.incrementAndGet();
+            return gate.thenCompose(x -> target.setPointer(owner, writer, signed));
+        }
+
+        @Override
+        public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+            return target.getPointer(writer);
+        }
+    }
+
+    private static SigningPrivateKeyAndPublicHash createWriter(ContentAddressedStorage dht) throws Exception {
+        Crypto crypto = Crypto.initJava();
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = dht.putSigningKey(pair.publicSigningKey).get();
+        return new SigningPrivateKeyAndPublicHash(writerHash, pair.secretSigningKey);
+    }
+
+    @Test
+    public void queuedWritesCoalesce() throws Exception {
+        RAMStorage dht = new RAMStorage();
+        CountingPointers pointers = new CountingPointers(UserRepository.buildSqlLite(":memory:", dht, CoreNode.MAX_USERNAME_COUNT));
+        Btree btree = new BtreeImpl(pointers, dht);
+        SigningPrivateKeyAndPublicHash writer = createWriter(dht);
+        PublicKeyHash writerHash = writer.publicKeyHash;
+
+        byte[] first = randomKey();
+        Multihash firstValue = RAMStorage.hashToCid(first, true);
+        pointers.gate = new CompletableFuture<>();
+        CompletableFuture<Boolean> blocked = btree.put(writer, first, MaybeMultihash.empty(), firstValue);
+        Map<byte[], CompletableFuture<Boolean>> queued = new LinkedHashMap<>();
+        for (int i=0; i < 50; i++) {
+            byte[] key = randomKey();
+            queued.put(key, btree.put(writer, key, MaybeMultihash.empty(), RAMStorage.hashToCid(key, true)));
+        }
+        Assert.assertFalse("reads don't wait for writes", btree.get(writerHash, first).get().isPresent());
+        pointers.gate.complete(true);
+
+        Assert.assertTrue(blocked.get());
+        for (CompletableFuture<Boolean> put : queued.values())
+            Assert.assertTrue(put.get());
+        Assert.assertEquals("queued writes are committed together", 2, pointers.sets.get());
+        Assert.assertEquals(MaybeMultihash.of(firstValue), btree.get(writerHash, first).get());
+        for (byte[] key : queued.keySet())
+            Assert.assertEquals(MaybeMultihash.of(RAMStorage.hashToCid(key, true)), btree.get(writerHash, key).get());
+
+        // a cas failure only fails its own update
+        pointers.gate = new CompletableFuture<>();
+        byte[] next = randomKey();
+        CompletableFuture<Boolean> blockedAgain = btree.put(writer, next, MaybeMultihash.empty(), RAMStorage.hashToCid(next, true));
+        CompletableFuture<Boolean> conflict = btree.put(writer, first, MaybeMultihash.empty(), RAMStorage.hashToCid(next, true));
+        byte[] last = randomKey();
+        CompletableFuture<Boolean> after = btree.put(writer, last, MaybeMultihash.empty(), RAMStorage.hashToCid(last, true));
+        pointers.gate.complete(true);
+
+        Assert.assertTrue(blockedAgain.get());
+        Assert.assertTrue(after.get());
+        try {
+            conflict.get();
+            Assert.fail("Expected a CAS failure");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof Btree.CasException);
+        }
+        Assert.assertEquals(MaybeMultihash.of(firstValue), btree.get(writerHash, first).get());
+        Assert.assertEquals(MaybeMultihash.of(RAMStorage.hashToCid(last, true)), btree.get(writerHash, last).get());
+    }
+
+    @Test
+    public void rebaseConcurrentCommits() throws Exception {
+        RAMStorage dht = new RAMStorage();
+        MutablePointers shared = UserRepository.buildSqlLite(":memory:", dht, CoreNode.MAX_USERNAME_COUNT);
+        // two devices writing to the same subspace
+        CountingPointers pointers = new CountingPointers(shared);
+        Btree btree = new BtreeImpl(pointers, dht);
+        Btree other = new BtreeImpl(shared, dht);
+        SigningPrivateKeyAndPublicHash writer = createWriter(dht);
+        PublicKeyHash writerHash = writer.publicKeyHash;
+
+        byte[] key = randomKey();
+        Assert.assertTrue(btree.put(writer, key, MaybeMultihash.empty(), RAMStorage.hashToCid(key, true)).get());
+
+        // the other device commits while our commit is in flight
+        pointers.gate = new CompletableFuture<>();
+        byte[] ours = randomKey();
+        CompletableFuture<Boolean> put = btree.put(writer, ours, MaybeMultihash.empty(), RAMStorage.hashToCid(ours, true));
+        byte[] theirs = randomKey();
+        Assert.assertTrue(other.put(writer, theirs, MaybeMultihash.empty(), RAMStorage.hashToCid(theirs, true)).get());
+        pointers.gate.complete(true);
+        Assert.assertTrue("rebased onto the other commit", put.get());
+        for (byte[] k : Arrays.asList(key, ours, theirs))
+            Assert.assertEquals(MaybeMultihash.of(RAMStorage.hashToCid(k, true)), btree.get(writerHash, k).get());
+
+        // a concurrent change to the same key is a real conflict
+        pointers.gate = new CompletableFuture<>();
+        CompletableFuture<Boolean> conflict = btree.put(writer, key, MaybeMultihash.of(RAMStorage.hashToCid(key, true)),
+                RAMStorage.hashToCid(ours, true));
+        Assert.assertTrue(other.put(writer, key, MaybeMultihash.of(RAMStorage.hashToCid(key, true)),
+                RAMStorage.hashToCid(theirs, true)).get());
+        pointers.gate.complete(true);
+        try {
+            conflict.get();
+            Assert.fail("Expected a CAS failure");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof Btree.CasException);
+        }
+        Assert.assertEquals(MaybeMultihash.of(RAMStorage.hashToCid(theirs, true)), btree.get(writerHash, key).get());
+    }
+
+    @Test
+    public void transactionCommitsOnce() throws Exception {
+        RAMStorage dht = new RAMStorage();
+        CountingPointers pointers = new CountingPointers(UserRepository.buildSqlLite(":memory:", dht, CoreNode.MAX_USERNAME_COUNT));
+        Btree btree = new BtreeImpl(pointers, dht);
+        SigningPrivateKeyAndPublicHash writer = createWriter(dht);
+        PublicKeyHash writerHash = writer.publicKeyHash;
+
+        Map<byte[], Multihash> values = new LinkedHashMap<>();
+        Btree.Transaction transaction = btree.transaction(writer);
+        for (int i=0; i < 100; i++) {
+            byte[] key = randomKey();
+            Multihash value = RAMStorage.hashToCid(key, true);
+            values.put(key, value);
+            transaction.put(key, MaybeMultihash.empty(), value);
+        }
+        byte[] removed = values.keySet().iterator().next();
+        transaction.remove(removed, MaybeMultihash.of(values.get(removed)));
+        Assert.assertEquals(0, pointers.sets.get());
+        for (byte[] key : values.keySet())
+            Assert.assertFalse("staged puts aren't visible", btree.get(writerHash, key).get().isPresent());
+
+        Assert.assertTrue(transaction.commit().get());
+        Assert.assertEquals(1, pointers.sets.get());
+        Assert.assertEquals(0, transaction.size());
+        for (Map.Entry<byte[], Multihash> e : values.entrySet())
+            Assert.assertEquals(e.getKey() == removed ? MaybeMultihash.empty() : MaybeMultihash.of(e.getValue()),
+                    btree.get(writerHash, e.getKey()).get());
+
+        // a failed mutation aborts the whole batch
+        byte[] other = randomKey();
+        byte[] kept = new ArrayList<>(values.keySet()).get(1);
+        CompletableFuture<Boolean> conflict = btree.transaction(writer)
+                .put(other, MaybeMultihash.empty(), RAMStorage.hashToCid(other, true))
+                .put(kept, MaybeMultihash.empty(), RAMStorage.hashToCid(other, true))
+                .commit();
+        try {
+            conflict.get();
+            Assert.fail("Expected a CAS failure");
+        } catch (ExecutionException e) {}
+        Assert.assertFalse(btree.get(writerHash, other).get().isPresent());
+        Assert.assertEquals(1, pointers.sets.get());
+    }
+}
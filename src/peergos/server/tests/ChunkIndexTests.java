@@ -0,0 +1,51 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+public class ChunkIndexTests {
+    private final Random random = new Random(19);
+
+    private List<byte[]> mapKeys(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] key = new byte[32];
+                    random.nextBytes(key);
+                    return key;
+                }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void smallFilesIndexEveryChunk() {
+        List<byte[]> keys = mapKeys(ChunkIndex.MAX_ENTRIES);
+        ChunkIndex index = ChunkIndex.build(PublicKeyHash.NULL, PublicKeyHash.NULL, keys);
+        Assert.assertEquals(keys.size() - 1, index.lastChunk());
+        for (int i=0; i < keys.size(); i++) {
+            Assert.assertEquals(i, index.floor(i));
+            Assert.assertTrue(Arrays.equals(keys.get(i), index.getLocation(i).get().getMapKey()));
+        }
+    }
+
+    @Test
+    public void largeFilesHaveBoundedIndex() {
+        List<byte[]> keys = mapKeys(1000);
+        ChunkIndex index = ChunkIndex.build(PublicKeyHash.NULL, PublicKeyHash.NULL, keys);
+        // every 4th chunk
+        Assert.assertEquals(996, index.lastChunk());
+        Assert.assertTrue(index.serialize().length < ChunkIndex.MAX_ENTRIES * 40);
+        Assert.assertEquals(4, index.floor(7));
+        Assert.assertEquals(8, index.floor(8));
+        Assert.assertEquals("beyond the end of the index", 996, index.floor(2000));
+        Assert.assertFalse(index.getLocation(5).isPresent());
+        Assert.assertTrue(Arrays.equals(keys.get(8), index.getLocation(8).get().getMapKey()));
+
+        ChunkIndex parsed = ChunkIndex.fromCbor(CborObject.fromByteArray(index.serialize()));
+        Assert.assertEquals(index.lastChunk(), parsed.lastChunk());
+        Assert.assertTrue(Arrays.equals(keys.get(996), parsed.getLocation(996).get().getMapKey()));
+    }
+}
@@ -0,0 +1,119 @@
+package peergos.server.tests;
+
+import com.sun.net.httpserver.*;
+import org.junit.*;
+import peergos.server.net.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.*;
+
+import java.io.*;
+import java.net.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class DHTHandlerTests {
+    private static final int PORT = 5680;
+
+    private final Random random = new Random(3);
+    private final RAMStorage storage = new RAMStorage();
+    private final HttpServer server;
+    private final HttpPoster poster;
+    private final ContentAddressedStorage client;
+
+    public DHTHandlerTests() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", PORT), 10);
+        server.createContext("/api/v0/", new DHTHandler(storage));
+        server.setExecutor(Executors.newFixedThreadPool(2));
+        server.start();
+        poster = new JavaPoster(new URL("http://localhost:" + PORT + "/"));
+        client = new ContentAddressedStorage.HTTP(poster);
+    }
+
+    @After
+    public void finish() {
+        server.stop(0);
+    }
+
+    private byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void missingBlocksAreNull() throws Exception {
+        List<Optional<byte[]>> blocks = Arrays.asList(Optional.of(randomBlock(10)), Optional.empty());
+        CborObject.CborList cbor = (CborObject.CborList) ContentAddressedStorage.HTTP.serializeBlocks(blocks);
+        Assert.assertTrue(cbor.value.get(1) instanceof CborObject.CborNull);
+
+        List<Optional<byte[]>> parsed = ContentAddressedStorage.HTTP.parseBlocks(CborObject.fromByteArray(cbor.toByteArray()));
+        Assert.assertTrue(Arrays.equals(blocks.get(0).get(), parsed.get(0).get()));
+        Assert.assertFalse(parsed.get(1).isPresent());
+    }
+
+    @Test
+    public void getMany() throws Exception {
+        byte[] first = randomBlock(1000), second = randomBlock(2000);
+        List<Multihash> stored = client.putRaw(PublicKeyHash.NULL, Arrays.asList(first, second)).get();
+        Multihash missing = RAMStorage.hashToCid(randomBlock(10), true);
+
+        List<Optional<byte[]>> blocks = client.getMany(Arrays.asList(stored.get(0), missing, stored.get(1))).get();
+        Assert.assertEquals(3, blocks.size());
+        Assert.assertTrue(Arrays.equals(first, blocks.get(0).get()));
+        Assert.assertFalse(blocks.get(1).isPresent());
+        Assert.assertTrue(Arrays.equals(second, blocks.get(2).get()));
+    }
+
+    @Test
+    public void getManySplitsLargeRequests() throws Exception {
+        List<byte[]> data = IntStream.range(0, ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY * 2 + 1)
+                .mapToObj(i -> randomBlock(100))
+                .collect(Collectors.toList());
+        List<Multihash> hashes = storage.putRaw(PublicKeyHash.NULL, data).get();
+
+        List<Optional<byte[]>> blocks = client.getMany(hashes).get();
+        Assert.assertEquals(data.size(), blocks.size());
+        for (int i=0; i < data.size(); i++)
+            Assert.assertTrue(Arrays.equals(data.get(i), blocks.get(i).get()));
+    }
+
+    @Test
+    public void oversizedGetManyRejected() throws Exception {
+        List<CborObject> links = IntStream.range(0, ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY * 4)
+                .mapToObj(i -> new CborObject.CborMerkleLink(RAMStorage.hashToCid(randomBlock(10), true)))
+                .collect(Collectors.toList());
+        byte[] request = new CborObject.CborList(links).toByteArray();
+        try {
+            poster.post("api/v0/block/get-many", request, false).get();
+            Assert.fail("Accepted a request for too many blocks");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IOException);
+        }
+    }
+
+    @Test
+    public void exportDag() throws Exception {
+        List<byte[]> leaves = IntStream.range(0, 100)
+                .mapToObj(i -> randomBlock(1000))
+                .collect(Collectors.toList());
+        Multihash root = DagExportTests.storeTree(storage, leaves);
+        DagExport.Export local = storage.exportDag(root, 1, Long.MAX_VALUE).get();
+
+        DagExport.Export remote = client.exportDag(root, 1, Long.MAX_VALUE).get();
+        Assert.assertFalse(remote.truncated);
+        Assert.assertEquals(local.blocks.size(), remote.blocks.size());
+        for (int i=0; i < local.blocks.size(); i++) {
+            Assert.assertEquals(local.blocks.get(i).left, remote.blocks.get(i).left);
+            Assert.assertTrue(Arrays.equals(local.blocks.get(i).right, remote.blocks.get(i).right));
+        }
+
+        DagExport.Export partial = client.exportDag(root, 1, 50_000).get();
+        Assert.assertTrue(partial.truncated);
+        Assert.assertTrue(partial.blocks.size() < local.blocks.size());
+    }
+}
@@ -0,0 +1,131 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class DagExportTests {
+    private final Random random = new Random(11);
+
+    /** Records the size of each getMany */
+    private static class CountingStorage extends RAMStorage {
+        public final List<Integer> batches = new ArrayList<>();
+
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+            batches.add(hashes.size());
+            return super.getMany(hashes);
+        }
+    }
+
+    private byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        return block;
+    }
+
+    /** A root linking to each of the leaves, stored as raw blocks */
+    public static Multihash storeTree(ContentAddressedStorage storage, List<byte[]> leaves) throws Exception {
+        List<Multihash> hashes = storage.putRaw(PublicKeyHash.NULL, leaves).get();
+        CborObject root = new CborObject.CborList(hashes.stream()
+                .map(CborObject.CborMerkleLink::new)
+                .collect(Collectors.toList()));
+        return storage.put(PublicKeyHash.NULL, root.toByteArray()).get();
+    }
+
+    private List<byte[]> leaves(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> randomBlock(100))
+                .collect(Collectors.toList());
+    }
+
+    @Test
+    public void wideLevelsAreFetchedInBatches() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        List<byte[]> leaves = leaves(150);
+        Multihash root = storeTree(storage, leaves);
+
+        List<Pair<Multihash, byte[]>> exported = new ArrayList<>();
+        boolean complete = DagExport.walk(storage, root, 1, Long.MAX_VALUE, exported::add).get();
+        Assert.assertTrue(complete);
+        Assert.assertEquals(1 + leaves.size(), exported.size());
+        Assert.assertEquals(root, exported.get(0).left);
+        for (int i=0; i < leaves.size(); i++)
+            Assert.assertTrue(Arrays.equals(leaves.get(i), exported.get(i + 1).right));
+        Assert.assertTrue(storage.batches.stream().allMatch(size -> size <= ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY));
+    }
+
+    @Test
+    public void stopsAtByteBudget() throws Exception {
+        CountingStorage storage = new CountingStorage();
+        Multihash root = storeTree(storage, leaves(500));
+        int rootSize = storage.getSize(root).get().get();
+
+        List<Pair<Multihash, byte[]>> exported = new ArrayList<>();
+        boolean complete = DagExport.walk(storage, root, 1, rootSize + 1050, exported::add).get();
+        Assert.assertFalse(complete);
+        Assert.assertEquals(11, exported.size());
+        // the root, then only the first batch of its children
+        Assert.assertEquals(Arrays.asList(1, ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY), storage.batches);
+
+        DagExport.Export all = storage.exportDag(root, 0, rootSize).get();
+        Assert.assertEquals(1, all.blocks.size());
+        Assert.assertFalse("nothing deeper was asked for", all.truncated);
+    }
+
+    @Test
+    public void missingBlockTruncatesExport() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        List<byte[]> leaves = leaves(3);
+        Multihash root = storeTree(storage, leaves);
+        Multihash absent = RAMStorage.hashToCid(leaves.get(1), true);
+        RAMStorage missingOne = new RAMStorage() {
+            @Override
+            public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+                return storage.getMany(hashes).thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> hashes.get(i).equals(absent) ? Optional.<byte[]>empty() : blocks.get(i))
+                        .collect(Collectors.toList()));
+            }
+        };
+
+        DagExport.Export export = missingOne.exportDag(root, 1, Long.MAX_VALUE).get();
+        Assert.assertEquals("the blocks we have are still exported", 3, export.blocks.size());
+        Assert.assertTrue(export.truncated);
+    }
+
+    @Test
+    public void framesRoundTrip() throws Exception {
+        RAMStorage storage = new RAMStorage();
+        Multihash root = storeTree(storage, leaves(3));
+        DagExport.Export local = storage.exportDag(root, 1, Long.MAX_VALUE).get();
+
+        ByteArrayOutputStream bout = new ByteArrayOutputStream();
+        DataOutputStream dout = new DataOutputStream(bout);
+        for (Pair<Multihash, byte[]> block : local.blocks)
+            DagExport.writeFrame(block.left, block.right, dout);
+        byte[] unterminated = bout.toByteArray();
+        DagExport.writeEnd(true, dout);
+
+        DagExport.Export read = DagExport.readFrames(bout.toByteArray());
+        Assert.assertTrue(read.truncated);
+        Assert.assertEquals(local.blocks.size(), read.blocks.size());
+        for (int i=0; i < local.blocks.size(); i++) {
+            Assert.assertEquals(local.blocks.get(i).left, read.blocks.get(i).left);
+            Assert.assertTrue(Arrays.equals(local.blocks.get(i).right, read.blocks.get(i).right));
+        }
+
+        try {
+            DagExport.readFrames(unterminated);
+            Assert.fail("Accepted an export which was cut short");
+        } catch (IllegalStateException e) {}
+    }
+}
@@ -0,0 +1,171 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.user.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class FileUploaderTests {
+    private final Random random = new Random(13);
+    private final Crypto crypto = Crypto.initJava();
+
+    /** Holds the first fragment upload until another chunk has finished, and can fail the fragments of one chunk */
+    private static class UploadStorage extends RAMStorage {
+        public final CompletableFuture<Boolean> releaseFirst = new CompletableFuture<>();
+        public int chunksRead = 0, chunksUploaded = 0, maxOutstanding = 0;
+        public int failChunk = -1;
+        private boolean heldFirst = false;
+
+        public synchronized void chunkRead() {
+            chunksRead++;
+            maxOutstanding = Math.max(maxOutstanding, chunksRead - chunksUploaded);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> blocks) {
+            synchronized (this) {
+                if (chunksRead - 1 == failChunk) {
+                    CompletableFuture<List<Multihash>> err = new CompletableFuture<>();
+                    err.completeExceptionally(new IllegalStateException("Upload failed"));
+                    return err;
+                }
+                if (! heldFirst) {
+                    heldFirst = true;
+                    return releaseFirst.thenCompose(x -> super.putRaw(writer, blocks));
+                }
+            }
+            return super.putRaw(writer, blocks);
+        }
+
+        @Override
+        public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks) {
+            // the metadata of a chunk is written once all its fragments are uploaded
+            synchronized (this) {
+                if (chunksRead == 0)
+                    return super.put(writer, blocks);
+                chunksUploaded++;
+            }
+            releaseFirst.complete(true);
+            return super.put(writer, blocks);
+        }
+    }
+
+    private static class CountingReader extends AsyncReader.ArrayBacked {
+        private final UploadStorage storage;
+
+        public CountingReader(byte[] data, UploadStorage storage) {
+            super(data);
+            this.storage = storage;
+        }
+
+        @Override
+        public CompletableFuture<Integer> readIntoArray(byte[] res, int offset, int length) {
+            storage.chunkRead();
+            return super.readIntoArray(res, offset, length);
+        }
+    }
+
+    /** Keeps the btree in memory, transactions apply their mutations in order */
+    public static class MemoryBtree implements Btree {
+        private final Map<ByteArrayWrapper, Multihash> values = new HashMap<>();
+
+        @Override
+        public synchronized CompletableFuture<Boolean> put(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            values.put(new ByteArrayWrapper(mapKey), value);
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public synchronized CompletableFuture<MaybeMultihash> get(PublicKeyHash writer, byte[] mapKey) {
+            Multihash value = values.get(new ByteArrayWrapper(mapKey));
+            return CompletableFuture.completedFuture(value == null ? MaybeMultihash.empty() : MaybeMultihash.of(value));
+        }
+
+        @Override
+        public synchronized CompletableFuture<Boolean> remove(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing) {
+            values.remove(new ByteArrayWrapper(mapKey));
+            return CompletableFuture.completedFuture(true);
+        }
+
+        @Override
+        public synchronized CompletableFuture<Boolean> apply(SigningPrivateKeyAndPublicHash writer, List<Mutation> mutations) {
+            for (Mutation m : mutations) {
+                if (m.value.isPresent())
+                    put(writer, m.mapKey, m.existing, m.value.get());
+                else
+                    remove(writer, m.mapKey, m.existing);
+            }
+            return CompletableFuture.completedFuture(true);
+        }
+    }
+
+    private SigningPrivateKeyAndPublicHash createWriter(RAMStorage dht) throws Exception {
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        PublicKeyHash writerHash = dht.putSigningKey(pair.publicSigningKey).get();
+        return new SigningPrivateKeyAndPublicHash(writerHash, pair.secretSigningKey);
+    }
+
+    private CompletableFuture<Location> upload(UploadStorage storage, NetworkAccess network, byte[] data,
+                                               SymmetricKey baseKey, Location location, int maxChunksInFlight) throws Exception {
+        SigningPrivateKeyAndPublicHash writer = createWriter(storage);
+        Location parent = new Location(location.owner, writer.publicKeyHash, crypto.random.randomBytes(32));
+        FileProperties props = new FileProperties("file.bin", "", data.length, java.time.LocalDateTime.now(), false, Optional.empty());
+        FileUploader uploader = new FileUploader("file.bin", "", new CountingReader(data, storage), 0, data.length,
+                baseKey, SymmetricKey.random(), parent, SymmetricKey.random(), l -> {}, props, Fragmenter.getInstance());
+        Location first = new Location(location.owner, writer.publicKeyHash, location.getMapKey());
+        return uploader.upload(network, crypto.random, location.owner, writer, first, maxChunksInFlight);
+    }
+
+    @Test
+    public void boundedWindow() throws Exception {
+        UploadStorage storage = new UploadStorage();
+        NetworkAccess network = new NetworkAccess(null, storage, null, new MemoryBtree(), Collections.emptyList());
+        byte[] data = new byte[4 * Chunk.MAX_SIZE + 1000];
+        random.nextBytes(data);
+        SymmetricKey baseKey = SymmetricKey.random();
+        Location location = new Location(PublicKeyHash.NULL, PublicKeyHash.NULL, crypto.random.randomBytes(32));
+
+        Location first = upload(storage, network, data, baseKey, location, 2).get();
+        Assert.assertEquals(5, storage.chunksRead);
+        Assert.assertEquals(5, storage.chunksUploaded);
+        Assert.assertTrue("outstanding chunks " + storage.maxOutstanding, storage.maxOutstanding <= 2);
+
+        // the first chunk finished after the second
+        CryptreeNode metadata = network.getMetadata(first).get().get();
+        FileTreeNode file = new FileTreeNode(Optional.empty(),
+                new RetrievedFilePointer(new FilePointer(first, Optional.empty(), baseKey), metadata),
+                "owner", Collections.emptySet(), Collections.emptySet(), Optional.empty());
+        AsyncReader in = file.getInputStream(network, crypto.random, data.length, l -> {}).get();
+        byte[] retrieved = new byte[data.length];
+        for (int read = 0; read < retrieved.length;)
+            read += in.readIntoArray(retrieved, read, retrieved.length - read).get();
+        Assert.assertTrue(Arrays.equals(data, retrieved));
+    }
+
+    @Test
+    public void stopReadingAfterFailure() throws Exception {
+        UploadStorage storage = new UploadStorage();
+        storage.releaseFirst.complete(true);
+        storage.failChunk = 1;
+        NetworkAccess network = new NetworkAccess(null, storage, null, new MemoryBtree(), Collections.emptyList());
+        byte[] data = new byte[6 * Chunk.MAX_SIZE];
+        Location location = new Location(PublicKeyHash.NULL, PublicKeyHash.NULL, crypto.random.randomBytes(32));
+
+        try {
+            upload(storage, network, data, SymmetricKey.random(), location, 4).get();
+            Assert.fail("Upload succeeded with a failed chunk");
+        } catch (ExecutionException e) {}
+        Assert.assertEquals(2, storage.chunksRead);
+    }
+}
@@ -27,7 +27,9 @@ public class FragmenterTest {
     public static Collection<Object[]> parameters() {
         return Arrays.asList(new Object[][]{
                 {new SplitFragmenter()},
-                {new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES)}
+                {new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES)},
+                {new LocallyRepairableFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES,
+                        LocallyRepairableFragmenter.LRC_GROUP_SIZE)}
         });
     }
 
@@ -67,6 +69,45 @@ public class FragmenterTest {
     }
 
 
+    @Test
+    public void missingFragments() throws IOException {
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(input);
+        byte[][] split = fragmenter.split(input);
+
+        // lose as many fragments as we can afford, including some of the originals
+        int toLose = split.length - fragmenter.requiredFragments(split.length);
+        List<Integer> indices = new ArrayList<>();
+        for (int i=0; i < split.length; i++)
+            indices.add(i);
+        Collections.shuffle(indices, random);
+        for (int i=0; i < toLose; i++)
+            split[indices.get(i)] = null;
+
+        byte[] recombine = fragmenter.recombine(split, input.length);
+        assertTrue("recombine(split(input)) = input", Arrays.equals(input, recombine));
+    }
+
+    @Test
+    public void localRepair() throws IOException {
+        Assume.assumeTrue(fragmenter instanceof LocallyRepairableFragmenter);
+        LocallyRepairableFragmenter lrc = (LocallyRepairableFragmenter) fragmenter;
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(input);
+        byte[][] split = fragmenter.split(input);
+
+        for (int i=0; i < split.length; i++) {
+            List<Integer> sources = lrc.repairSources(i);
+            // only fragments the repair needs are available
+            byte[][] available = new byte[split.length][];
+            for (int source : sources)
+                available[source] = split[source];
+            assertTrue("Repaired fragment " + i, Arrays.equals(split[i], lrc.repair(i, available)));
+            if (i < ErasureFragmenter.ERASURE_ORIGINAL)
+                assertEquals("Local group", LocallyRepairableFragmenter.LRC_GROUP_SIZE, sources.size());
+        }
+    }
+
     @Test
     public void serializationTest() throws IOException {
         byte[] raw = fragmenter.serialize();
@@ -0,0 +1,79 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class HashVerifyingStorageTests {
+    private static Random random = new Random(7);
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void duplicateBlocksInBatch() throws Exception {
+        HashVerifyingStorage storage = new HashVerifyingStorage(new RAMStorage());
+        byte[] a = randomBlock(200_000), b = randomBlock(200_000);
+        List<byte[]> blocks = Arrays.asList(a, b, a, b, a);
+        List<Multihash> hashes = storage.putRaw(PublicKeyHash.NULL, blocks).get();
+        Assert.assertEquals(blocks.stream()
+                .map(block -> RAMStorage.hashToCid(block, true))
+                .collect(Collectors.toList()), hashes);
+
+        List<Optional<byte[]>> retrieved = storage.getMany(hashes).get();
+        for (int i=0; i < blocks.size(); i++)
+            Assert.assertTrue(Arrays.equals(blocks.get(i), retrieved.get(i).get()));
+    }
+
+    @Test
+    public void getVerifiesReceivedBytes() throws Exception {
+        CborObject cbor = new CborObject.CborString("hello");
+        RAMStorage source = new RAMStorage();
+        Multihash hash = new HashVerifyingStorage(source).put(PublicKeyHash.NULL, cbor.toByteArray()).get();
+        Assert.assertEquals(cbor, new HashVerifyingStorage(source).get(hash).get().get());
+
+        byte[] replacement = new CborObject.CborString("not what you asked for").toByteArray();
+        RAMStorage tampering = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
+                return CompletableFuture.completedFuture(Optional.of(replacement));
+            }
+        };
+        try {
+            new HashVerifyingStorage(tampering).get(hash).get();
+            Assert.fail("Accepted a block which doesn't match its hash");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test
+    public void cacheHitsAreNotVerifiedAgain() throws Exception {
+        CborObject cbor = new CborObject.CborString("hello");
+        int[] fetches = {0};
+        RAMStorage source = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash object) {
+                fetches[0]++;
+                return super.getRaw(object);
+            }
+        };
+        Multihash hash = source.put(PublicKeyHash.NULL, cbor.toByteArray()).get();
+        CachingStorage client = new CachingStorage(new HashVerifyingStorage(source), 1024 * 1024, 1024);
+
+        CborObject first = client.get(hash).get().get();
+        Assert.assertEquals(cbor, first);
+        Assert.assertSame("a hit returns the cached parsed object", first, client.get(hash).get().get());
+        Assert.assertEquals(1, fetches[0]);
+    }
+}
@@ -0,0 +1,71 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.io.ipfs.api.*;
+
+import java.io.*;
+import java.util.*;
+
+public class JSONReaderTests {
+
+    @Test
+    public void concatenatedObjects() {
+        String refs = "{\"Ref\":\"a\",\"Err\":\"\"}\n{\"Err\":\"\",\"Ref\":\"b\"}\n{\"Ref\":\"c\"}\n";
+        Assert.assertEquals(Arrays.asList("a", "b", "c"), JSONReader.readStringFields(refs.getBytes(), "Ref"));
+    }
+
+    @Test
+    public void preferEarlierNames() {
+        String put = "{\"Key\":\"k1\",\"Hash\":\"h1\",\"Size\":12}{\"Key\":\"k2\"}";
+        Assert.assertEquals(Arrays.asList("h1", "k2"), JSONReader.readStringFields(put.getBytes(), "Hash", "Key"));
+    }
+
+    @Test
+    public void skipNestedValues() {
+        String json = "{\"Links\":[{\"Name\":\"x\",\"Ref\":\"wrong\"},[1,2,{}]],\"Data\":{\"a\":[true,false,null]},\"Ref\":\"right\"}";
+        Assert.assertEquals(Arrays.asList("right"), JSONReader.readStringFields(json.getBytes(), "Ref"));
+    }
+
+    @Test
+    public void pullValues() throws IOException {
+        String json = "{\"Keys\": {\"Qm1\": {\"Type\": \"recursive\"}, \"Qm2\": {\"Type\": \"direct\"}}, " +
+                "\"Size\": 262158, \"Big\": 12345678901, \"Neg\": -3, \"Frac\": 1.5e2, \"Text\": \"a\\\"b\\\\c\\u00e9\u00e9\u20ac\"}";
+        JSONReader reader = new JSONReader(json.getBytes("UTF-8"));
+        reader.beginObject();
+        Assert.assertEquals("Keys", reader.nextName());
+        Map<String, String> pins = new LinkedHashMap<>();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            String hash = reader.nextName();
+            reader.beginObject();
+            Assert.assertEquals("Type", reader.nextName());
+            pins.put(hash, reader.nextString());
+            reader.endObject();
+        }
+        reader.endObject();
+        Assert.assertEquals("recursive", pins.get("Qm1"));
+        Assert.assertEquals("direct", pins.get("Qm2"));
+
+        Assert.assertEquals("Size", reader.nextName());
+        Assert.assertEquals(262158, reader.nextNumber());
+        Assert.assertEquals("Big", reader.nextName());
+        Assert.assertEquals(12345678901L, reader.nextLong());
+        Assert.assertEquals("Neg", reader.nextName());
+        Assert.assertEquals(-3, reader.nextNumber());
+        Assert.assertEquals("Frac", reader.nextName());
+        Assert.assertEquals(150.0, reader.nextNumber());
+        Assert.assertEquals("Text", reader.nextName());
+        Assert.assertEquals("a\"b\\c\u00e9\u00e9\u20ac", reader.nextString());
+        Assert.assertFalse(reader.hasNext());
+        reader.endObject();
+        Assert.assertEquals(JSONReader.Token.END_DOCUMENT, reader.peek());
+    }
+
+    @Test(expected = EOFException.class)
+    public void truncated() throws IOException {
+        JSONReader reader = new JSONReader("{\"Ref\":\"abc".getBytes());
+        reader.beginObject();
+        reader.nextName();
+        reader.nextString();
+    }
+}
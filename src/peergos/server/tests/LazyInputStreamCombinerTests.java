@@ -0,0 +1,170 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.cryptree.*;
+
+import java.time.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class LazyInputStreamCombinerTests {
+    private static final int CHUNKS = 7;
+    private static final int READ_AHEAD_CHUNKS = LazyInputStreamCombiner.DEFAULT_READ_AHEAD_BYTES / Chunk.MAX_SIZE;
+
+    private final Random random = new Random(17);
+    private final Crypto crypto = Crypto.initJava();
+    private final RAMStorage storage = new RAMStorage();
+    private final GatedBtree btree = new GatedBtree();
+    private final NetworkAccess network = new NetworkAccess(null, storage, null, btree, Collections.emptyList());
+    private final byte[] data = new byte[CHUNKS * Chunk.MAX_SIZE - 1000];
+    private final FileTreeNode file;
+    private final Location first;
+    private final SymmetricKey dataKey;
+
+    /** Counts metadata lookups, which can be held until the gate opens */
+    private static class GatedBtree extends FileUploaderTests.MemoryBtree {
+        public volatile CompletableFuture<Boolean> gate = CompletableFuture.completedFuture(true);
+        public int gets = 0;
+
+        @Override
+        public CompletableFuture<MaybeMultihash> get(PublicKeyHash writer, byte[] mapKey) {
+            synchronized (this) {
+                gets++;
+            }
+            CompletableFuture<MaybeMultihash> value = super.get(writer, mapKey);
+            return gate.thenCompose(x -> value);
+        }
+    }
+
+    public LazyInputStreamCombinerTests() throws Exception {
+        random.nextBytes(data);
+        SigningKeyPair pair = SigningKeyPair.random(crypto.random, crypto.signer);
+        SigningPrivateKeyAndPublicHash writer = new SigningPrivateKeyAndPublicHash(storage.putSigningKey(pair.publicSigningKey).get(), pair.secretSigningKey);
+        Location parent = new Location(PublicKeyHash.NULL, writer.publicKeyHash, crypto.random.randomBytes(32));
+        first = new Location(PublicKeyHash.NULL, writer.publicKeyHash, crypto.random.randomBytes(32));
+        SymmetricKey baseKey = SymmetricKey.random();
+        FileProperties props = new FileProperties("file.bin", "", data.length, LocalDateTime.now(), false, Optional.empty());
+        new FileUploader("file.bin", "", new AsyncReader.ArrayBacked(data), 0, data.length, baseKey, SymmetricKey.random(),
+                parent, SymmetricKey.random(), l -> {}, props, Fragmenter.getInstance())
+                .upload(network, crypto.random, PublicKeyHash.NULL, writer, first).get();
+        CryptreeNode metadata = network.getMetadata(first).get().get();
+        dataKey = ((FileAccess) metadata).getDataKey(baseKey);
+        file = new FileTreeNode(Optional.empty(), new RetrievedFilePointer(new FilePointer(first, Optional.empty(), baseKey), metadata),
+                "owner", Collections.emptySet(), Collections.emptySet(), Optional.empty());
+    }
+
+    private AsyncReader open() throws Exception {
+        AsyncReader in = file.getInputStream(network, crypto.random, data.length, l -> {}).get();
+        btree.gets = 0;
+        return in;
+    }
+
+    private void checkRead(AsyncReader in, long position, int length) throws Exception {
+        byte[] res = new byte[length];
+        for (int read = 0; read < length;)
+            read += in.readIntoArray(res, read, length - read).get();
+        Assert.assertTrue(Arrays.equals(Arrays.copyOfRange(data, (int) position, (int) position + length), res));
+    }
+
+    @Test
+    public void smallReadsDontReadAhead() throws Exception {
+        AsyncReader in = open();
+        for (int i=0; i < 1000; i++)
+            checkRead(in, 10 * i, 10);
+        Assert.assertEquals(0, btree.gets);
+    }
+
+    @Test
+    public void readAheadIsBounded() throws Exception {
+        AsyncReader in = open();
+        btree.gate = new CompletableFuture<>();
+        checkRead(in, 0, Chunk.MAX_SIZE);
+        byte[] empty = new byte[0];
+        for (int i=0; i < 1000; i++)
+            in.readIntoArray(empty, 0, 0).get();
+        // we can't know where the second chunk is until the first has arrived
+        Assert.assertEquals(1, btree.gets);
+
+        btree.gate.complete(true);
+        Assert.assertEquals(READ_AHEAD_CHUNKS, btree.gets);
+        checkRead(in, Chunk.MAX_SIZE, data.length - Chunk.MAX_SIZE);
+        Assert.assertEquals("every chunk is fetched exactly once", CHUNKS - 1, btree.gets);
+    }
+
+    @Test
+    public void resetDiscardsReadAhead() throws Exception {
+        AsyncReader in = open();
+        btree.gate = new CompletableFuture<>();
+        checkRead(in, 0, Chunk.MAX_SIZE);
+        in.reset().get();
+        checkRead(in, 0, Chunk.MAX_SIZE);
+        Assert.assertEquals(2, btree.gets);
+
+        // the fetch from before the reset doesn't extend the new read ahead
+        btree.gate.complete(true);
+        Assert.assertEquals(1 + READ_AHEAD_CHUNKS, btree.gets);
+        checkRead(in, Chunk.MAX_SIZE, data.length - Chunk.MAX_SIZE);
+    }
+
+    @Test
+    public void closeDiscardsReadAhead() throws Exception {
+        AsyncReader in = open();
+        btree.gate = new CompletableFuture<>();
+        checkRead(in, 0, Chunk.MAX_SIZE);
+        in.close();
+        btree.gate.complete(true);
+        Assert.assertEquals(1, btree.gets);
+    }
+
+    @Test
+    public void jumpDiscardsReadAhead() throws Exception {
+        AsyncReader in = open();
+        checkRead(in, 0, Chunk.MAX_SIZE);
+        Assert.assertEquals(READ_AHEAD_CHUNKS, btree.gets);
+
+        // beyond the read ahead, so we go straight there using the chunk index
+        long position = (CHUNKS - 1) * (long) Chunk.MAX_SIZE + 10;
+        in.seek(0, (int) position).get();
+        checkRead(in, position, data.length - (int) position);
+        Assert.assertEquals(READ_AHEAD_CHUNKS + 1, btree.gets);
+
+        in.seek(0, 10).get();
+        checkRead(in, 10, 100);
+    }
+
+    @Test
+    public void seekWithSparseIndex() throws Exception {
+        List<byte[]> mapKeys = new ArrayList<>();
+        for (Optional<Location> chunk = Optional.of(first); chunk.isPresent(); ) {
+            mapKeys.add(chunk.get().getMapKey());
+            Optional<CryptreeNode> meta = network.getMetadata(chunk.get()).get();
+            chunk = meta.isPresent() ? ((FileAccess) meta.get()).retriever().getNext(dataKey) : Optional.empty();
+        }
+        // the last chunk links to where a further chunk would go
+        Assert.assertEquals(CHUNKS + 1, mapKeys.size());
+        // chunks 0, 3 and 6
+        ChunkIndex index = ChunkIndex.build(first.owner, first.writer, mapKeys.subList(0, CHUNKS), 3);
+        Assert.assertEquals(6, index.lastChunk());
+
+        byte[] firstChunk = Arrays.copyOf(data, Chunk.MAX_SIZE);
+        Location second = new Location(first.owner, first.writer, mapKeys.get(1));
+        btree.gets = 0;
+        AsyncReader in = new LazyInputStreamCombiner(0, firstChunk, second, firstChunk, second, network, crypto.random,
+                dataKey, data.length, l -> {}, 0, Optional.of(index));
+        long position = 5L * Chunk.MAX_SIZE + 10;
+        in.seek(0, (int) position).get();
+        checkRead(in, position, 100);
+        // skipped from chunk 3
+        Assert.assertEquals(3, btree.gets);
+
+        in.seek(0, Chunk.MAX_SIZE + 10).get();
+        checkRead(in, Chunk.MAX_SIZE + 10, 100);
+    }
+}
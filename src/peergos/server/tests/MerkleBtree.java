@@ -6,6 +6,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.merklebtree.*;
 import peergos.shared.storage.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
@@ -59,7 +60,7 @@ public class MerkleBtree {
             if (! res1.get().equals(value1))
                 throw new IllegalStateException("Results not equal");
         }
-        if (tree.root.keys.size() != 2)
+        if (tree.root.keyCount() != 2)
             throw new IllegalStateException("New root should have two children!");
     }
 
@@ -133,7 +134,7 @@ public class MerkleBtree {
         ((RAMStorage)tree.storage).clear();
     }
 
-//    @Test
+    @Test
     public void delete() throws Exception {
         PublicKeyHash user = createUser();
         MerkleBTree tree = createTree(user).get();
@@ -141,13 +142,13 @@ public class MerkleBtree {
 
         Random r = new Random(1);
         SortedSet<ByteArrayWrapper> keys = new TreeSet<>();
-        int lim = 10000;
+        int lim = 500;
         for (int i = 0; i < lim; i++) {
             if (i % (lim/10) == 0)
                 System.out.println((10*i/lim)+"0 % of building");
             byte[] key1 = new byte[keylen];
-            keys.add(new ByteArrayWrapper(key1));
             r.nextBytes(key1);
+            keys.add(new ByteArrayWrapper(key1));
             byte[] value1Raw = new byte[keylen];
             r.nextBytes(value1Raw);
             Multihash value1 = hash(value1Raw);
@@ -183,6 +184,36 @@ public class MerkleBtree {
         ((RAMStorage)tree.storage).clear();
     }
 
+    @Test
+    public void deleteAll() throws Exception {
+        // deletes hit keys in internal nodes and merge underfull nodes into both siblings
+        PublicKeyHash user = createUser();
+        MerkleBTree tree = createTree(user, new RAMStorage()).get();
+        Random r = new Random(2);
+        Map<ByteArrayWrapper, Multihash> values = new HashMap<>();
+        for (int i = 0; i < 200; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            byte[] valueRaw = new byte[32];
+            r.nextBytes(valueRaw);
+            Multihash value = hash(valueRaw);
+            tree.put(user, key, MaybeMultihash.empty(), value).get();
+            values.put(new ByteArrayWrapper(key), value);
+        }
+        if (tree.root.keyCount() < 2)
+            throw new IllegalStateException("Tree should have more than one level!");
+
+        List<ByteArrayWrapper> order = new ArrayList<>(values.keySet());
+        Collections.shuffle(order, r);
+        for (ByteArrayWrapper key : order) {
+            tree.delete(user, key.data, MaybeMultihash.of(values.remove(key))).get();
+            Assert.assertFalse(tree.get(key.data).get().isPresent());
+            Assert.assertEquals(values.size(), (int) tree.size().get());
+            for (Map.Entry<ByteArrayWrapper, Multihash> e : values.entrySet())
+                Assert.assertEquals("Lost key after delete", e.getValue(), tree.get(e.getKey().data).get().get());
+        }
+    }
+
     @Test
     public void storageSize() throws Exception {
         PublicKeyHash user = createUser();
@@ -227,6 +258,255 @@ public class MerkleBtree {
         ((RAMStorage)tree.storage).clear();
     }
 
+    @Test
+    public void bulkLoad() throws Exception {
+        PublicKeyHash user = createUser();
+        RAMStorage dht = new RAMStorage();
+        Random r = new Random(2);
+        int lim = 20000;
+        SortedMap<ByteArrayWrapper, Multihash> expected = new TreeMap<>();
+        for (int i = 0; i < lim; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            expected.put(new ByteArrayWrapper(key), hash(key));
+        }
+        List<Pair<ByteArrayWrapper, Multihash>> sorted = new ArrayList<>();
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet())
+            sorted.add(new Pair<>(e.getKey(), e.getValue()));
+
+        long t1 = System.currentTimeMillis();
+        MerkleBTree tree = MerkleBTree.bulkLoad(user, sorted, dht).get();
+        long t2 = System.currentTimeMillis();
+        System.out.printf("Bulk load rate = %f /s\n", (double) lim / (t2 - t1) * 1000);
+
+        // every node is at least half full
+        if (dht.size() > 2 * lim / (MerkleBTree.MAX_NODE_CHILDREN - 1))
+            throw new IllegalStateException("Too many nodes written: " + dht.size());
+        if (tree.size().get() != lim)
+            throw new IllegalStateException("Incorrect size!");
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet())
+            if (! tree.get(e.getKey().data).get().get().equals(e.getValue()))
+                throw new IllegalStateException("Results not equal");
+
+        // a bulk loaded tree supports normal modification
+        byte[] key = sorted.get(lim / 2).left.data;
+        tree.delete(user, key, MaybeMultihash.of(sorted.get(lim / 2).right)).get();
+        if (tree.get(key).get().isPresent())
+            throw new IllegalStateException("Key still present!");
+        tree.put(user, key, MaybeMultihash.empty(), hash(new byte[]{1})).get();
+        if (! tree.get(key).get().get().equals(hash(new byte[]{1})))
+            throw new IllegalStateException("Results not equal");
+
+        MerkleBTree empty = MerkleBTree.bulkLoad(user, Collections.emptyList(), dht).get();
+        if (empty.size().get() != 0)
+            throw new IllegalStateException("Incorrect size!");
+    }
+
+    @Test
+    public void merge() throws Exception {
+        PublicKeyHash user = createUser();
+        RAMStorage dht = new RAMStorage();
+        MerkleBTree tree = createTree(user, dht).get();
+        Random r = new Random(3);
+        Map<ByteArrayWrapper, Multihash> expected = new HashMap<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            tree.put(user, key, MaybeMultihash.empty(), hash(key)).get();
+            expected.put(new ByteArrayWrapper(key), hash(key));
+        }
+
+        List<Btree.Mutation> changes = new ArrayList<>();
+        List<ByteArrayWrapper> existing = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 1000; i++) {
+            ByteArrayWrapper key = existing.get(i);
+            if (i % 2 == 0) {
+                Multihash updated = hash(new byte[]{(byte) i, (byte) (i >> 8)});
+                changes.add(Btree.Mutation.put(key.data, MaybeMultihash.of(expected.get(key)), updated));
+                expected.put(key, updated);
+            } else {
+                changes.add(Btree.Mutation.remove(key.data, MaybeMultihash.of(expected.get(key))));
+                expected.remove(key);
+            }
+        }
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            changes.add(Btree.Mutation.put(key, MaybeMultihash.empty(), hash(key)));
+            expected.put(new ByteArrayWrapper(key), hash(key));
+        }
+        Collections.shuffle(changes, r);
+
+        int before = dht.size();
+        tree.merge(user, changes).get();
+        // the touched nodes are each written once, far fewer than a write per change
+        if (dht.size() - before > changes.size() / 4)
+            throw new IllegalStateException("Too many nodes written: " + (dht.size() - before));
+        for (ByteArrayWrapper key : existing.subList(0, 1000))
+            if (! tree.get(key.data).get().equals((expected.containsKey(key) ? MaybeMultihash.of(expected.get(key)) : MaybeMultihash.empty())))
+                throw new IllegalStateException("Results not equal");
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet())
+            if (! tree.get(e.getKey().data).get().get().equals(e.getValue()))
+                throw new IllegalStateException("Results not equal");
+        if (tree.size().get() != expected.size())
+            throw new IllegalStateException("Incorrect size!");
+
+        // a failed CAS leaves the tree unchanged
+        Multihash root = tree.root.hash.get();
+        ByteArrayWrapper present = expected.keySet().iterator().next();
+        try {
+            tree.merge(user, Arrays.asList(
+                    Btree.Mutation.put(new byte[]{9, 9, 9}, MaybeMultihash.empty(), hash(new byte[]{9})),
+                    Btree.Mutation.put(present.data, MaybeMultihash.of(hash(new byte[]{8})), hash(new byte[]{9})))).get();
+            throw new IllegalStateException("Expected CAS failure!");
+        } catch (ExecutionException e) {}
+        if (! tree.root.hash.get().equals(root))
+            throw new IllegalStateException("Failed merge modified tree!");
+    }
+
+    @Test
+    public void rangeAndIterate() throws Exception {
+        PublicKeyHash user = createUser();
+        RAMStorage dht = new RAMStorage();
+        MerkleBTree tree = createTree(user, dht).get();
+        Random r = new Random(4);
+        SortedMap<ByteArrayWrapper, Multihash> expected = new TreeMap<>();
+        for (int i = 0; i < 2000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            tree.put(user, key, MaybeMultihash.empty(), hash(key)).get();
+            expected.put(new ByteArrayWrapper(key), hash(key));
+        }
+        // deleted keys leave tombstones which are skipped
+        List<ByteArrayWrapper> keys = new ArrayList<>(expected.keySet());
+        for (int i = 0; i < 300; i++) {
+            ByteArrayWrapper key = keys.get(r.nextInt(keys.size()));
+            if (! expected.containsKey(key))
+                continue;
+            tree.delete(user, key.data, MaybeMultihash.of(expected.remove(key))).get();
+        }
+        if (tree.root.valueCount != expected.size() || tree.size().get() != expected.size())
+            throw new IllegalStateException("Incorrect size!");
+
+        TreeCursor all = tree.iterator();
+        List<Pair<ByteArrayWrapper, Multihash>> results = new ArrayList<>();
+        while (! all.isDone())
+            results.addAll(all.next(100).get());
+        checkEqual(expected, results);
+
+        ByteArrayWrapper from = keys.get(500), to = keys.get(1200);
+        TreeCursor range = tree.range(from.data, to.data);
+        results.clear();
+        List<Pair<ByteArrayWrapper, Multihash>> page;
+        while (! (page = range.next(37).get()).isEmpty())
+            results.addAll(page);
+        checkEqual(expected.subMap(from, to), results);
+    }
+
+    @Test
+    public void diff() throws Exception {
+        PublicKeyHash user = createUser();
+        RAMStorage dht = new RAMStorage();
+        MerkleBTree tree = createTree(user, dht).get();
+        Random r = new Random(5);
+        List<byte[]> keys = new ArrayList<>();
+        for (int i = 0; i < 3000; i++) {
+            byte[] key = new byte[32];
+            r.nextBytes(key);
+            keys.add(key);
+            tree.put(user, key, MaybeMultihash.empty(), hash(key)).get();
+        }
+        Multihash original = tree.root.hash.get();
+
+        SortedMap<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> expected = new TreeMap<>();
+        for (int i = 0; i < 20; i++) {
+            byte[] added = new byte[32];
+            r.nextBytes(added);
+            tree.put(user, added, MaybeMultihash.empty(), hash(added)).get();
+            expected.put(new ByteArrayWrapper(added), new Pair<>(MaybeMultihash.empty(), MaybeMultihash.of(hash(added))));
+
+            byte[] changed = keys.get(3 * i);
+            Multihash value = hash(new byte[]{(byte) i});
+            tree.put(user, changed, MaybeMultihash.of(hash(changed)), value).get();
+            expected.put(new ByteArrayWrapper(changed), new Pair<>(MaybeMultihash.of(hash(changed)), MaybeMultihash.of(value)));
+
+            byte[] removed = keys.get(3 * i + 1);
+            tree.delete(user, removed, MaybeMultihash.of(hash(removed))).get();
+            expected.put(new ByteArrayWrapper(removed), new Pair<>(MaybeMultihash.of(hash(removed)), MaybeMultihash.empty()));
+        }
+        Multihash updated = tree.root.hash.get();
+
+        List<TreeDiff.KeyChange> changes = new ArrayList<>();
+        long count = MerkleBTree.diff(original, updated, dht, changes::add).get();
+        if (count != expected.size() || changes.size() != expected.size())
+            throw new IllegalStateException("Incorrect number of changes " + changes.size() + " != " + expected.size());
+        Iterator<Map.Entry<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>>> it = expected.entrySet().iterator();
+        for (TreeDiff.KeyChange change : changes) {
+            Map.Entry<ByteArrayWrapper, Pair<MaybeMultihash, MaybeMultihash>> next = it.next();
+            if (! change.key.equals(next.getKey()) || ! change.original.equals(next.getValue().left)
+                    || ! change.updated.equals(next.getValue().right))
+                throw new IllegalStateException("Incorrect change " + change);
+        }
+
+        // the reverse diff swaps every change
+        List<TreeDiff.KeyChange> reverse = new ArrayList<>();
+        MerkleBTree.diff(updated, original, dht, reverse::add).get();
+        for (int i = 0; i < reverse.size(); i++)
+            if (! reverse.get(i).original.equals(changes.get(i).updated))
+                throw new IllegalStateException("Incorrect reverse change");
+        if (MerkleBTree.diff(updated, updated, dht, c -> {}).get() != 0)
+            throw new IllegalStateException("Identical trees differ!");
+
+        TreeDiff.BlockDiff blocks = MerkleBTree.blockDiff(original, updated, dht).get();
+        Set<Multihash> before = reachable(original, dht), after = reachable(updated, dht);
+        Set<Multihash> added = new HashSet<>(after), removed = new HashSet<>(before);
+        added.removeAll(before);
+        removed.removeAll(after);
+        if (! blocks.added.equals(added) || ! blocks.removed.equals(removed))
+            throw new IllegalStateException("Incorrect block diff");
+    }
+
+    @Test
+    public void blockDiffOfSharedValue() throws Exception {
+        PublicKeyHash user = createUser();
+        RAMStorage dht = new RAMStorage();
+        MerkleBTree tree = createTree(user, dht).get();
+        Multihash shared = hash(new byte[]{7, 7, 7});
+        byte[] first = new byte[]{1}, second = new byte[]{2};
+        tree.put(user, first, MaybeMultihash.empty(), shared).get();
+        tree.put(user, second, MaybeMultihash.empty(), shared).get();
+        Multihash original = tree.root.hash.get();
+        tree.delete(user, first, MaybeMultihash.of(shared)).get();
+
+        // the value is still referenced by the second key, but is reported as a removal candidate
+        TreeDiff.BlockDiff blocks = MerkleBTree.blockDiff(original, tree.root.hash.get(), dht).get();
+        Assert.assertTrue(blocks.removed.contains(shared));
+        Assert.assertEquals(shared, tree.get(second).get().get());
+    }
+
+    private static Set<Multihash> reachable(Multihash root, ContentAddressedStorage dht) throws Exception {
+        Set<Multihash> res = new HashSet<>();
+        LinkedList<Multihash> toVisit = new LinkedList<>(Collections.singletonList(root));
+        while (! toVisit.isEmpty()) {
+            Multihash next = toVisit.removeFirst();
+            // values aren't stored, only tree nodes
+            if (res.add(next) && dht.getSize(next).get().isPresent())
+                toVisit.addAll(dht.getLinks(next).get());
+        }
+        return res;
+    }
+
+    private static void checkEqual(SortedMap<ByteArrayWrapper, Multihash> expected, List<Pair<ByteArrayWrapper, Multihash>> results) {
+        if (results.size() != expected.size())
+            throw new IllegalStateException("Incorrect number of values " + results.size() + " != " + expected.size());
+        Iterator<Pair<ByteArrayWrapper, Multihash>> it = results.iterator();
+        for (Map.Entry<ByteArrayWrapper, Multihash> e : expected.entrySet()) {
+            Pair<ByteArrayWrapper, Multihash> next = it.next();
+            if (! next.left.equals(e.getKey()) || ! next.right.equals(e.getValue()))
+                throw new IllegalStateException("Results not equal or out of order");
+        }
+    }
+
     private static byte[] toLittleEndian(int x) {
         byte[] res = new byte[4];
         for (int i=0; i < 4; i++)
@@ -74,6 +74,42 @@ public class MultipartTests {
         }
     }
 
+    @Test
+    public void partsAroundBufferBoundaries() throws IOException {
+        // parts whose ends fall either side of the read buffer edges, and which contain prefixes of the boundary
+        List<byte[]> input = new ArrayList<>();
+        for (int delta = -50; delta <= 50; delta += 7) {
+            byte[] part = randomArray(64 * 1024 + delta);
+            byte[] almostBoundary = "\r\n--".getBytes();
+            System.arraycopy(almostBoundary, 0, part, part.length - almostBoundary.length, almostBoundary.length);
+            input.add(part);
+        }
+        input.add(new byte[0]);
+        input.add("\r\n\r\n".getBytes());
+        test(input);
+    }
+
+    @Test
+    public void sizeLimit() throws IOException {
+        String boundary = Multipart.createBoundary();
+        ByteArrayOutputStream body = new ByteArrayOutputStream();
+        for (int i=0; i < 3; i++) {
+            body.write(("--" + boundary + "\r\nContent-Type: application/octet-stream\r\n\r\n").getBytes());
+            body.write(randomArray(1000));
+            body.write("\r\n".getBytes());
+        }
+        body.write(("--" + boundary + "--\r\n").getBytes());
+        byte[] raw = body.toByteArray();
+
+        List<byte[]> parts = new ArrayList<>();
+        MultipartReceiver.extractFiles(new ByteArrayInputStream(raw), boundary, 3000, parts::add);
+        Assert.assertEquals(3, parts.size());
+        try {
+            MultipartReceiver.extractFiles(new ByteArrayInputStream(raw), boundary, 2999, x -> {});
+            Assert.fail("Size limit not enforced");
+        } catch (IllegalStateException expected) {}
+    }
+
     private void test(List<byte[]> input) throws IOException {
         Multipart sender = new Multipart("http://localhost:" + port + "/multipart", "UTF-8");
         for (byte[] in : input)
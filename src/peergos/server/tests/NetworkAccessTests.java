@@ -0,0 +1,55 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.user.fs.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.stream.*;
+
+public class NetworkAccessTests {
+    private final Random random = new Random(5);
+    private final RAMStorage storage = new RAMStorage();
+    private final NetworkAccess network = new NetworkAccess(null, storage, null, null, Collections.emptyList());
+
+    private List<byte[]> fragments(int count) {
+        return IntStream.range(0, count)
+                .mapToObj(i -> {
+                    byte[] fragment = new byte[100];
+                    random.nextBytes(fragment);
+                    return fragment;
+                }).collect(Collectors.toList());
+    }
+
+    @Test
+    public void downloadStopsAtRequired() throws Exception {
+        List<byte[]> data = fragments(12);
+        List<Multihash> hashes = storage.putRaw(PublicKeyHash.NULL, data).get();
+
+        List<Optional<FragmentWithHash>> result = network.downloadFragments(hashes, 4, l -> {}, 1.0).get();
+        Assert.assertEquals(hashes.size(), result.size());
+        Assert.assertTrue(result.stream().filter(Optional::isPresent).count() >= 4);
+        for (int i=0; i < result.size(); i++)
+            if (result.get(i).isPresent())
+                Assert.assertTrue(Arrays.equals(data.get(i), result.get(i).get().fragment.data));
+    }
+
+    @Test
+    public void malformedFragmentFailsDownload() throws Exception {
+        List<Multihash> hashes = new ArrayList<>(storage.putRaw(PublicKeyHash.NULL, fragments(3)).get());
+        // an old style cbor fragment which isn't a byte array
+        hashes.set(0, storage.put(PublicKeyHash.NULL, new CborObject.CborLong(5).toByteArray()).get());
+
+        try {
+            network.downloadFragments(hashes, hashes.size(), l -> {}, 1.0).get(10, TimeUnit.SECONDS);
+            Assert.fail("Accepted a malformed fragment");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof ClassCastException);
+        }
+    }
+}
@@ -0,0 +1,128 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+public class RAMStorageTests {
+    private final Random random = new Random(7);
+
+    private byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void evictsOnlyUnpinnedBlocks() throws Exception {
+        RAMStorage store = new RAMStorage(100_000, 0);
+        Multihash leaf = store.putRaw(PublicKeyHash.NULL, randomBlock(30_000)).get();
+        CborObject root = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(leaf)));
+        Multihash rootHash = store.put(PublicKeyHash.NULL, root.toByteArray()).get();
+        store.recursivePin(rootHash).get();
+        Assert.assertEquals(2, store.pinnedBlockCount());
+
+        List<Multihash> unpinned = new ArrayList<>();
+        for (int i=0; i < 10; i++)
+            unpinned.add(store.putRaw(PublicKeyHash.NULL, randomBlock(20_000)).get());
+
+        Assert.assertTrue(store.totalBytes() <= 100_000);
+        Assert.assertEquals(30_000, (int) store.getSize(leaf).get().get());
+        Assert.assertTrue(store.getSize(rootHash).get().isPresent());
+        // the most recent block is the last to be evicted
+        Assert.assertTrue(store.getSize(unpinned.get(unpinned.size() - 1)).get().isPresent());
+        Assert.assertTrue(unpinned.stream().anyMatch(h -> ! store.getSize(h).join().isPresent()));
+
+        store.recursiveUnpin(rootHash).get();
+        Assert.assertEquals(0, store.pinnedBlockCount());
+        store.setByteBudget(0);
+        Assert.assertEquals(0, store.size());
+    }
+
+    @Test
+    public void sharedSubtreesAreReferenceCounted() throws Exception {
+        // starts unbounded, so the counts are built when the budget is set
+        RAMStorage store = new RAMStorage(Long.MAX_VALUE, 0);
+        Multihash shared = store.putRaw(PublicKeyHash.NULL, randomBlock(1000)).get();
+        CborObject a = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(shared), new CborObject.CborLong(1)));
+        CborObject b = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(shared), new CborObject.CborLong(2)));
+        Multihash aHash = store.put(PublicKeyHash.NULL, a.toByteArray()).get();
+        store.recursivePin(aHash).get();
+        Multihash bHash = store.put(PublicKeyHash.NULL, b.toByteArray()).get();
+        store.pinUpdate(aHash, bHash).get();
+        store.recursiveUnpin(aHash).get();
+        store.setByteBudget(0);
+
+        Assert.assertFalse(store.getSize(aHash).get().isPresent());
+        Assert.assertTrue(store.getSize(bHash).get().isPresent());
+        Assert.assertTrue(store.getSize(shared).get().isPresent());
+    }
+
+    @Test
+    public void recentWritesAreNotEvicted() throws Exception {
+        RAMStorage store = new RAMStorage(10_000);
+        List<Multihash> written = new ArrayList<>();
+        for (int i=0; i < 5; i++)
+            written.add(store.putRaw(PublicKeyHash.NULL, randomBlock(5_000)).get());
+        // a writer can still link to and pin them
+        CborObject root = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(written.get(0))));
+        Multihash rootHash = store.put(PublicKeyHash.NULL, root.toByteArray()).get();
+        store.recursivePin(rootHash).get();
+        for (Multihash hash : written)
+            Assert.assertTrue(store.getSize(hash).get().isPresent());
+    }
+
+    @Test
+    public void pinFailsIfBlockIsMissing() throws Exception {
+        RAMStorage store = new RAMStorage(100_000, 0);
+        Multihash absent = RAMStorage.hashToCid(randomBlock(100), true);
+        Multihash present = store.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+        CborObject root = new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(present), new CborObject.CborMerkleLink(absent)));
+        Multihash rootHash = store.put(PublicKeyHash.NULL, root.toByteArray()).get();
+        try {
+            store.recursivePin(rootHash).get();
+            Assert.fail("Pinned a tree with a missing block");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(0, store.pinnedBlockCount());
+        Assert.assertTrue(store.getPinnedRoots().get().isEmpty());
+    }
+
+    @Test
+    public void pinUpdateFailsIfBlockIsMissing() throws Exception {
+        RAMStorage store = new RAMStorage(100_000, 0);
+        Multihash existing = store.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+        store.recursivePin(existing).get();
+        CborObject updated = new CborObject.CborList(Arrays.asList(
+                new CborObject.CborMerkleLink(RAMStorage.hashToCid(randomBlock(100), true))));
+        Multihash updatedHash = store.put(PublicKeyHash.NULL, updated.toByteArray()).get();
+        try {
+            store.pinUpdate(existing, updatedHash).get();
+            Assert.fail("Updated a pin to a tree with a missing block");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+        Assert.assertEquals(Collections.singleton(existing), store.getPinnedRoots().get());
+    }
+
+    @Test
+    public void rewritingAPinnedBlockKeepsItPinned() throws Exception {
+        RAMStorage store = new RAMStorage(100_000, 0);
+        byte[] block = randomBlock(1000);
+        Multihash pinned = store.putRaw(PublicKeyHash.NULL, block).get();
+        store.recursivePin(pinned).get();
+        store.putRaw(PublicKeyHash.NULL, block).get();
+        store.setByteBudget(0);
+        Assert.assertTrue(store.getSize(pinned).get().isPresent());
+
+        store.recursiveUnpin(pinned).get();
+        Assert.assertEquals(0, store.size());
+    }
+}
@@ -0,0 +1,55 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.shared.user.fs.*;
+import peergos.shared.user.fs.erasure.*;
+
+import java.util.*;
+
+import static org.junit.Assert.*;
+
+public class ReedSolomonTests {
+    private static Random random = new Random(666);
+
+    @Test
+    public void sameFragmentsAsPolynomialEncoding() {
+        int[][] params = {{40, 10}, {10, 5}, {5, 5}, {20, 20}};
+        for (int[] p : params) {
+            for (int length : Arrays.asList(0, 1, 1000, 256 * 1024 + 7)) {
+                byte[] input = new byte[length];
+                random.nextBytes(input);
+                byte[][] expected = Erasure.split(input, new GaloisField256(), p[0], p[1]);
+                byte[][] actual = ReedSolomon.get(p[0], p[1]).encode(input);
+                assertEquals(expected.length, actual.length);
+                for (int i=0; i < expected.length; i++)
+                    assertTrue("Fragment " + i + " for " + p[0] + "+" + p[1], Arrays.equals(expected[i], actual[i]));
+            }
+        }
+    }
+
+    @Test
+    public void recoverMissingFragments() {
+        byte[] input = new byte[Chunk.MAX_SIZE];
+        random.nextBytes(input);
+        ReedSolomon code = ReedSolomon.get(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES);
+        for (int missing=0; missing <= code.nFragments - code.originalBlobs; missing += 5) {
+            byte[][] encoded = code.encode(input);
+            List<Integer> indices = new ArrayList<>();
+            for (int i=0; i < encoded.length; i++)
+                indices.add(i);
+            Collections.shuffle(indices, random);
+            for (int i=0; i < missing; i++)
+                encoded[indices.get(i)] = null;
+            assertTrue("Recovered with " + missing + " missing", Arrays.equals(input, code.decode(encoded, input.length)));
+        }
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void tooManyMissingFragments() {
+        ReedSolomon code = ReedSolomon.get(10, 5);
+        byte[][] encoded = code.encode(new byte[10_000]);
+        for (int i=0; i <= code.nFragments - code.originalBlobs; i++)
+            encoded[i] = null;
+        code.decode(encoded, 10_000);
+    }
+}
@@ -0,0 +1,207 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
+import peergos.shared.storage.*;
+import peergos.shared.user.fs.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.concurrent.*;
+
+public class ScrubberTests {
+    private static Random random = new Random(42);
+    private static final long UNLIMITED = Long.MAX_VALUE / 1_000_000_000L;
+
+    @BeforeClass
+    public static void init() {
+        Crypto.initJava();
+    }
+
+    private final List<Path> tempDirs = new ArrayList<>();
+
+    private Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-scrub");
+        tempDirs.add(dir);
+        return dir;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path dir : tempDirs)
+            SegmentedFileStorageTests.deleteRecursively(dir);
+    }
+
+    /** Store a chunk's fragments and its cryptree node, and pin it
+     *
+     * @return the hash of the cryptree node
+     */
+    private static Multihash storeChunk(ContentAddressedStorage store, Fragmenter fragmenter, byte[] data) throws Exception {
+        List<Multihash> hashes = store.putRaw(PublicKeyHash.NULL, Arrays.asList(fragmenter.split(data))).get();
+        return storeChunk(store, fragmenter, hashes);
+    }
+
+    /** Store and pin a cryptree node for already stored fragments */
+    private static Multihash storeChunk(ContentAddressedStorage store, Fragmenter fragmenter, List<Multihash> hashes) throws Exception {
+        EncryptedChunkRetriever retriever = new EncryptedChunkRetriever(new byte[24], new byte[16], hashes,
+                Optional.empty(), fragmenter);
+        SymmetricKey key = SymmetricKey.random();
+        FileAccess file = FileAccess.create(MaybeMultihash.empty(), key, key, key, FileProperties.EMPTY, retriever,
+                new Location(PublicKeyHash.NULL, PublicKeyHash.NULL, new byte[32]), key);
+        Multihash root = store.put(PublicKeyHash.NULL, file.serialize()).get();
+        store.recursivePin(root).get();
+        return root;
+    }
+
+    private static List<Multihash> fragments(ContentAddressedStorage store, Multihash root) throws Exception {
+        return store.getLinks(root).get();
+    }
+
+    private static void corrupt(SegmentedFileStorage store, Multihash block) throws IOException {
+        FileRegionStorage.Region region = store.getRegion(block).get();
+        byte[] garbage = new byte[16];
+        random.nextBytes(garbage);
+        region.channel.write(ByteBuffer.wrap(garbage), region.offset);
+    }
+
+    private static byte[] randomData(int size) {
+        byte[] data = new byte[size];
+        random.nextBytes(data);
+        return data;
+    }
+
+    @Test
+    public void rebuildCorruptFragments() throws Exception {
+        List<Fragmenter> fragmenters = Arrays.asList(
+                new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES),
+                new LocallyRepairableFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES,
+                        LocallyRepairableFragmenter.LRC_GROUP_SIZE));
+        for (Fragmenter fragmenter : fragmenters) {
+            try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+                byte[] data = randomData(Chunk.MAX_SIZE);
+                Multihash root = storeChunk(store, fragmenter, data);
+                List<Multihash> fragments = fragments(store, root);
+                // an original, a global parity and the last fragment
+                List<Multihash> lost = Arrays.asList(fragments.get(3), fragments.get(45), fragments.get(fragments.size() - 1));
+                for (Multihash fragment : lost)
+                    corrupt(store, fragment);
+
+                Scrubber scrubber = new Scrubber(store, store, UNLIMITED, Optional.empty());
+                Assert.assertTrue(scrubber.scrub());
+                Map<String, Long> metrics = scrubber.metrics();
+                Assert.assertEquals(3L, (long) metrics.get("corruptBlocks"));
+                Assert.assertEquals(3L, (long) metrics.get("repairedFragments"));
+                Assert.assertTrue(scrubber.getDamagedBlocks().isEmpty());
+                for (Multihash fragment : lost) {
+                    byte[] repaired = store.getRaw(fragment).get().get();
+                    Assert.assertEquals(fragment, RAMStorage.hashToCid(repaired, true));
+                }
+
+                // a second pass finds nothing wrong
+                Scrubber again = new Scrubber(store, store, UNLIMITED, Optional.empty());
+                again.scrub();
+                Assert.assertEquals(0L, (long) again.metrics().get("corruptBlocks"));
+            }
+        }
+    }
+
+    @Test
+    public void recordUnrepairableFragments() throws Exception {
+        try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+            Multihash root = storeChunk(store, new SplitFragmenter(), randomData(100_000));
+            Multihash fragment = fragments(store, root).get(0);
+            corrupt(store, fragment);
+
+            Scrubber scrubber = new Scrubber(store, store, UNLIMITED, Optional.empty());
+            scrubber.scrub();
+            Assert.assertEquals(1L, (long) scrubber.metrics().get("unrepairableChunks"));
+            Assert.assertEquals(Collections.singleton(fragment), scrubber.getDamagedBlocks());
+        }
+    }
+
+    @Test
+    public void sharedFragmentsAreCheckedOnce() throws Exception {
+        try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+            Fragmenter fragmenter = new SplitFragmenter();
+            Multihash first = storeChunk(store, fragmenter, randomData(200_000));
+            List<Multihash> fragments = fragments(store, first);
+            // a later version of the file node with the same data
+            storeChunk(store, fragmenter, fragments);
+            corrupt(store, fragments.get(0));
+
+            Scrubber scrubber = new Scrubber(store, store, UNLIMITED, Optional.empty());
+            scrubber.scrub();
+            Map<String, Long> metrics = scrubber.metrics();
+            Assert.assertEquals(2L + fragments.size(), (long) metrics.get("blocksChecked"));
+            Assert.assertEquals(1L, (long) metrics.get("corruptBlocks"));
+            Assert.assertEquals(1L, (long) metrics.get("unrepairableChunks"));
+            Assert.assertEquals(Collections.singleton(fragments.get(0)), scrubber.getDamagedBlocks());
+        }
+    }
+
+    @Test
+    public void repairIsOnlyCountedOnceStored() throws Exception {
+        Set<Multihash> damagedCopies = new HashSet<>();
+        // like ipfs, a put of a block it already has leaves its damaged copy in place
+        RAMStorage store = new RAMStorage() {
+            @Override
+            public CompletableFuture<Optional<byte[]>> getRaw(Multihash hash) {
+                if (damagedCopies.contains(hash))
+                    return CompletableFuture.completedFuture(Optional.of(randomData(100)));
+                return super.getRaw(hash);
+            }
+        };
+        Fragmenter fragmenter = new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES);
+        Multihash root = storeChunk(store, fragmenter, randomData(Chunk.MAX_SIZE));
+        Multihash fragment = fragments(store, root).get(0);
+        damagedCopies.add(fragment);
+
+        Scrubber scrubber = new Scrubber(store, store, UNLIMITED, Optional.empty());
+        scrubber.scrub();
+        Map<String, Long> metrics = scrubber.metrics();
+        Assert.assertEquals(0L, (long) metrics.get("repairedFragments"));
+        Assert.assertEquals(1L, (long) metrics.get("unrepairableChunks"));
+        Assert.assertEquals(Collections.singleton(fragment), scrubber.getDamagedBlocks());
+    }
+
+    @Test
+    public void resumeFromCheckpoint() throws Exception {
+        Path dir = tempDir();
+        try (SegmentedFileStorage store = new SegmentedFileStorage(dir)) {
+            Fragmenter fragmenter = new SplitFragmenter();
+            Multihash a = storeChunk(store, fragmenter, randomData(1000));
+            Multihash b = storeChunk(store, fragmenter, randomData(1000));
+            // roots are scrubbed in sorted order
+            boolean aFirst = a.toString().compareTo(b.toString()) < 0;
+            Multihash first = aFirst ? a : b, second = aFirst ? b : a;
+            Path checkpoint = dir.resolve("scrub-checkpoint.txt");
+            // a previous run scrubbed the first root before stopping
+            Files.write(checkpoint, Arrays.asList(first.toString()));
+
+            Scrubber scrubber = new Scrubber(store, store, UNLIMITED, Optional.of(checkpoint));
+            Assert.assertTrue(scrubber.scrub());
+            long secondRootBlocks = 1 + fragments(store, second).size();
+            Assert.assertEquals(secondRootBlocks, (long) scrubber.metrics().get("blocksChecked"));
+            Assert.assertFalse("pass finished", Files.exists(checkpoint));
+        }
+    }
+
+    @Test
+    public void rateLimited() throws Exception {
+        try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+            storeChunk(store, new SplitFragmenter(), randomData(200_000));
+            Scrubber scrubber = new Scrubber(store, store, 1_000_000, Optional.empty());
+            long start = System.currentTimeMillis();
+            scrubber.scrub();
+            long duration = System.currentTimeMillis() - start;
+            Assert.assertTrue("Took " + duration + " mS", duration >= 150);
+        }
+    }
+}
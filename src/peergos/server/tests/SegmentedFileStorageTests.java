@@ -0,0 +1,166 @@
+package peergos.server.tests;
+
+import org.junit.*;
+import peergos.server.storage.*;
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+
+import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.file.*;
+import java.util.*;
+import java.util.stream.*;
+
+public class SegmentedFileStorageTests {
+    private static Random random = new Random(42);
+    private final List<Path> tempDirs = new ArrayList<>();
+
+    private Path tempDir() throws IOException {
+        Path dir = Files.createTempDirectory("peergos-blocks");
+        tempDirs.add(dir);
+        return dir;
+    }
+
+    @After
+    public void cleanup() throws IOException {
+        for (Path dir : tempDirs)
+            deleteRecursively(dir);
+    }
+
+    public static void deleteRecursively(Path dir) throws IOException {
+        if (! Files.exists(dir))
+            return;
+        try (Stream<Path> files = Files.walk(dir)) {
+            for (Path file : files.sorted(Comparator.reverseOrder()).collect(Collectors.toList()))
+                Files.delete(file);
+        }
+    }
+
+    private static byte[] randomBlock(int size) {
+        byte[] block = new byte[size];
+        random.nextBytes(block);
+        return block;
+    }
+
+    @Test
+    public void putAndGet() throws Exception {
+        try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+            byte[] raw = randomBlock(1000);
+            Multihash rawHash = store.putRaw(PublicKeyHash.NULL, raw).get();
+            Assert.assertTrue(Arrays.equals(raw, store.getRaw(rawHash).get().get()));
+            Assert.assertEquals(raw.length, (int) store.getSize(rawHash).get().get());
+            Assert.assertTrue(store.getLinks(rawHash).get().isEmpty());
+
+            CborObject cbor = new CborObject.CborList(Arrays.asList(new CborObject.CborMerkleLink(rawHash)));
+            Multihash cborHash = store.put(PublicKeyHash.NULL, cbor.toByteArray()).get();
+            Assert.assertEquals(cbor, store.get(cborHash).get().get());
+            Assert.assertEquals(Arrays.asList(rawHash), store.getLinks(cborHash).get());
+
+            Assert.assertFalse(store.getRaw(RAMStorage.hashToCid(new byte[10], true)).get().isPresent());
+        }
+    }
+
+    @Test
+    public void reopenAcrossSegments() throws Exception {
+        Path dir = tempDir();
+        List<byte[]> blocks = IntStream.range(0, 50)
+                .mapToObj(i -> randomBlock(10_000))
+                .collect(Collectors.toList());
+        List<Multihash> hashes;
+        try (SegmentedFileStorage store = new SegmentedFileStorage(dir, 64 * 1024)) {
+            hashes = store.putRaw(PublicKeyHash.NULL, blocks).get();
+        }
+        Assert.assertTrue("rolled segments", Files.list(dir).count() > 1);
+
+        try (SegmentedFileStorage reopened = new SegmentedFileStorage(dir, 64 * 1024)) {
+            Assert.assertEquals(blocks.size(), reopened.size());
+            for (int i=0; i < blocks.size(); i++)
+                Assert.assertTrue(Arrays.equals(blocks.get(i), reopened.getRaw(hashes.get(i)).get().get()));
+        }
+    }
+
+    @Test
+    public void truncateTornTail() throws Exception {
+        Path dir = tempDir();
+        byte[] first = randomBlock(5000);
+        byte[] second = randomBlock(5000);
+        Multihash firstHash, secondHash;
+        try (SegmentedFileStorage store = new SegmentedFileStorage(dir)) {
+            firstHash = store.putRaw(PublicKeyHash.NULL, first).get();
+            secondHash = store.putRaw(PublicKeyHash.NULL, second).get();
+        }
+        Path segment = Files.list(dir).findFirst().get();
+        long fullSize = Files.size(segment);
+        try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.WRITE)) {
+            channel.truncate(fullSize - 100);
+        }
+
+        try (SegmentedFileStorage reopened = new SegmentedFileStorage(dir)) {
+            Assert.assertTrue(Arrays.equals(first, reopened.getRaw(firstHash).get().get()));
+            Assert.assertFalse(reopened.getRaw(secondHash).get().isPresent());
+            // new writes go after the last complete record
+            reopened.putRaw(PublicKeyHash.NULL, second).get();
+            Assert.assertTrue(Arrays.equals(second, reopened.getRaw(secondHash).get().get()));
+        }
+        try (SegmentedFileStorage reopened = new SegmentedFileStorage(dir)) {
+            Assert.assertEquals(2, reopened.size());
+        }
+    }
+
+    @Test
+    public void pinsSurviveRestart() throws Exception {
+        Path dir = tempDir();
+        Multihash kept, unpinned, updated;
+        try (SegmentedFileStorage store = new SegmentedFileStorage(dir)) {
+            kept = store.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+            unpinned = store.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+            updated = store.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+            store.recursivePin(kept).get();
+            store.recursivePin(unpinned).get();
+            store.recursiveUnpin(unpinned).get();
+            store.pinUpdate(kept, updated).get();
+        }
+        try (SegmentedFileStorage reopened = new SegmentedFileStorage(dir)) {
+            Assert.assertEquals(new HashSet<>(Arrays.asList(kept, updated)), reopened.getPinnedRoots().get());
+            // pin records aren't blocks
+            Assert.assertEquals(3, reopened.size());
+        }
+    }
+
+    @Test
+    public void closedStoresAreNotShared() throws Exception {
+        Path dir = tempDir();
+        SegmentedFileStorage store = SegmentedFileStorage.open(dir);
+        Assert.assertSame(store, SegmentedFileStorage.open(dir));
+        store.close();
+        try (SegmentedFileStorage reopened = SegmentedFileStorage.open(dir)) {
+            Assert.assertNotSame(store, reopened);
+            Multihash hash = reopened.putRaw(PublicKeyHash.NULL, randomBlock(100)).get();
+            Assert.assertTrue(reopened.getRaw(hash).get().isPresent());
+        }
+    }
+
+    @Test
+    public void replaceRepairsDamagedBlock() throws Exception {
+        try (SegmentedFileStorage store = new SegmentedFileStorage(tempDir())) {
+            byte[] block = randomBlock(1000);
+            Cid hash = (Cid) store.putRaw(PublicKeyHash.NULL, block).get();
+            FileRegionStorage.Region region = store.getRegion(hash).get();
+            region.channel.write(ByteBuffer.wrap(randomBlock(16)), region.offset);
+
+            // a plain put of a block we already have doesn't touch the disk
+            store.putRaw(PublicKeyHash.NULL, block).get();
+            Assert.assertFalse(Arrays.equals(block, store.getRaw(hash).get().get()));
+
+            store.replace(hash, block);
+            Assert.assertTrue(Arrays.equals(block, store.getRaw(hash).get().get()));
+            try {
+                store.replace(hash, randomBlock(1000));
+                Assert.fail("Replaced a block with the wrong data");
+            } catch (IllegalArgumentException e) {}
+        }
+    }
+}
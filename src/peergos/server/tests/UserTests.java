@@ -128,6 +128,9 @@ public abstract class UserTests {
         String password = "password";
         ensureSignedUp(username, password, network, crypto);
         CompletableFuture<UserContext> secondSignup = UserContext.signUp(username, password, network, crypto);
+        try {
+            secondSignup.get();
+        } catch (ExecutionException e) {}
 
         Assert.assertTrue("Second sign up fails", secondSignup.isCompletedExceptionally());
     }
@@ -411,6 +414,21 @@ public abstract class UserTests {
                 context.crypto.random, l -> {}, context.fragmenter()).get();
     }
 
+    @Test
+    public void erasureCodedFile() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = ensureSignedUp(username, password, network, crypto);
+        FileTreeNode userRoot = context.getUserRoot().get();
+
+        String filename = "erasure.bin";
+        byte[] data = randomData(Chunk.MAX_SIZE + 1024);
+        Fragmenter fragmenter = new ErasureFragmenter(ErasureFragmenter.ERASURE_ORIGINAL, ErasureFragmenter.ERASURE_ALLOWED_FAILURES);
+        FileTreeNode updatedRoot = userRoot.uploadFile(filename, new AsyncReader.ArrayBacked(data), data.length, context.network,
+                context.crypto.random, l -> {}, fragmenter).get();
+        checkFileContents(data, updatedRoot.getDescendentByPath(filename, context.network).get().get(), context);
+    }
+
     @Test
     public void javaThumbnail() throws Exception {
         String username = generateUsername();
@@ -748,6 +766,50 @@ public abstract class UserTests {
         checkFileContents(data, copy, context);
     }
 
+    @Test
+    public void randomAccessReads() throws Exception {
+        String username = generateUsername();
+        String password = "test01";
+        UserContext context = ensureSignedUp(username, password, network, crypto);
+        FileTreeNode userRoot = context.getUserRoot().get();
+
+        String filename = "indexed.bin";
+        // enough chunks to get a chunk index
+        byte[] data = randomData(ChunkIndex.MIN_CHUNKS * Chunk.MAX_SIZE + 1024);
+        FileTreeNode updatedRoot = userRoot.uploadFile(filename, new AsyncReader.ArrayBacked(data), data.length,
+                context.network, context.crypto.random, l -> {}, context.fragmenter()).get();
+        FileTreeNode file = updatedRoot.getDescendentByPath(filename, context.network).get().get();
+        Assert.assertTrue("Has chunk index", getChunkIndex(file).isPresent());
+        checkRandomAccess(data, file, context);
+
+        // rewrite part of the first chunk
+        byte[] section = randomData(4096);
+        int start = 1024;
+        FileTreeNode updatedRoot2 = updatedRoot.uploadFileSection(filename, new AsyncReader.ArrayBacked(section), start,
+                start + section.length, context.network, context.crypto.random, l -> {}, context.fragmenter()).get();
+        System.arraycopy(section, 0, data, start, section.length);
+        FileTreeNode updated = updatedRoot2.getDescendentByPath(filename, context.network).get().get();
+        Assert.assertTrue("Kept chunk index", getChunkIndex(updated).isPresent());
+        checkRandomAccess(data, updated, context);
+    }
+
+    private static Optional<ChunkIndex> getChunkIndex(FileTreeNode file) {
+        return ((FileAccess)file.getPointer().fileAccess).retriever().getChunkIndex(getDataKey(file));
+    }
+
+    private static void checkRandomAccess(byte[] expected, FileTreeNode f, UserContext context) throws Exception {
+        AsyncReader in = f.getInputStream(context.network, context.crypto.random, f.getFileProperties().size, l -> {}).get();
+        // backwards and forwards, within a chunk and across chunk boundaries
+        long[] positions = {expected.length - 100, Chunk.MAX_SIZE + 17, 3L * Chunk.MAX_SIZE - 50, 10,
+                2L * Chunk.MAX_SIZE + 5, 2L * Chunk.MAX_SIZE + 200};
+        for (long pos : positions) {
+            in.seek((int) (pos >> 32), (int) pos).get();
+            int len = (int) Math.min(100, expected.length - pos);
+            byte[] read = Serialize.readFully(in, len).get();
+            assertTrue("Correct contents at " + pos, Arrays.equals(read, Arrays.copyOfRange(expected, (int) pos, (int) pos + len)));
+        }
+    }
+
     public static SymmetricKey getDataKey(FileTreeNode file) {
         return ((FileAccess)file.getPointer().fileAccess).getDataKey(file.getPointer().filePointer.baseKey);
     }
@@ -2,6 +2,7 @@ package peergos.shared;
 
 import jsinterop.annotations.*;
 import peergos.client.*;
+import peergos.server.net.*;
 import peergos.server.tests.*;
 import peergos.shared.cbor.*;
 import peergos.shared.corenode.*;
@@ -11,6 +12,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.merklebtree.*;
 import peergos.shared.mutable.*;
 import peergos.shared.storage.*;
 import peergos.shared.user.*;
@@ -44,7 +46,7 @@ public class NetworkAccess {
 
     public NetworkAccess(CoreNode coreNode, ContentAddressedStorage dhtClient, MutablePointers mutable, Btree btree, List<String> usernames, boolean isJavascript) {
         this.coreNode = coreNode;
-        this.dhtClient = new HashVerifyingStorage(dhtClient);
+        this.dhtClient = dhtClient;
         this.mutable = mutable;
         this.btree = btree;
         this.usernames = usernames;
@@ -77,8 +79,8 @@ public class NetworkAccess {
         CoreNode coreNode = new HTTPCoreNode(poster);
         MutablePointers mutable = new CachingPointers(new HttpMutablePointers(poster), cacheTTL);
 
-        // allow 10MiB of ram for caching btree entries
-        ContentAddressedStorage dht = new CachingStorage(new ContentAddressedStorage.HTTP(poster), 10_000, 50 * 1024);
+        // allow 10MiB of ram for caching btree entries, blocks are verified once as they enter the cache
+        ContentAddressedStorage dht = new CachingStorage(new HashVerifyingStorage(new ContentAddressedStorage.HTTP(poster)), 10 * 1024 * 1024, 50 * 1024);
         Btree btree = new BtreeImpl(mutable, dht);
         return coreNode.getUsernames("").thenApply(usernames -> new NetworkAccess(coreNode, dht, mutable, btree, usernames, isJavascript));
     }
@@ -91,7 +93,7 @@ public class NetworkAccess {
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(URL target) {
-        return build(new JavaPoster(target), false);
+        return build(new PooledJavaPoster(target), false);
     }
 
     public static CompletableFuture<NetworkAccess> buildJava(int targetPort) {
@@ -104,27 +106,45 @@ public class NetworkAccess {
 
     public CompletableFuture<List<RetrievedFilePointer>> retrieveAllMetadata(List<SymmetricLocationLink> links,
                                                                                     SymmetricKey baseKey) {
-        List<CompletableFuture<Optional<RetrievedFilePointer>>> all = links.stream()
+        // with several children to look up, get the top of each writer's btree in one request rather than a level at a time
+        Set<PublicKeyHash> writers = links.size() > 1 ?
+                links.stream().map(link -> link.targetLocation(baseKey).writer).collect(Collectors.toSet()) :
+                Collections.emptySet();
+        return Futures.combineAll(writers.stream()
+                .map(writer -> btree.prefetch(writer).exceptionally(t -> false))
+                .collect(Collectors.toList()))
+                .thenCompose(prefetched -> lookupAllMetadata(links, baseKey));
+    }
+
+    private CompletableFuture<List<RetrievedFilePointer>> lookupAllMetadata(List<SymmetricLocationLink> links,
+                                                                            SymmetricKey baseKey) {
+        List<CompletableFuture<MaybeMultihash>> keys = links.stream()
                 .map(link -> {
                     Location loc = link.targetLocation(baseKey);
-                    return btree.get(loc.writer, loc.getMapKey())
-                            .thenCompose(key -> {
-                                if (key.isPresent())
-                                    return dhtClient.get(key.get())
-                                            .thenApply(dataOpt ->  dataOpt
-                                                    .map(cbor -> new RetrievedFilePointer(
-                                                            link.toReadableFilePointer(baseKey),
-                                                            CryptreeNode.fromCbor(cbor, key.get()))));
-                                System.err.println("Couldn't download link at: " + loc);
-                                Optional<RetrievedFilePointer> result = Optional.empty();
-                                return CompletableFuture.completedFuture(result);
-                            });
+                    return btree.get(loc.writer, loc.getMapKey());
                 }).collect(Collectors.toList());
 
-        return Futures.combineAll(all).thenApply(optSet -> optSet.stream()
-                .filter(Optional::isPresent)
-                .map(Optional::get)
-                .collect(Collectors.toList()));
+        return Futures.combineAllInOrder(keys).thenCompose(hashes -> {
+            List<Integer> found = new ArrayList<>();
+            for (int i=0; i < hashes.size(); i++) {
+                if (hashes.get(i).isPresent())
+                    found.add(i);
+                else
+                    System.err.println("Couldn't download link at: " + links.get(i).targetLocation(baseKey));
+            }
+            // fetch all the cryptree nodes in as few requests as possible
+            return dhtClient.getMany(found.stream()
+                    .map(i -> hashes.get(i).get())
+                    .collect(Collectors.toList()))
+                    .thenApply(blocks -> IntStream.range(0, found.size())
+                            .filter(j -> blocks.get(j).isPresent())
+                            .mapToObj(j -> {
+                                int i = found.get(j);
+                                return new RetrievedFilePointer(
+                                        links.get(i).toReadableFilePointer(baseKey),
+                                        CryptreeNode.fromCbor(CborObject.fromByteArray(blocks.get(j).get()), hashes.get(i).get()));
+                            }).collect(Collectors.toList()));
+        });
     }
 
     public CompletableFuture<Set<FileTreeNode>> retrieveAll(List<EntryPoint> entries) {
@@ -198,6 +218,17 @@ public class NetworkAccess {
         }
     }
 
+    /** Store the metadata and stage its btree put in transaction, it isn't visible until the transaction is committed */
+    public CompletableFuture<Multihash> uploadChunk(CryptreeNode metadata, Location location, Btree.Transaction transaction) {
+        if (! transaction.writer.publicKeyHash.equals(location.writer))
+            throw new IllegalStateException("Non matching location writer and signing writer key!");
+        return dhtClient.put(location.owner, metadata.serialize())
+                .thenApply(blobHash -> {
+                    transaction.put(location.getMapKey(), metadata.committedHash(), blobHash);
+                    return blobHash;
+                });
+    }
+
     public CompletableFuture<Optional<CryptreeNode>> getMetadata(Location loc) {
         if (loc == null)
             return CompletableFuture.completedFuture(Optional.empty());
@@ -212,19 +243,107 @@ public class NetworkAccess {
     public CompletableFuture<List<FragmentWithHash>> downloadFragments(List<Multihash> hashes,
                                                                        ProgressConsumer<Long> monitor,
                                                                        double spaceIncreaseFactor) {
-        List<CompletableFuture<Optional<FragmentWithHash>>> futures = hashes.stream().parallel()
-                .map(h -> ((h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
-                        dhtClient.getRaw(h) :
-                        dhtClient.get(h)
-                                .thenApply(cborOpt -> cborOpt.map(cbor -> ((CborObject.CborByteArray) cbor).value))) // for backwards compatibility
-                        .thenApply(dataOpt -> {
-                            Optional<byte[]> bytes = dataOpt;
-                            bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
-                            return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
-                        }))
-                .collect(Collectors.toList());
+        return dhtClient.getMany(hashes)
+                .thenApply(blocks -> IntStream.range(0, hashes.size())
+                        .mapToObj(i -> toFragment(hashes.get(i), blocks.get(i), monitor, spaceIncreaseFactor))
+                        .filter(Optional::isPresent)
+                        .map(Optional::get)
+                        .collect(Collectors.toList()));
+    }
 
-        return Futures.combineAllInOrder(futures)
-                .thenApply(optList -> optList.stream().filter(Optional::isPresent).map(Optional::get).collect(Collectors.toList()));
+    /**
+     *
+     * @param required the number of fragments needed, any of them will do
+     * @return the fragments in the same order as hashes, with an empty entry for any we don't have. This completes as
+     * soon as required fragments have arrived, or fails if that isn't possible.
+     */
+    public CompletableFuture<List<Optional<FragmentWithHash>>> downloadFragments(List<Multihash> hashes,
+                                                                                 int required,
+                                                                                 ProgressConsumer<Long> monitor,
+                                                                                 double spaceIncreaseFactor) {
+        FragmentFetch fetch = new FragmentFetch(hashes, required, monitor, spaceIncreaseFactor);
+        fetch.requestMore();
+        return fetch.result;
+    }
+
+    private static Optional<FragmentWithHash> toFragment(Multihash h,
+                                                         Optional<byte[]> block,
+                                                         ProgressConsumer<Long> monitor,
+                                                         double spaceIncreaseFactor) {
+        Optional<byte[]> bytes = (h instanceof Cid) && ((Cid) h).codec == Cid.Codec.Raw ?
+                block :
+                block.map(raw -> ((CborObject.CborByteArray) CborObject.fromByteArray(raw)).value); // for backwards compatibility
+        bytes.ifPresent(arr -> monitor.accept((long)(arr.length / spaceIncreaseFactor)));
+        return bytes.map(data -> new FragmentWithHash(new Fragment(data), h));
+    }
+
+    private static final int FRAGMENTS_PER_DOWNLOAD = 5;
+
+    /** Requests fragments in order, in parallel batches, keeping a batch more than we need in flight. A batch which
+     *  fails, or is missing fragments, is replaced by requests for the next fragments. Those still in flight when we
+     *  have enough are ignored.
+     */
+    private class FragmentFetch {
+        private final List<Multihash> hashes;
+        private final int required, target, batchSize;
+        private final ProgressConsumer<Long> monitor;
+        private final double spaceIncreaseFactor;
+        private final List<Optional<FragmentWithHash>> fragments = new ArrayList<>();
+        public final CompletableFuture<List<Optional<FragmentWithHash>>> result = new CompletableFuture<>();
+        private int next = 0, pending = 0, received = 0;
+
+        public FragmentFetch(List<Multihash> hashes, int required, ProgressConsumer<Long> monitor, double spaceIncreaseFactor) {
+            this.hashes = hashes;
+            this.required = required;
+            this.target = Math.min(hashes.size(), required + FRAGMENTS_PER_DOWNLOAD);
+            // if we need every fragment there is no point splitting them up
+            this.batchSize = required >= hashes.size() ? Math.max(1, hashes.size()) : FRAGMENTS_PER_DOWNLOAD;
+            this.monitor = monitor;
+            this.spaceIncreaseFactor = spaceIncreaseFactor;
+            for (int i=0; i < hashes.size(); i++)
+                fragments.add(Optional.empty());
+        }
+
+        public synchronized void requestMore() {
+            if (result.isDone())
+                return;
+            if (received >= required) {
+                result.complete(new ArrayList<>(fragments));
+                return;
+            }
+            while (received + pending < target && next < hashes.size()) {
+                int start = next, end = Math.min(hashes.size(), next + batchSize);
+                next = end;
+                pending += end - start;
+                CompletableFuture<List<Optional<byte[]>>> batch = dhtClient.getMany(hashes.subList(start, end));
+                batch.thenAccept(blocks -> arrived(start, end, blocks));
+                batch.exceptionally(t -> {
+                    arrived(start, end, Collections.emptyList());
+                    return null;
+                });
+            }
+            if (! result.isDone() && received + pending < required)
+                result.completeExceptionally(new IllegalStateException("Couldn't retrieve enough fragments! Only "
+                        + received + " of " + required + " required."));
+        }
+
+        private synchronized void arrived(int start, int end, List<Optional<byte[]>> blocks) {
+            pending -= end - start;
+            if (result.isDone())
+                return;
+            try {
+                for (int i = start; i < end && i - start < blocks.size(); i++) {
+                    Optional<FragmentWithHash> fragment = toFragment(hashes.get(i), blocks.get(i - start), monitor, spaceIncreaseFactor);
+                    if (fragment.isPresent()) {
+                        fragments.set(i, fragment);
+                        received++;
+                    }
+                }
+                requestMore();
+            } catch (Throwable t) {
+                // e.g. a malformed fragment, we are called from a callback so nothing else would see this
+                result.completeExceptionally(t);
+            }
+        }
     }
 }
@@ -7,20 +7,30 @@ import java.security.NoSuchAlgorithmException;
 public class Hash {
     public static final String HASH = "SHA-256";
 
+    // looking up a digest is much slower than reusing one, and a digest can only be used by one thread at a time
+    private static final ThreadLocal<MessageDigest> digests = ThreadLocal.withInitial(Hash::newDigest);
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance(HASH);
+        } catch (NoSuchAlgorithmException e) {
+            return null;
+        }
+    }
+
     public static byte[] sha256(byte[] input)
     {
-        try {
-            MessageDigest md = MessageDigest.getInstance(HASH);
-            md.update(input);
-            return md.digest();
-        } catch (NoSuchAlgorithmException e)
-        {
+        MessageDigest md = digests.get();
+        if (md == null) {
             // This is only here to work around a bug in Doppio JVM
             Sha256 sha256 = new Sha256();
             sha256.update(input);
             byte[] hash = sha256.digest();
             return hash;
         }
+        // digest() resets it for the next hash
+        md.update(input);
+        return md.digest();
     }
 
     public static byte[] sha256(String password)
@@ -0,0 +1,310 @@
+package peergos.shared.io.ipfs.api;
+
+import java.io.*;
+import java.util.*;
+import java.util.function.*;
+
+/** A pull style JSON tokenizer that reads utf-8 directly from a stream. Values are consumed one at a time, and any
+ *  that aren't wanted are skipped without being decoded, so large responses (like the refs of a big DAG) can be
+ *  processed without building the whole document in memory.
+ *
+ *  Many ipfs api calls return a stream of concatenated top level values, these are read one after another until
+ *  peek() returns END_DOCUMENT.
+ */
+public class JSONReader {
+    public enum Token {BEGIN_OBJECT, END_OBJECT, BEGIN_ARRAY, END_ARRAY, NAME, STRING, NUMBER, BOOLEAN, NULL, END_DOCUMENT}
+
+    private static final int MAX_DEPTH = 256;
+
+    private final InputStream in;
+    private final byte[] buf = new byte[8 * 1024];
+    private int pos = 0, limit = 0;
+    // for each enclosing container, whether it is an object, and if so whether a name comes next
+    private final boolean[] isObject = new boolean[MAX_DEPTH];
+    private final boolean[] nameNext = new boolean[MAX_DEPTH];
+    private int depth = 0;
+    private Token peeked;
+
+    public JSONReader(InputStream in) {
+        this.in = in;
+    }
+
+    public JSONReader(byte[] json) {
+        this(new ByteArrayInputStream(json));
+    }
+
+    /** The next byte without consuming it, or -1 at the end of the stream */
+    private int peekByte() throws IOException {
+        if (pos == limit) {
+            limit = in.read(buf, 0, buf.length);
+            pos = 0;
+            if (limit <= 0) {
+                limit = 0;
+                return -1;
+            }
+        }
+        return buf[pos] & 0xff;
+    }
+
+    private int readByte() throws IOException {
+        int b = peekByte();
+        if (b < 0)
+            throw new EOFException("Unexpected end of JSON");
+        pos++;
+        return b;
+    }
+
+    public Token peek() throws IOException {
+        if (peeked != null)
+            return peeked;
+        int c;
+        // separators carry no information we don't already have from the nesting
+        while ((c = peekByte()) == ' ' || c == '\n' || c == '\r' || c == '\t' || c == ',' || c == ':')
+            pos++;
+        switch (c) {
+            case -1:
+                if (depth > 0)
+                    throw new EOFException("Unterminated JSON");
+                return peeked = Token.END_DOCUMENT;
+            case '{': return peeked = Token.BEGIN_OBJECT;
+            case '}': return peeked = Token.END_OBJECT;
+            case '[': return peeked = Token.BEGIN_ARRAY;
+            case ']': return peeked = Token.END_ARRAY;
+            case '"': return peeked = depth > 0 && isObject[depth - 1] && nameNext[depth - 1] ? Token.NAME : Token.STRING;
+            case 't':
+            case 'f': return peeked = Token.BOOLEAN;
+            case 'n': return peeked = Token.NULL;
+            default:
+                if (c == '-' || (c >= '0' && c <= '9'))
+                    return peeked = Token.NUMBER;
+                throw new IOException("Unexpected character in JSON: " + (char) c);
+        }
+    }
+
+    private void expect(Token expected) throws IOException {
+        Token actual = peek();
+        if (actual != expected)
+            throw new IOException("Expected " + expected + " but was " + actual);
+        peeked = null;
+    }
+
+    /** A value has been consumed, so in an object the next string is a name */
+    private void afterValue() {
+        if (depth > 0)
+            nameNext[depth - 1] = true;
+    }
+
+    private void push(boolean object) throws IOException {
+        if (depth == MAX_DEPTH)
+            throw new IOException("JSON nested too deeply");
+        isObject[depth] = object;
+        nameNext[depth] = true;
+        depth++;
+    }
+
+    public void beginObject() throws IOException {
+        expect(Token.BEGIN_OBJECT);
+        pos++;
+        push(true);
+    }
+
+    public void endObject() throws IOException {
+        expect(Token.END_OBJECT);
+        pos++;
+        depth--;
+        afterValue();
+    }
+
+    public void beginArray() throws IOException {
+        expect(Token.BEGIN_ARRAY);
+        pos++;
+        push(false);
+    }
+
+    public void endArray() throws IOException {
+        expect(Token.END_ARRAY);
+        pos++;
+        depth--;
+        afterValue();
+    }
+
+    /**
+     *
+     * @return whether there is another element in the current object or array, or another top level value
+     */
+    public boolean hasNext() throws IOException {
+        Token next = peek();
+        return next != Token.END_OBJECT && next != Token.END_ARRAY && next != Token.END_DOCUMENT;
+    }
+
+    public String nextName() throws IOException {
+        expect(Token.NAME);
+        String name = readString();
+        nameNext[depth - 1] = false;
+        return name;
+    }
+
+    public String nextString() throws IOException {
+        expect(Token.STRING);
+        String value = readString();
+        afterValue();
+        return value;
+    }
+
+    public long nextLong() throws IOException {
+        Number n = nextNumber();
+        if (n instanceof Double)
+            throw new IOException("Expected an integer but was " + n);
+        return n.longValue();
+    }
+
+    /**
+     *
+     * @return an Integer or Long for integral values, and a Double otherwise
+     */
+    public Number nextNumber() throws IOException {
+        expect(Token.NUMBER);
+        boolean negative = false, integral = true;
+        long value = 0;
+        int digits = 0;
+        StringBuilder text = new StringBuilder();
+        int c;
+        while ((c = peekByte()) >= 0 && (c == '-' || c == '+' || c == '.' || c == 'e' || c == 'E' || (c >= '0' && c <= '9'))) {
+            pos++;
+            text.append((char) c);
+            if (c == '-' && text.length() == 1)
+                negative = true;
+            else if (c >= '0' && c <= '9' && integral)
+                value = value * 10 + (c - '0');
+            else
+                integral = false;
+            if (c >= '0' && c <= '9')
+                digits++;
+        }
+        afterValue();
+        if (! integral || digits > 18)
+            return Double.parseDouble(text.toString());
+        long signed = negative ? -value : value;
+        if (signed >= Integer.MIN_VALUE && signed <= Integer.MAX_VALUE)
+            return (int) signed;
+        return signed;
+    }
+
+    public boolean nextBoolean() throws IOException {
+        expect(Token.BOOLEAN);
+        boolean value = peekByte() == 't';
+        readLiteral(value ? "true" : "false");
+        afterValue();
+        return value;
+    }
+
+    public void nextNull() throws IOException {
+        expect(Token.NULL);
+        readLiteral("null");
+        afterValue();
+    }
+
+    private void readLiteral(String literal) throws IOException {
+        for (int i=0; i < literal.length(); i++)
+            if (readByte() != literal.charAt(i))
+                throw new IOException("Invalid JSON literal, expected " + literal);
+    }
+
+    /** Skip the next value, including everything nested inside it, without decoding any strings */
+    public void skipValue() throws IOException {
+        int nested = 0;
+        do {
+            switch (peek()) {
+                case BEGIN_OBJECT: beginObject(); nested++; break;
+                case BEGIN_ARRAY: beginArray(); nested++; break;
+                case END_OBJECT: endObject(); nested--; break;
+                case END_ARRAY: endArray(); nested--; break;
+                case NAME: peeked = null; skipString(); nameNext[depth - 1] = false; break;
+                case STRING: peeked = null; skipString(); afterValue(); break;
+                case NUMBER: nextNumber(); break;
+                case BOOLEAN: nextBoolean(); break;
+                case NULL: nextNull(); break;
+                case END_DOCUMENT: throw new EOFException("Unexpected end of JSON");
+            }
+        } while (nested > 0);
+    }
+
+    private void skipString() throws IOException {
+        pos++; // opening quote
+        while (true) {
+            int c = readByte();
+            if (c == '"')
+                return;
+            if (c == '\\')
+                readByte();
+        }
+    }
+
+    private String readString() throws IOException {
+        pos++; // opening quote
+        StringBuilder res = new StringBuilder();
+        while (true) {
+            int c = readByte();
+            if (c == '"')
+                return res.toString();
+            if (c == '\\') {
+                int escaped = readByte();
+                switch (escaped) {
+                    case 'b': res.append('\b'); break;
+                    case 'f': res.append('\f'); break;
+                    case 'n': res.append('\n'); break;
+                    case 'r': res.append('\r'); break;
+                    case 't': res.append('\t'); break;
+                    case 'u':
+                        int code = 0;
+                        for (int i=0; i < 4; i++)
+                            code = (code << 4) + Character.digit((char) readByte(), 16);
+                        res.append((char) code);
+                        break;
+                    default: res.append((char) escaped);
+                }
+            } else if (c < 0x80) {
+                res.append((char) c);
+            } else {
+                // multi byte utf-8 sequence
+                int extra = c >= 0xf0 ? 3 : c >= 0xe0 ? 2 : 1;
+                int codePoint = c & (0x3f >> extra);
+                for (int i=0; i < extra; i++)
+                    codePoint = (codePoint << 6) | (readByte() & 0x3f);
+                res.appendCodePoint(codePoint);
+            }
+        }
+    }
+
+    /** Calls onValue with the value of the first of names that is present in each top level object in the stream */
+    public static void forEachStringField(InputStream in, Consumer<String> onValue, String... names) throws IOException {
+        List<String> wanted = Arrays.asList(names);
+        JSONReader reader = new JSONReader(in);
+        while (reader.peek() != Token.END_DOCUMENT) {
+            reader.beginObject();
+            int best = names.length;
+            String value = null;
+            while (reader.hasNext()) {
+                int index = wanted.indexOf(reader.nextName());
+                if (index >= 0 && index < best && reader.peek() == Token.STRING) {
+                    best = index;
+                    value = reader.nextString();
+                } else
+                    reader.skipValue();
+            }
+            reader.endObject();
+            if (value != null)
+                onValue.accept(value);
+        }
+    }
+
+    public static List<String> readStringFields(byte[] json, String... names) {
+        List<String> res = new ArrayList<>();
+        try {
+            forEachStringField(new ByteArrayInputStream(json), res::add, names);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+        return res;
+    }
+}
@@ -1,31 +1,44 @@
 package peergos.shared.io.ipfs.api;
 
+import peergos.shared.util.*;
+
 import java.io.*;
 import java.net.*;
 import java.util.*;
 
+/** A multipart/form-data request. If the connection it is given has been put in chunked streaming mode the body is
+ *  sent as it is written, rather than being buffered in full to compute a Content-Length. The connection is left
+ *  open after a successful response so it can be reused for the next request to the same host.
+ */
 public class Multipart {
     private final String boundary;
     private static final String LINE_FEED = "\r\n";
+    public static final int CHUNK_SIZE = 64 * 1024;
     private HttpURLConnection httpConn;
     private String charset;
     private OutputStream out;
-    private PrintWriter writer;
 
     public Multipart(String requestURL, String charset) throws IOException {
+        this((HttpURLConnection) new URL(requestURL).openConnection(), charset);
+    }
+
+    public Multipart(HttpURLConnection httpConn, String charset) throws IOException {
         this.charset = charset;
 
         boundary = createBoundary();
 
-        URL url = new URL(requestURL);
-        httpConn = (HttpURLConnection) url.openConnection();
+        this.httpConn = httpConn;
         httpConn.setUseCaches(false);
         httpConn.setDoOutput(true);
         httpConn.setDoInput(true);
         httpConn.setRequestProperty("Content-Type", "multipart/form-data; boundary=" + boundary);
         httpConn.setRequestProperty("User-Agent", "Java IPFS Client");
         out = httpConn.getOutputStream();
-        writer = new PrintWriter(new OutputStreamWriter(out, charset), true);
+    }
+
+    private Multipart append(String text) throws IOException {
+        out.write(text.getBytes(charset));
+        return this;
     }
 
     public static String createBoundary() {
@@ -37,15 +50,14 @@ public class Multipart {
         return b.toString();
     }
 
-    public void addFormField(String name, String value) {
-        writer.append("--" + boundary).append(LINE_FEED);
-        writer.append("Content-Disposition: form-data; name=\"" + name + "\"")
+    public void addFormField(String name, String value) throws IOException {
+        append("--" + boundary).append(LINE_FEED);
+        append("Content-Disposition: form-data; name=\"" + name + "\"")
                 .append(LINE_FEED);
-        writer.append("Content-Type: text/plain; charset=" + charset).append(
+        append("Content-Type: text/plain; charset=" + charset).append(
                 LINE_FEED);
-        writer.append(LINE_FEED);
-        writer.append(value).append(LINE_FEED);
-        writer.flush();
+        append(LINE_FEED);
+        append(value).append(LINE_FEED);
     }
 
     /** Recursive call to add a subtree to this post
@@ -65,78 +77,70 @@ public class Multipart {
         }
     }
 
-    public void addDirectoryPart(String path) {
-        try {
-            writer.append("--" + boundary).append(LINE_FEED);
-            writer.append("Content-Disposition: file; filename=\"" + URLEncoder.encode(path, "UTF-8") + "\"").append(LINE_FEED);
-            writer.append("Content-Type: application/x-directory").append(LINE_FEED);
-            writer.append("Content-Transfer-Encoding: binary").append(LINE_FEED);
-            writer.append(LINE_FEED);
-            writer.append(LINE_FEED);
-            writer.flush();
-        } catch (UnsupportedEncodingException e) {
-            throw new RuntimeException(e);
-        }
+    public void addDirectoryPart(String path) throws IOException {
+        append("--" + boundary).append(LINE_FEED);
+        append("Content-Disposition: file; filename=\"" + URLEncoder.encode(path, "UTF-8") + "\"").append(LINE_FEED);
+        append("Content-Type: application/x-directory").append(LINE_FEED);
+        append("Content-Transfer-Encoding: binary").append(LINE_FEED);
+        append(LINE_FEED);
+        append(LINE_FEED);
     }
 
     public void addFilePart(String fieldName, NamedStreamable uploadFile) throws IOException {
         Optional<String> fileName = uploadFile.getName();
-        writer.append("--" + boundary).append(LINE_FEED);
+        append("--" + boundary).append(LINE_FEED);
         if (!fileName.isPresent())
-            writer.append("Content-Disposition: file; name=\"" + fieldName + "\";").append(LINE_FEED);
+            append("Content-Disposition: file; name=\"" + fieldName + "\";").append(LINE_FEED);
         else
-            writer.append("Content-Disposition: file; filename=\"" + fileName.get() + "\"").append(LINE_FEED);
-        writer.append("Content-Type: application/octet-stream").append(LINE_FEED);
-        writer.append("Content-Transfer-Encoding: binary").append(LINE_FEED);
-        writer.append(LINE_FEED);
-        writer.flush();
+            append("Content-Disposition: file; filename=\"" + fileName.get() + "\"").append(LINE_FEED);
+        append("Content-Type: application/octet-stream").append(LINE_FEED);
+        append("Content-Transfer-Encoding: binary").append(LINE_FEED);
+        append(LINE_FEED);
 
         InputStream inputStream = uploadFile.getInputStream();
-        byte[] buffer = new byte[4096];
+        byte[] buffer = new byte[CHUNK_SIZE];
         int r;
         while ((r = inputStream.read(buffer)) != -1)
             out.write(buffer, 0, r);
-        out.flush();
         inputStream.close();
 
-        writer.append(LINE_FEED);
-        writer.flush();
+        append(LINE_FEED);
     }
 
-    public void addHeaderField(String name, String value) {
-        writer.append(name + ": " + value).append(LINE_FEED);
-        writer.flush();
+    public void addHeaderField(String name, String value) throws IOException {
+        append(name + ": " + value).append(LINE_FEED);
     }
 
+    /**
+     *
+     * @return the response body with line breaks removed
+     * @throws IOException
+     */
     public String finish() throws IOException {
-        StringBuilder b = new StringBuilder();
+        return new String(finishBytes(), charset).replaceAll("[\r\n]", "");
+    }
 
-        writer.append("--" + boundary + "--").append(LINE_FEED);
-        writer.close();
+    /**
+     *
+     * @return the raw response body
+     * @throws IOException
+     */
+    public byte[] finishBytes() throws IOException {
+        append("--" + boundary + "--").append(LINE_FEED);
+        out.close();
 
         int status = httpConn.getResponseCode();
         if (status == HttpURLConnection.HTTP_OK) {
-            BufferedReader reader = new BufferedReader(new InputStreamReader(
-                    httpConn.getInputStream()));
-            String line;
-            while ((line = reader.readLine()) != null) {
-                b.append(line);
+            // reading the body to the end and closing the stream returns the connection to the keep-alive cache
+            try (InputStream in = httpConn.getInputStream()) {
+                return Serialize.readFully(in);
             }
-            reader.close();
-            httpConn.disconnect();
-        } else {
-            try {
-                BufferedReader reader = new BufferedReader(new InputStreamReader(
-                        httpConn.getInputStream()));
-                String line;
-                while ((line = reader.readLine()) != null) {
-                    b.append(line);
-                }
-                reader.close();
-            } catch (Throwable t) {}
-            throw new IOException("Server returned status: " + status + " with body: "+b.toString() + " and Trailer header: "+httpConn.getHeaderFields().get("Trailer"));
         }
-
-        return b.toString();
+        String body = "";
+        try (InputStream err = httpConn.getErrorStream()) {
+            if (err != null)
+                body = new String(Serialize.readFully(err), charset);
+        } catch (Throwable t) {}
+        throw new IOException("Server returned status: " + status + " with body: " + body + " and Trailer header: "+httpConn.getHeaderFields().get("Trailer"));
     }
 }
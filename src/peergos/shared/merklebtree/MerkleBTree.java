@@ -3,11 +3,13 @@ package peergos.shared.merklebtree;
 import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.function.*;
 
 public class MerkleBTree
 {
@@ -18,7 +20,7 @@ public class MerkleBTree
 
     public MerkleBTree(TreeNode root, MaybeMultihash rootHash, ContentAddressedStorage storage, int maxChildren) {
         this.storage = storage;
-        this.root = new TreeNode(root.keys, rootHash);
+        this.root = root.withHash(rootHash);
         this.maxChildren = maxChildren;
     }
 
@@ -36,11 +38,8 @@ public class MerkleBTree
             return dht.put(writer, newRoot.serialize())
                     .thenApply(put -> new MerkleBTree(newRoot, put, dht, MAX_NODE_CHILDREN));
         }
-        return dht.get(rootHash.get()).thenApply(rawOpt -> {
-            if (! rawOpt.isPresent())
-                throw new IllegalStateException("Null byte[] returned by DHT for hash: " + rootHash.get());
-            return new MerkleBTree(TreeNode.fromCbor(rawOpt.get()), rootHash, dht, MAX_NODE_CHILDREN);
-        });
+        return TreeNode.fetch(rootHash.get(), dht)
+                .thenApply(root -> new MerkleBTree(root, rootHash, dht, MAX_NODE_CHILDREN));
     }
 
     /**
@@ -76,17 +75,92 @@ public class MerkleBTree
                 .thenCompose(newRoot -> commit(writer, newRoot));
     }
 
+    /**
+     * Build a new balanced tree from key value pairs, writing each node exactly once
+     *
+     * @param sorted pairs in strictly increasing key order
+     * @return the new tree
+     */
+    public static CompletableFuture<MerkleBTree> bulkLoad(PublicKeyHash writer,
+                                                          List<Pair<ByteArrayWrapper, Multihash>> sorted,
+                                                          ContentAddressedStorage dht) {
+        return TreeNode.bulkLoad(writer, sorted, dht, MAX_NODE_CHILDREN)
+                .thenApply(root -> new MerkleBTree(root, root.hash, dht, MAX_NODE_CHILDREN));
+    }
+
+    /**
+     * Apply a batch of changes, each to a different key, writing every modified node exactly once. Removed keys are
+     * left as tombstones.
+     *
+     * @param changes
+     * @return hash of new tree root
+     */
+    public CompletableFuture<Multihash> merge(PublicKeyHash writer, List<Btree.Mutation> changes) {
+        List<Btree.Mutation> sorted = new ArrayList<>(changes);
+        sorted.sort(Comparator.comparing(m -> new ByteArrayWrapper(m.mapKey)));
+        for (int i=1; i < sorted.size(); i++)
+            if (Arrays.equals(sorted.get(i - 1).mapKey, sorted.get(i).mapKey))
+                throw new IllegalStateException("Merged changes must have distinct keys!");
+        return root.merge(writer, sorted, storage, maxChildren)
+                .thenApply(newRoot -> {
+                    root = newRoot;
+                    return newRoot.hash.get();
+                });
+    }
+
     private CompletableFuture<Multihash> commit(PublicKeyHash writer, TreeNode newRoot) {
         if (newRoot.hash.isPresent()) {
             root = newRoot;
             return CompletableFuture.completedFuture(newRoot.hash.get());
         }
         return storage.put(writer, newRoot.serialize()).thenApply(newRootHash -> {
-            root = new TreeNode(newRoot.keys, newRootHash);
+            root = newRoot.withHash(MaybeMultihash.of(newRootHash));
             return newRootHash;
         });
     }
 
+    /**
+     *
+     * @param from inclusive lower bound
+     * @param to exclusive upper bound
+     * @return a cursor over the values with keys in [from, to)
+     */
+    public TreeCursor range(byte[] from, byte[] to) {
+        return new TreeCursor(root, Optional.of(new ByteArrayWrapper(from)), Optional.of(new ByteArrayWrapper(to)), storage);
+    }
+
+    /**
+     *
+     * @return a cursor over every value in the tree, in key order
+     */
+    public TreeCursor iterator() {
+        return new TreeCursor(root, Optional.empty(), Optional.empty(), storage);
+    }
+
+    /**
+     * Stream the keys whose values differ between two trees, without reading subtrees they share
+     *
+     * @param onChange called for each added, removed or changed key, in key order
+     * @return the number of changes
+     */
+    public static CompletableFuture<Long> diff(Multihash originalRoot,
+                                               Multihash updatedRoot,
+                                               ContentAddressedStorage storage,
+                                               Consumer<TreeDiff.KeyChange> onChange) {
+        return TreeDiff.diff(originalRoot, updatedRoot, storage, onChange);
+    }
+
+    /**
+     *
+     * @return the tree nodes reachable from only one of the two roots, and the values of the keys that changed. A
+     * removed value may still be referenced by an unchanged key, see {@link TreeDiff.BlockDiff}
+     */
+    public static CompletableFuture<TreeDiff.BlockDiff> blockDiff(Multihash originalRoot,
+                                                                  Multihash updatedRoot,
+                                                                  ContentAddressedStorage storage) {
+        return TreeDiff.blockDiff(originalRoot, updatedRoot, storage);
+    }
+
     /**
      *
      * @return number of keys stored in tree
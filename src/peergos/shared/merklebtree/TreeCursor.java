@@ -0,0 +1,101 @@
+package peergos.shared.merklebtree;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/** An in order cursor over the values in a btree whose keys are in [from, to). Values are read a page at a time,
+ *  and when we enter a node all of its children that overlap the range are fetched in parallel.
+ *
+ *  A cursor is not thread safe, each page must complete before the next is requested.
+ */
+public class TreeCursor {
+    private static class Frame {
+        public final TreeNode node;
+        public final List<CompletableFuture<TreeNode>> children;
+        public int index = 0;
+        // whether the value of the element at index has been visited, its subtree is visited next
+        public boolean visitedValue = false;
+
+        public Frame(TreeNode node, List<CompletableFuture<TreeNode>> children) {
+            this.node = node;
+            this.children = children;
+        }
+    }
+
+    private final Optional<ByteArrayWrapper> from, to;
+    private final ContentAddressedStorage storage;
+    private final List<Frame> stack = new ArrayList<>();
+
+    public TreeCursor(TreeNode root, Optional<ByteArrayWrapper> from, Optional<ByteArrayWrapper> to, ContentAddressedStorage storage) {
+        this.from = from;
+        this.to = to;
+        this.storage = storage;
+        stack.add(enter(root));
+    }
+
+    private Frame enter(TreeNode node) {
+        TreeNode.KeyElement[] keys = node.keys;
+        List<CompletableFuture<TreeNode>> children = new ArrayList<>(keys.length);
+        for (int i=0; i < keys.length; i++) {
+            // the subtree of element i holds the keys between it and the next element
+            boolean inRange = keys[i].targetHash.isPresent() &&
+                    (! to.isPresent() || i == 0 || keys[i].key.compareTo(to.get()) < 0) &&
+                    (! from.isPresent() || i + 1 == keys.length || keys[i + 1].key.compareTo(from.get()) > 0);
+            children.add(inRange ? TreeNode.fetch(keys[i].targetHash.get(), storage) : null);
+        }
+        return new Frame(node, children);
+    }
+
+    public boolean isDone() {
+        return stack.isEmpty();
+    }
+
+    /**
+     *
+     * @param maxValues
+     * @return the next values in key order, at most maxValues, or an empty list once the range is exhausted
+     */
+    public CompletableFuture<List<Pair<ByteArrayWrapper, Multihash>>> next(int maxValues) {
+        return advance(new ArrayList<>(), maxValues);
+    }
+
+    private CompletableFuture<List<Pair<ByteArrayWrapper, Multihash>>> advance(List<Pair<ByteArrayWrapper, Multihash>> page,
+                                                                              int maxValues) {
+        while (page.size() < maxValues && ! stack.isEmpty()) {
+            Frame top = stack.get(stack.size() - 1);
+            if (top.index == top.node.keys.length) {
+                stack.remove(stack.size() - 1);
+                continue;
+            }
+            TreeNode.KeyElement element = top.node.keys[top.index];
+            if (! top.visitedValue) {
+                top.visitedValue = true;
+                if (top.index == 0)
+                    continue;
+                if (to.isPresent() && element.key.compareTo(to.get()) >= 0) {
+                    // everything after this is out of range
+                    stack.clear();
+                    break;
+                }
+                boolean tombstone = ! element.valueHash.isPresent();
+                if (! tombstone && (! from.isPresent() || element.key.compareTo(from.get()) >= 0))
+                    page.add(new Pair<>(element.key, element.valueHash.get()));
+                continue;
+            }
+            CompletableFuture<TreeNode> child = top.children.get(top.index);
+            top.children.set(top.index, null);
+            top.index++;
+            top.visitedValue = false;
+            if (child != null)
+                return child.thenCompose(node -> {
+                    stack.add(enter(node));
+                    return advance(page, maxValues);
+                });
+        }
+        return CompletableFuture.completedFuture(page);
+    }
+}
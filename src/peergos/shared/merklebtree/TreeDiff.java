@@ -0,0 +1,242 @@
+package peergos.shared.merklebtree;
+
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+
+/** Compares two btrees in key order. Each tree is represented by a frontier of values and unexpanded subtrees, and
+ *  subtrees are only expanded until their hash matches one at the same position in the other tree, so the cost
+ *  scales with the size of the change rather than the size of the trees.
+ */
+public class TreeDiff {
+
+    public static class KeyChange {
+        public final ByteArrayWrapper key;
+        // an empty value means the key is absent (or a tombstone) in that tree
+        public final MaybeMultihash original, updated;
+
+        public KeyChange(ByteArrayWrapper key, MaybeMultihash original, MaybeMultihash updated) {
+            this.key = key;
+            this.original = original;
+            this.updated = updated;
+        }
+
+        public boolean isAddition() {
+            return ! original.isPresent();
+        }
+
+        public boolean isRemoval() {
+            return ! updated.isPresent();
+        }
+
+        @Override
+        public String toString() {
+            return key + ": " + original + " -> " + updated;
+        }
+    }
+
+    /** The tree nodes and values that differ between the two roots. Tree nodes are exact, but values are only
+     *  compared between the keys that changed, so a value in removed may still be referenced by an unchanged key
+     *  (and a value in added may already have been referenced). Values in removed are candidates and must not be
+     *  unpinned or deleted without checking the updated tree first.
+     */
+    public static class BlockDiff {
+        public final Set<Multihash> added, removed;
+
+        public BlockDiff(Set<Multihash> added, Set<Multihash> removed) {
+            this.added = added;
+            this.removed = removed;
+        }
+    }
+
+    /** Either a key and value, or a subtree holding keys greater than key */
+    private static class Item {
+        public final ByteArrayWrapper key;
+        public final MaybeMultihash value;
+        public final Multihash subtree;
+        public final long size;
+
+        private Item(ByteArrayWrapper key, MaybeMultihash value, Multihash subtree, long size) {
+            this.key = key;
+            this.value = value;
+            this.subtree = subtree;
+            this.size = size;
+        }
+
+        public boolean isSubtree() {
+            return subtree != null;
+        }
+    }
+
+    private static class Side {
+        public final LinkedList<Item> frontier = new LinkedList<>();
+        // every subtree hash that has been a part of the frontier
+        public final Set<Multihash> seen = new HashSet<>();
+        public final Set<Multihash> expanded = new HashSet<>();
+
+        public Side(Multihash root) {
+            add(0, new Item(new ByteArrayWrapper(new byte[0]), MaybeMultihash.empty(), root, -1));
+        }
+
+        private void add(int index, Item item) {
+            frontier.add(index, item);
+            if (item.isSubtree())
+                seen.add(item.subtree);
+        }
+
+        public Item head() {
+            return frontier.isEmpty() ? null : frontier.getFirst();
+        }
+
+        public void replaceHead(TreeNode node) {
+            Item head = frontier.removeFirst();
+            expanded.add(head.subtree);
+            int index = 0;
+            for (int i=0; i < node.keys.length; i++) {
+                TreeNode.KeyElement element = node.keys[i];
+                if (i > 0)
+                    add(index++, new Item(element.key, element.valueHash, null, 0));
+                if (element.targetHash.isPresent())
+                    add(index++, new Item(element.key, MaybeMultihash.empty(), element.targetHash.get(), element.targetSize));
+            }
+        }
+    }
+
+    private final Side original, updated;
+    private final ContentAddressedStorage storage;
+    private final Consumer<KeyChange> onChange;
+    private final List<KeyChange> valueChanges = new ArrayList<>();
+    private long changes = 0;
+
+    private TreeDiff(Multihash original, Multihash updated, ContentAddressedStorage storage, Consumer<KeyChange> onChange) {
+        this.original = new Side(original);
+        this.updated = new Side(updated);
+        this.storage = storage;
+        this.onChange = onChange;
+    }
+
+    /**
+     * Call onChange with every key whose value differs between the two trees, in key order
+     *
+     * @return the number of changes
+     */
+    public static CompletableFuture<Long> diff(Multihash original,
+                                               Multihash updated,
+                                               ContentAddressedStorage storage,
+                                               Consumer<KeyChange> onChange) {
+        TreeDiff diff = new TreeDiff(original, updated, storage, onChange);
+        return diff.run().thenApply(x -> diff.changes);
+    }
+
+    public static CompletableFuture<BlockDiff> blockDiff(Multihash original, Multihash updated, ContentAddressedStorage storage) {
+        TreeDiff diff = new TreeDiff(original, updated, storage, c -> {});
+        return diff.run().thenApply(x -> diff.blocks());
+    }
+
+    private BlockDiff blocks() {
+        Set<Multihash> added = new HashSet<>(), removed = new HashSet<>();
+        for (Multihash node : updated.expanded)
+            if (! original.seen.contains(node))
+                added.add(node);
+        for (Multihash node : original.expanded)
+            if (! updated.seen.contains(node))
+                removed.add(node);
+        Set<Multihash> addedValues = new HashSet<>(), removedValues = new HashSet<>();
+        for (KeyChange change : valueChanges) {
+            if (change.updated.isPresent())
+                addedValues.add(change.updated.get());
+            if (change.original.isPresent())
+                removedValues.add(change.original.get());
+        }
+        // a value can move between keys
+        for (Multihash value : addedValues)
+            if (! removedValues.contains(value))
+                added.add(value);
+        for (Multihash value : removedValues)
+            if (! addedValues.contains(value))
+                removed.add(value);
+        return new BlockDiff(added, removed);
+    }
+
+    private void emit(ByteArrayWrapper key, MaybeMultihash before, MaybeMultihash after) {
+        if (before.equals(after))
+            return;
+        KeyChange change = new KeyChange(key, before, after);
+        changes++;
+        valueChanges.add(change);
+        onChange.accept(change);
+    }
+
+    private CompletableFuture<Boolean> run() {
+        while (true) {
+            Item a = original.head(), b = updated.head();
+            if (a == null && b == null)
+                return CompletableFuture.completedFuture(true);
+            if (a != null && b != null && a.isSubtree() && b.isSubtree() && a.subtree.equals(b.subtree)) {
+                // identical subtrees
+                original.frontier.removeFirst();
+                updated.frontier.removeFirst();
+                continue;
+            }
+            boolean expandA = false, expandB = false;
+            if (a != null && a.isSubtree()) {
+                if (b == null || (! b.isSubtree() && b.key.compareTo(a.key) > 0))
+                    expandA = true;
+                else if (b.isSubtree()) {
+                    int cmp = a.key.compareTo(b.key);
+                    // with the same lower bound, expand the larger subtree first so that the levels line up
+                    expandA = cmp < 0 || (cmp == 0 && (a.size < 0 || b.size < 0 || a.size >= b.size));
+                    expandB = cmp > 0 || (cmp == 0 && (a.size < 0 || b.size < 0 || b.size >= a.size));
+                }
+            } else if (b != null && b.isSubtree()) {
+                if (a == null || a.key.compareTo(b.key) > 0)
+                    expandB = true;
+            }
+            if (expandA || expandB) {
+                CompletableFuture<TreeNode> nodeA = expandA ? TreeNode.fetch(a.subtree, storage) : null;
+                CompletableFuture<TreeNode> nodeB = expandB ? TreeNode.fetch(b.subtree, storage) : null;
+                if ((nodeA == null || nodeA.isDone()) && (nodeB == null || nodeB.isDone())) {
+                    // avoid recursing when nodes are already cached
+                    try {
+                        if (nodeA != null)
+                            original.replaceHead(nodeA.get());
+                        if (nodeB != null)
+                            updated.replaceHead(nodeB.get());
+                    } catch (InterruptedException | ExecutionException e) {
+                        CompletableFuture<Boolean> err = new CompletableFuture<>();
+                        err.completeExceptionally(e instanceof ExecutionException ? e.getCause() : e);
+                        return err;
+                    }
+                    continue;
+                }
+                CompletableFuture<TreeNode> doneA = nodeA != null ? nodeA : CompletableFuture.completedFuture(null);
+                CompletableFuture<TreeNode> doneB = nodeB != null ? nodeB : CompletableFuture.completedFuture(null);
+                return doneA.thenCompose(na -> doneB.thenCompose(nb -> {
+                    if (na != null)
+                        original.replaceHead(na);
+                    if (nb != null)
+                        updated.replaceHead(nb);
+                    return run();
+                }));
+            }
+            // the heads are values, or a value which precedes everything in the other tree's next subtree
+            int cmp = a == null ? 1 : b == null ? -1 :
+                    a.isSubtree() ? 1 : b.isSubtree() ? -1 : a.key.compareTo(b.key);
+            if (cmp < 0) {
+                original.frontier.removeFirst();
+                emit(a.key, a.value, MaybeMultihash.empty());
+            } else if (cmp > 0) {
+                updated.frontier.removeFirst();
+                emit(b.key, MaybeMultihash.empty(), b.value);
+            } else {
+                original.frontier.removeFirst();
+                updated.frontier.removeFirst();
+                emit(a.key, a.value, b.value);
+            }
+        }
+    }
+}
@@ -13,71 +13,148 @@ import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
+/** An immutable btree node. Modifications build new nodes, which lets decoded nodes be cached by hash and shared
+ *  between every tree.
+ */
 public class TreeNode implements Cborable {
+    private static final int MAX_CACHED_NODES = 4096;
+    private static final ByteArrayWrapper ZERO_KEY = new ByteArrayWrapper(new byte[0]);
+    private static final LRUCache<Multihash, TreeNode> cache = new LRUCache<>(MAX_CACHED_NODES);
+
     public final MaybeMultihash hash;
-    public final SortedSet<KeyElement> keys;
-
-    private TreeNode(MaybeMultihash leftChildHash, SortedSet<KeyElement> keys, MaybeMultihash ourHash) {
-        this.keys = new TreeSet<>();
-        this.keys.addAll(keys);
-        KeyElement zero = new KeyElement(new ByteArrayWrapper(new byte[0]), MaybeMultihash.empty(), leftChildHash);
-        if (!keys.contains(zero))
-            this.keys.add(zero);
+    // sorted by key, the first element is always the zero key, which points to the leftmost child
+    final KeyElement[] keys;
+    // the number of values in this subtree, or -1 if it includes nodes written before subtree sizes were recorded
+    public final long valueCount;
+
+    private TreeNode(KeyElement[] sortedKeys, MaybeMultihash ourHash) {
+        this.keys = sortedKeys;
         this.hash = ourHash;
+        this.valueCount = countValues(sortedKeys);
     }
 
-    private TreeNode(MaybeMultihash leftChildHash, SortedSet<KeyElement> keys) {
-        this(leftChildHash, keys, MaybeMultihash.empty());
+    private TreeNode(KeyElement leftmost, SortedSet<KeyElement> keys, MaybeMultihash ourHash) {
+        boolean hasZero = ! keys.isEmpty() && keys.first().key.equals(ZERO_KEY);
+        this.keys = new KeyElement[keys.size() + (hasZero ? 0 : 1)];
+        int index = 0;
+        if (! hasZero)
+            this.keys[index++] = leftmost;
+        for (KeyElement key : keys)
+            this.keys[index++] = key;
+        this.hash = ourHash;
+        this.valueCount = countValues(this.keys);
     }
 
-    private TreeNode(Multihash leftChildHash, SortedSet<KeyElement> keys) {
-        this(MaybeMultihash.of(leftChildHash), keys, MaybeMultihash.empty());
+    private TreeNode(KeyElement leftmost, SortedSet<KeyElement> keys) {
+        this(leftmost, keys, MaybeMultihash.empty());
     }
 
     public TreeNode(SortedSet<KeyElement> keys) {
-        this(MaybeMultihash.empty(), keys, MaybeMultihash.empty());
+        this(zero(MaybeMultihash.empty(), 0), keys, MaybeMultihash.empty());
     }
 
     public TreeNode(SortedSet<KeyElement> keys, MaybeMultihash ourHash) {
-        this(MaybeMultihash.empty(), keys, ourHash);
+        this(zero(MaybeMultihash.empty(), 0), keys, ourHash);
     }
 
     public TreeNode(SortedSet<KeyElement> keys, Multihash ourHash) {
-        this(MaybeMultihash.empty(), keys, MaybeMultihash.of(ourHash));
+        this(zero(MaybeMultihash.empty(), 0), keys, MaybeMultihash.of(ourHash));
     }
 
-    private TreeNode(TreeNode node, MaybeMultihash hash) {
-        this(MaybeMultihash.empty(), node.keys, hash);
+    private static KeyElement zero(MaybeMultihash leftChild, long leftChildSize) {
+        return new KeyElement(ZERO_KEY, MaybeMultihash.empty(), leftChild, leftChildSize);
     }
 
-    private TreeNode(TreeNode node, Multihash hash) {
-        this(node, MaybeMultihash.of(hash));
+    private static long countValues(KeyElement[] keys) {
+        long total = 0;
+        for (KeyElement key : keys) {
+            if (key.valueHash.isPresent())
+                total++;
+            if (key.targetHash.isPresent()) {
+                if (key.targetSize < 0)
+                    return -1;
+                total += key.targetSize;
+            }
+        }
+        return total;
     }
-    private TreeNode withHash(MaybeMultihash hash) {
+
+    public TreeNode withHash(MaybeMultihash hash) {
         return new TreeNode(keys, hash);
     }
 
+    /**
+     *
+     * @return the number of elements in this node, including the zero key
+     */
+    public int keyCount() {
+        return keys.length;
+    }
 
-    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, ContentAddressedStorage storage) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
+    private KeyElement first() {
+        return keys[0];
+    }
+
+    private KeyElement last() {
+        return keys[keys.length - 1];
+    }
+
+    /** A copy of our keys which can be modified to build a new node */
+    private TreeSet<KeyElement> mutableKeys() {
+        return new TreeSet<>(Arrays.asList(keys));
+    }
+
+    /**
+     *
+     * @param key
+     * @return the element with the largest key not greater than key
+     */
+    private KeyElement floor(ByteArrayWrapper key) {
+        int low = 0, high = keys.length - 1;
+        while (low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if (keys[mid].key.compareTo(key) <= 0)
+                low = mid;
+            else
+                high = mid - 1;
         }
+        return keys[low];
+    }
+
+    /** Retrieve a node, decoding it only if it isn't already in the cache */
+    public static CompletableFuture<TreeNode> fetch(Multihash hash, ContentAddressedStorage storage) {
+        TreeNode cached;
+        synchronized (cache) {
+            cached = cache.get(hash);
+        }
+        if (cached != null)
+            return CompletableFuture.completedFuture(cached);
+        return storage.get(hash).thenApply(rawOpt -> cache(TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + hash)))
+                .withHash(MaybeMultihash.of(hash))));
+    }
+
+    private static TreeNode cache(TreeNode node) {
+        synchronized (cache) {
+            cache.put(node.hash.get(), node);
+        }
+        return node;
+    }
+
+    private static CompletableFuture<TreeNode> commit(PublicKeyHash writer, SortedSet<KeyElement> keys, ContentAddressedStorage storage) {
+        TreeNode node = new TreeNode(keys);
+        return storage.put(writer, node.serialize())
+                .thenApply(multihash -> cache(node.withHash(MaybeMultihash.of(multihash))));
+    }
+
+    public CompletableFuture<MaybeMultihash> get(ByteArrayWrapper key, ContentAddressedStorage storage) {
+        KeyElement nextSmallest = floor(key);
         if (nextSmallest.key.equals(key))
             return CompletableFuture.completedFuture(nextSmallest.valueHash);
         if (! nextSmallest.targetHash.isPresent())
             return CompletableFuture.completedFuture(MaybeMultihash.empty());
 
-        Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash)))
-                        .get(key, storage));
+        return fetch(nextSmallest.targetHash.get(), storage)
+                .thenCompose(child -> child.get(key, storage));
     }
 
     public CompletableFuture<TreeNode> put(PublicKeyHash writer,
@@ -86,84 +163,69 @@ public class TreeNode implements Cborable {
                                            Multihash value,
                                            ContentAddressedStorage storage,
                                            int maxChildren) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key)) {
-                SortedSet<KeyElement> headSet = keys.headSet(dummy);
-                nextSmallest = headSet.last();
-            }
-        }
+        KeyElement nextSmallest = floor(key);
         if (nextSmallest.key.equals(key)) {
-            KeyElement modified = new KeyElement(key, MaybeMultihash.of(value), nextSmallest.targetHash);
+            KeyElement modified = new KeyElement(key, MaybeMultihash.of(value), nextSmallest.targetHash, nextSmallest.targetSize);
             // ensure CAS, without allowing replacing a tombstone
             if (! nextSmallest.valueHash.equals(existing) && ! nextSmallest.valueHash.equals(MaybeMultihash.empty())) {
                 CompletableFuture<TreeNode> res = new CompletableFuture<>();
                 res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
                 return res;
             }
+            TreeSet<KeyElement> keys = mutableKeys();
             keys.remove(nextSmallest);
             keys.add(modified);
             // commit this node to storage
-            return storage.put(writer, this.serialize())
-                    .thenApply(multihash -> new TreeNode(this.keys, multihash));
+            return commit(writer, keys, storage);
         }
         if (! nextSmallest.targetHash.isPresent()) {
-            if (keys.size() < maxChildren) {
-                keys.add(new KeyElement(key,  MaybeMultihash.of(value), MaybeMultihash.empty()));
+            TreeSet<KeyElement> keys = mutableKeys();
+            keys.add(new KeyElement(key,  MaybeMultihash.of(value), MaybeMultihash.empty()));
+            if (keys.size() <= maxChildren) {
                 // commit this node to storage
-                return storage.put(writer, this.serialize())
-                        .thenApply(multihash -> new TreeNode(this.keys, MaybeMultihash.of(multihash)));
+                return commit(writer, keys, storage);
             }
             // split into two and make new parent
             System.out.println("Btree:Splitting");
-            keys.add(new KeyElement(key, MaybeMultihash.of(value), MaybeMultihash.empty()));
             KeyElement[] tmp = new KeyElement[keys.size()];
             KeyElement median = keys.toArray(tmp)[keys.size()/2];
             // commit left child
             SortedSet<KeyElement> left = keys.headSet(median);
-            TreeNode leftChild = new TreeNode(left);
-            return storage.put(writer, leftChild.serialize()).thenCompose(leftChildHash -> {
+            return commit(writer, left, storage).thenCompose(leftChild -> {
 
                 // commit right child
                 SortedSet<KeyElement> right = keys.tailSet(median);
                 right.remove(right.first());
-                TreeNode rightChild = new TreeNode(median.targetHash, right);
+                TreeNode rightChild = new TreeNode(zero(median.targetHash, median.targetSize), right);
                 return storage.put(writer, rightChild.serialize()).thenApply(rightChildHash -> {
 
                     // now add median to parent
-                    TreeSet holder = new TreeSet<>();
-                    KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash));
+                    TreeSet<KeyElement> holder = new TreeSet<>();
+                    KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash), rightChild.valueCount);
                     holder.add(newParent);
-                    return new TreeNode(MaybeMultihash.of(leftChildHash), holder);
+                    return new TreeNode(zero(leftChild.hash, leftChild.valueCount), holder);
                 });
             });
         }
 
         final KeyElement finalNextSmallest = nextSmallest;
-        Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenApply(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash))))
-                .thenCompose(modifiedChild -> modifiedChild.withHash(finalNextSmallest.targetHash).put(writer, key, existing, value, storage, maxChildren))
+        return fetch(nextSmallest.targetHash.get(), storage)
+                .thenCompose(child -> child.put(writer, key, existing, value, storage, maxChildren))
                 .thenCompose(modifiedChild -> {
+                    TreeSet<KeyElement> keys = mutableKeys();
                     if (!modifiedChild.hash.isPresent()) {
                         // we split a child and need to add the median to our keys
                         if (keys.size() < maxChildren) {
-                            KeyElement replacementNextSmallest = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.keys.first().targetHash);
+                            KeyElement replacementNextSmallest = finalNextSmallest.withTargetOf(modifiedChild.first());
                             keys.remove(finalNextSmallest);
                             keys.add(replacementNextSmallest);
-                            keys.add(modifiedChild.keys.last());
-                            return storage.put(writer, this.serialize())
-                                    .thenApply(multihash -> new TreeNode(this.keys, MaybeMultihash.of(multihash)));
+                            keys.add(modifiedChild.last());
+                            return commit(writer, keys, storage);
                         }
                         // we need to split as well, merge in new key and two pointers first
-                        KeyElement nonZero = modifiedChild.keys.last();
+                        KeyElement nonZero = modifiedChild.last();
                         keys.add(nonZero);
-                        KeyElement updated = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.keys.first().targetHash);
+                        KeyElement updated = finalNextSmallest.withTargetOf(modifiedChild.first());
                         keys.remove(finalNextSmallest);
                         keys.add(updated);
 
@@ -173,99 +235,97 @@ public class TreeNode implements Cborable {
                         KeyElement median = keys.toArray(tmp)[keys.size() / 2];
                         // commit left child
                         SortedSet<KeyElement> left = keys.headSet(median);
-                        TreeNode leftChild = new TreeNode(left);
-                        return storage.put(writer, leftChild.serialize()).thenCompose(leftChildHash -> {
+                        return commit(writer, left, storage).thenCompose(leftChild -> {
 
                             // commit right child
                             SortedSet<KeyElement> right = keys.tailSet(median);
                             right.remove(right.first());
-                            TreeNode rightChild = new TreeNode(median.targetHash, right);
+                            TreeNode rightChild = new TreeNode(zero(median.targetHash, median.targetSize), right);
                             return storage.put(writer, rightChild.serialize()).thenApply(rightChildHash -> {
                                 // now add median to parent
-                                TreeSet holder = new TreeSet<>();
-                                KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash));
+                                TreeSet<KeyElement> holder = new TreeSet<>();
+                                KeyElement newParent = new KeyElement(median.key, median.valueHash, MaybeMultihash.of(rightChildHash), rightChild.valueCount);
                                 holder.add(newParent);
-                                return new TreeNode(leftChildHash, holder);
+                                return new TreeNode(zero(leftChild.hash, leftChild.valueCount), holder);
                             });
                         });
                     }
                     // update pointer to child (child element wasn't split)
-                    KeyElement updated = new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, modifiedChild.hash.get());
+                    KeyElement updated = finalNextSmallest.withTarget(modifiedChild);
                     keys.remove(finalNextSmallest);
                     keys.add(updated);
-                    return storage.put(writer, this.serialize()).thenApply(multihash -> new TreeNode(this, multihash));
+                    return commit(writer, keys, storage);
                 });
     }
 
+    /**
+     *
+     * @return the number of values in this subtree, excluding tombstones
+     */
     public CompletableFuture<Integer> size(ContentAddressedStorage storage) {
-        return Futures.reduceAll(keys, keys.size() - 1, (total, key) -> key.targetHash.isPresent() ?
-                storage.get(key.targetHash.get())
-                        .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + key.targetHash.get())))
-                                .size(storage)).thenApply(subTreeTotal -> subTreeTotal + total) :
-                CompletableFuture.completedFuture(total), (a, b) -> a + b);
+        if (valueCount >= 0)
+            return CompletableFuture.completedFuture((int) valueCount);
+        // only descend into subtrees written before their sizes were recorded
+        int values = 0;
+        for (KeyElement key : keys)
+            if (key.valueHash.isPresent())
+                values++;
+        return Futures.reduceAll(Arrays.asList(keys), values, (total, key) -> ! key.targetHash.isPresent() ?
+                CompletableFuture.completedFuture(total) :
+                key.targetSize >= 0 ?
+                        CompletableFuture.completedFuture(total + (int) key.targetSize) :
+                        fetch(key.targetHash.get(), storage)
+                                .thenCompose(child -> child.size(storage))
+                                .thenApply(subTreeTotal -> subTreeTotal + total), (a, b) -> a + b);
     }
 
     private KeyElement smallestNonZeroKey() {
-        return keys.tailSet(new KeyElement(new ByteArrayWrapper(new byte[]{0}), MaybeMultihash.empty(), MaybeMultihash.empty())).first();
+        return keys[1];
     }
 
     public CompletableFuture<ByteArrayWrapper> smallestKey(ContentAddressedStorage storage) {
-        MaybeMultihash targetHash = keys.first().targetHash;
+        MaybeMultihash targetHash = first().targetHash;
         if (! targetHash.isPresent())
-            return CompletableFuture.completedFuture(keys.toArray(new KeyElement[keys.size()])[1].key);
-        return storage.get(targetHash.get())
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + targetHash.get())))
-                        .smallestKey(storage));
+            return CompletableFuture.completedFuture(smallestNonZeroKey().key);
+        return fetch(targetHash.get(), storage)
+                .thenCompose(child -> child.smallestKey(storage));
     }
 
     public CompletableFuture<TreeNode> delete(PublicKeyHash writer, ByteArrayWrapper key, MaybeMultihash existing, ContentAddressedStorage storage, int maxChildren) {
-        KeyElement dummy = KeyElement.dummy(key);
-        SortedSet<KeyElement> tailSet = keys.tailSet(dummy);
-        KeyElement nextSmallest;
-        if (tailSet.size() == 0) {
-            nextSmallest = keys.last();
-        } else {
-            nextSmallest = tailSet.first();
-            if (!nextSmallest.key.equals(key))
-                nextSmallest = keys.headSet(dummy).last();
-        }
+        KeyElement nextSmallest = floor(key);
         if (nextSmallest.key.equals(key)) {
+            // CAS on existing value
+            if (! nextSmallest.valueHash.equals(existing)) {
+                CompletableFuture<TreeNode> res = new CompletableFuture<>();
+                res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
+                return res;
+            }
             if (! nextSmallest.targetHash.isPresent()) {
                 // we are a leaf
-                // CAS on existing value
-                if (! nextSmallest.valueHash.equals(existing)) {
-                    CompletableFuture<TreeNode> res = new CompletableFuture<>();
-                    res.completeExceptionally(new Btree.CasException(nextSmallest.valueHash, existing));
-                    return res;
-                }
+                TreeSet<KeyElement> keys = mutableKeys();
                 keys.remove(nextSmallest);
                 // put in a tombstone
                 keys.add(new KeyElement(nextSmallest.key, MaybeMultihash.empty(), MaybeMultihash.empty()));
-                if (keys.size() >= maxChildren/2) {
-                    return storage.put(writer, this.serialize())
-                            .thenApply(multihash -> new TreeNode(this.keys, multihash));
-                }
-                return CompletableFuture.completedFuture(new TreeNode(this.keys));
+                if (keys.size() >= maxChildren/2)
+                    return commit(writer, keys, storage);
+                return CompletableFuture.completedFuture(new TreeNode(keys));
             } else {
-                Multihash multihash = nextSmallest.targetHash.get();
                 final KeyElement finalNextSmallest = nextSmallest;
-                return storage.get(multihash)
-                        .thenApply(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + multihash)))
-                                .withHash(finalNextSmallest.targetHash))
+                return fetch(nextSmallest.targetHash.get(), storage)
                         .thenCompose(child -> {
                             // take the subtree's smallest value (in a leaf) delete it and promote it to the separator here
                             return child.smallestKey(storage).thenCompose(smallestKey -> child.get(smallestKey, storage)
-                                    .thenCompose(value -> child.delete(writer, smallestKey, existing, storage, maxChildren)
+                                    .thenCompose(value -> child.delete(writer, smallestKey, value, storage, maxChildren)
                                                     .thenCompose(newChild -> storage.put(writer, newChild.serialize()).thenCompose(childHash -> {
+                                                                TreeSet<KeyElement> keys = mutableKeys();
                                                                 keys.remove(finalNextSmallest);
-                                                                KeyElement replacement = new KeyElement(smallestKey, value, childHash);
+                                                                KeyElement replacement = new KeyElement(smallestKey, value, MaybeMultihash.of(childHash), newChild.valueCount);
                                                                 keys.add(replacement);
-                                                                if (newChild.keys.size() >= maxChildren / 2) {
-                                                                    return storage.put(writer, this.serialize())
-                                                                            .thenApply(multihash1 -> new TreeNode(this, multihash1));
+                                                                if (newChild.keyCount() >= maxChildren / 2) {
+                                                                    return commit(writer, keys, storage);
                                                                 } else {
                                                                     // re-balance
-                                                                    return rebalance(writer, this, newChild, childHash, storage, maxChildren);
+                                                                    return rebalance(writer, keys, newChild, childHash, storage, maxChildren);
                                                                 }
                                                             })
                                                     )
@@ -275,33 +335,32 @@ public class TreeNode implements Cborable {
             }
         }
         if (! nextSmallest.targetHash.isPresent())
-            return CompletableFuture.completedFuture(new TreeNode(this.keys));
+            return CompletableFuture.completedFuture(withHash(MaybeMultihash.empty()));
         final KeyElement finalNextSmallest = nextSmallest;
         final Multihash nextSmallestHash = nextSmallest.targetHash.get();
-        return storage.get(nextSmallestHash)
-                .thenCompose(rawOpt -> TreeNode.fromCbor(rawOpt.orElseThrow(() -> new IllegalStateException("Hash not present! " + nextSmallestHash)))
-                        .withHash(finalNextSmallest.targetHash).delete(writer, key, existing, storage, maxChildren))
+        return fetch(nextSmallestHash, storage)
+                .thenCompose(child -> child.delete(writer, key, existing, storage, maxChildren))
                 .thenCompose(child -> {
+                    TreeSet<KeyElement> keys = mutableKeys();
                     // update pointer
                     if (child.hash.isPresent()) {
                         keys.remove(finalNextSmallest);
-                        keys.add(new KeyElement(finalNextSmallest.key, finalNextSmallest.valueHash, child.hash.get()));
+                        keys.add(finalNextSmallest.withTarget(child));
                     }
-                    if (child.keys.size() < maxChildren / 2) {
+                    if (child.keyCount() < maxChildren / 2) {
                         // re-balance
-                        return rebalance(writer, this, child, nextSmallestHash, storage, maxChildren);
+                        return rebalance(writer, keys, child, nextSmallestHash, storage, maxChildren);
                     }
-                    return storage.put(writer, this.serialize())
-                            .thenApply(multihash -> new TreeNode(this, multihash));
+                    return commit(writer, keys, storage);
                 });
     }
 
-    private static CompletableFuture<TreeNode> rebalance(PublicKeyHash writer, TreeNode parent, TreeNode child, Multihash originalChildHash,
+    private static CompletableFuture<TreeNode> rebalance(PublicKeyHash writer, TreeSet<KeyElement> parent, TreeNode child, Multihash originalChildHash,
                                                          ContentAddressedStorage storage, int maxChildren) {
         System.out.println("Btree:rebalance");
         // child has too few children
         Multihash childHash = originalChildHash;
-        KeyElement[] parentKeys = parent.keys.toArray(new KeyElement[parent.keys.size()]);
+        KeyElement[] parentKeys = parent.toArray(new KeyElement[parent.size()]);
         int i = 0;
         while (i < parentKeys.length && !parentKeys[i].targetHash.get().equals(childHash))
             i++;
@@ -313,92 +372,265 @@ public class TreeNode implements Cborable {
         Function<Optional<KeyElement>, CompletableFuture<Optional<TreeNode>>> keyToNode = key -> {
             if (! key.isPresent())
                 return CompletableFuture.completedFuture(Optional.empty());
-            return storage.get(key.get().targetHash.get())
-                    .thenApply(rawOpt -> rawOpt.map(raw -> TreeNode.fromCbor(raw)));
+            return fetch(key.get().targetHash.get(), storage).thenApply(Optional::of);
         };
 
         CompletableFuture<Optional<TreeNode>> leftSiblingFut = keyToNode.apply(leftKey);
         CompletableFuture<Optional<TreeNode>> rightSiblingFut = keyToNode.apply(rightKey);
 
         return leftSiblingFut.thenCompose(leftSibling -> rightSiblingFut.thenCompose(rightSibling -> {
-            if (rightSibling.isPresent() && rightSibling.get().keys.size() > maxChildren / 2) {
+            if (rightSibling.isPresent() && rightSibling.get().keyCount() > maxChildren / 2) {
                 // rotate left
                 final TreeNode right = rightSibling.get();
                 KeyElement newSeparator = right.smallestNonZeroKey();
-                parent.keys.remove(centerKey);
-
-                child.keys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, right.keys.first().targetHash));
-                return storage.put(writer, child.serialize()).thenCompose(newChildHash -> {
-                    right.keys.remove(newSeparator);
-                    right.keys.remove(KeyElement.dummy(new ByteArrayWrapper(new byte[0])));
-                    TreeNode newRight = new TreeNode(newSeparator.targetHash, right.keys);
+                parent.remove(centerKey);
+
+                TreeSet<KeyElement> childKeys = child.mutableKeys();
+                childKeys.add(rightKey.get().withTargetOf(right.first()));
+                TreeNode newChild = new TreeNode(childKeys);
+                return storage.put(writer, newChild.serialize()).thenCompose(newChildHash -> {
+                    TreeSet<KeyElement> rightKeys = right.mutableKeys();
+                    rightKeys.remove(newSeparator);
+                    rightKeys.remove(KeyElement.dummy(ZERO_KEY));
+                    TreeNode newRight = new TreeNode(zero(newSeparator.targetHash, newSeparator.targetSize), rightKeys);
                     return storage.put(writer, newRight.serialize()).thenCompose(newRightHash -> {
-                        parent.keys.remove(rightKey.get());
-                        parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, newChildHash));
-                        parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newRightHash));
-                        return storage.put(writer, parent.serialize())
-                                .thenApply(multihash -> new TreeNode(parent, multihash));
+                        parent.remove(rightKey.get());
+                        parent.add(new KeyElement(centerKey.key, centerKey.valueHash, MaybeMultihash.of(newChildHash), newChild.valueCount));
+                        parent.add(new KeyElement(newSeparator.key, newSeparator.valueHash, MaybeMultihash.of(newRightHash), newRight.valueCount));
+                        return commit(writer, parent, storage);
                     });
                 });
-            } else if (leftSibling.isPresent() && leftSibling.get().keys.size() > maxChildren / 2) {
+            } else if (leftSibling.isPresent() && leftSibling.get().keyCount() > maxChildren / 2) {
                 // rotate right
                 TreeNode left = leftSibling.get();
-                KeyElement newSeparator = left.keys.last();
-                parent.keys.remove(centerKey);
-
-                left.keys.remove(newSeparator);
-                return storage.put(writer, left.serialize()).thenCompose(newLeftHash -> {
-                    child.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
-                    child.keys.remove(KeyElement.dummy(new ByteArrayWrapper(new byte[0])));
-                    child.keys.add(new KeyElement(new ByteArrayWrapper(new byte[0]), MaybeMultihash.empty(), newSeparator.targetHash));
-                    return storage.put(writer, child.serialize()).thenCompose(newChildHash -> {
-                        parent.keys.remove(leftKey.get());
-                        parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, newLeftHash));
-                        parent.keys.add(new KeyElement(newSeparator.key, newSeparator.valueHash, newChildHash));
-                        return storage.put(writer, parent.serialize())
-                                .thenApply(multihash -> new TreeNode(parent, multihash));
+                KeyElement newSeparator = left.last();
+                parent.remove(centerKey);
+
+                TreeSet<KeyElement> leftKeys = left.mutableKeys();
+                leftKeys.remove(newSeparator);
+                TreeNode newLeft = new TreeNode(leftKeys);
+                return storage.put(writer, newLeft.serialize()).thenCompose(newLeftHash -> {
+                    TreeSet<KeyElement> childKeys = child.mutableKeys();
+                    childKeys.remove(KeyElement.dummy(ZERO_KEY));
+                    childKeys.add(centerKey.withTargetOf(child.first()));
+                    childKeys.add(zero(newSeparator.targetHash, newSeparator.targetSize));
+                    TreeNode newChild = new TreeNode(childKeys);
+                    return storage.put(writer, newChild.serialize()).thenCompose(newChildHash -> {
+                        parent.remove(leftKey.get());
+                        parent.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, MaybeMultihash.of(newLeftHash), newLeft.valueCount));
+                        parent.add(new KeyElement(newSeparator.key, newSeparator.valueHash, MaybeMultihash.of(newChildHash), newChild.valueCount));
+                        return commit(writer, parent, storage);
                     });
                 });
             } else {
                 if (rightSibling.isPresent()) {
                     // merge with right sibling and separator
                     SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                    combinedKeys.addAll(child.keys);
-                    combinedKeys.addAll(rightSibling.get().keys);
-                    combinedKeys.add(new KeyElement(rightKey.get().key, rightKey.get().valueHash, rightSibling.get().keys.first().targetHash));
+                    combinedKeys.addAll(Arrays.asList(child.keys));
+                    combinedKeys.addAll(Arrays.asList(rightSibling.get().keys));
+                    combinedKeys.add(rightKey.get().withTargetOf(rightSibling.get().first()));
                     TreeNode combined = new TreeNode(combinedKeys);
                     return storage.put(writer, combined.serialize()).thenCompose(combinedHash -> {
-                        parent.keys.remove(rightKey.get());
-                        parent.keys.remove(centerKey);
-                        parent.keys.add(new KeyElement(centerKey.key, centerKey.valueHash, combinedHash));
-                        if (parent.keys.size() >= maxChildren / 2) {
-                            return storage.put(writer, parent.serialize())
-                                    .thenApply(multihash -> new TreeNode(parent, multihash));
-                        }
-                        return CompletableFuture.completedFuture(new TreeNode(parent.keys));
+                        parent.remove(rightKey.get());
+                        parent.remove(centerKey);
+                        parent.add(new KeyElement(centerKey.key, centerKey.valueHash, MaybeMultihash.of(combinedHash), combined.valueCount));
+                        if (parent.size() >= maxChildren / 2)
+                            return commit(writer, parent, storage);
+                        return CompletableFuture.completedFuture(new TreeNode(parent));
                     });
                 } else {
-                    // merge with left sibling and separator
+                    // merge with left sibling and separator, keeping the left sibling's leftmost child
                     SortedSet<KeyElement> combinedKeys = new TreeSet<>();
-                    combinedKeys.addAll(child.keys);
-                    combinedKeys.addAll(leftSibling.get().keys);
-                    combinedKeys.add(new KeyElement(centerKey.key, centerKey.valueHash, child.keys.first().targetHash));
+                    combinedKeys.addAll(Arrays.asList(leftSibling.get().keys));
+                    combinedKeys.addAll(Arrays.asList(child.keys));
+                    combinedKeys.add(centerKey.withTargetOf(child.first()));
                     TreeNode combined = new TreeNode(combinedKeys);
                     return storage.put(writer, combined.serialize()).thenCompose(combinedHash -> {
-                        parent.keys.remove(leftKey.get());
-                        parent.keys.remove(centerKey);
-                        parent.keys.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, combinedHash));
-                        if (parent.keys.size() >= maxChildren / 2) {
-                            return storage.put(writer, parent.serialize())
-                                    .thenApply(multihash -> new TreeNode(parent, multihash));
-                        }
-                        return CompletableFuture.completedFuture(new TreeNode(parent.keys));
+                        parent.remove(leftKey.get());
+                        parent.remove(centerKey);
+                        parent.add(new KeyElement(leftKey.get().key, leftKey.get().valueHash, MaybeMultihash.of(combinedHash), combined.valueCount));
+                        if (parent.size() >= maxChildren / 2)
+                            return commit(writer, parent, storage);
+                        return CompletableFuture.completedFuture(new TreeNode(parent));
                     });
                 }
             }
         }));
     }
 
+    /** The result of writing a subtree which may have outgrown a single node. The first node takes the place of the
+     *  original, and each separator (with the following node as its target) must be inserted into the parent.
+     */
+    private static class Merged {
+        public final TreeNode first;
+        public final List<KeyElement> separators;
+
+        public Merged(TreeNode first, List<KeyElement> separators) {
+            this.first = first;
+            this.separators = separators;
+        }
+    }
+
+    private static final int MAX_BLOCKS_PER_PUT = 256;
+
+    /**
+     * Build a balanced tree bottom up from key value pairs, writing each node exactly once.
+     *
+     * @param sorted pairs in strictly increasing key order
+     * @return the root of the new tree
+     */
+    public static CompletableFuture<TreeNode> bulkLoad(PublicKeyHash writer,
+                                                       List<Pair<ByteArrayWrapper, Multihash>> sorted,
+                                                       ContentAddressedStorage storage,
+                                                       int maxChildren) {
+        List<KeyElement> elements = new ArrayList<>(sorted.size() + 1);
+        elements.add(KeyElement.dummy(new ByteArrayWrapper(new byte[0])));
+        for (Pair<ByteArrayWrapper, Multihash> pair : sorted) {
+            if (pair.left.compareTo(elements.get(elements.size() - 1).key) <= 0)
+                throw new IllegalStateException("Bulk load keys must be sorted and unique!");
+            elements.add(new KeyElement(pair.left, pair.right, MaybeMultihash.empty()));
+        }
+        return write(writer, elements, storage, maxChildren)
+                .thenCompose(leaves -> addParents(writer, leaves, storage, maxChildren));
+    }
+
+    /**
+     * Apply a batch of changes to the tree rooted at this node, writing each modified node exactly once. Removed keys
+     * are left as tombstones.
+     *
+     * @param sorted mutations in strictly increasing key order
+     * @return the root of the new tree
+     */
+    public CompletableFuture<TreeNode> merge(PublicKeyHash writer,
+                                             List<Btree.Mutation> sorted,
+                                             ContentAddressedStorage storage,
+                                             int maxChildren) {
+        return mergeSubtree(writer, sorted, storage, maxChildren)
+                .thenCompose(merged -> addParents(writer, merged, storage, maxChildren));
+    }
+
+    private static CompletableFuture<TreeNode> addParents(PublicKeyHash writer,
+                                                          Merged merged,
+                                                          ContentAddressedStorage storage,
+                                                          int maxChildren) {
+        if (merged.separators.isEmpty())
+            return CompletableFuture.completedFuture(merged.first);
+        List<KeyElement> parent = new ArrayList<>(merged.separators.size() + 1);
+        parent.add(zero(merged.first.hash, merged.first.valueCount));
+        parent.addAll(merged.separators);
+        return write(writer, parent, storage, maxChildren)
+                .thenCompose(level -> addParents(writer, level, storage, maxChildren));
+    }
+
+    private CompletableFuture<Merged> mergeSubtree(PublicKeyHash writer,
+                                                   List<Btree.Mutation> sorted,
+                                                   ContentAddressedStorage storage,
+                                                   int maxChildren) {
+        List<KeyElement> elements = new ArrayList<>(Arrays.asList(keys));
+        List<List<Btree.Mutation>> childChanges = new ArrayList<>(elements.size());
+        for (int i=0; i < elements.size(); i++)
+            childChanges.add(new ArrayList<>());
+        List<KeyElement> inserted = new ArrayList<>();
+        boolean modified = false;
+        int index = 0;
+        for (Btree.Mutation change : sorted) {
+            ByteArrayWrapper key = new ByteArrayWrapper(change.mapKey);
+            // changes are sorted, so the element preceding each one never moves backwards
+            while (index + 1 < elements.size() && elements.get(index + 1).key.compareTo(key) <= 0)
+                index++;
+            KeyElement current = elements.get(index);
+            if (index > 0 && current.key.equals(key)) {
+                boolean casMatches = current.valueHash.equals(change.existing) ||
+                        (change.value.isPresent() && ! current.valueHash.isPresent());
+                if (! casMatches) {
+                    CompletableFuture<Merged> res = new CompletableFuture<>();
+                    res.completeExceptionally(new Btree.CasException(current.valueHash, change.existing));
+                    return res;
+                }
+                MaybeMultihash value = change.value.map(MaybeMultihash::of).orElse(MaybeMultihash.empty());
+                elements.set(index, new KeyElement(key, value, current.targetHash, current.targetSize));
+                modified = true;
+            } else if (current.targetHash.isPresent()) {
+                childChanges.get(index).add(change);
+            } else if (change.value.isPresent()) {
+                inserted.add(new KeyElement(key, change.value.get(), MaybeMultihash.empty()));
+            }
+        }
+
+        List<CompletableFuture<Pair<Integer, Merged>>> children = new ArrayList<>();
+        for (int i=0; i < elements.size(); i++) {
+            if (childChanges.get(i).isEmpty())
+                continue;
+            int childIndex = i;
+            Multihash childHash = elements.get(i).targetHash.get();
+            children.add(fetch(childHash, storage)
+                    .thenCompose(child -> child.mergeSubtree(writer, childChanges.get(childIndex), storage, maxChildren))
+                    .thenApply(merged -> new Pair<>(childIndex, merged)));
+        }
+        if (children.isEmpty() && inserted.isEmpty() && ! modified && hash.isPresent())
+            return CompletableFuture.completedFuture(new Merged(this, Collections.emptyList()));
+
+        return Futures.combineAllInOrder(children).thenCompose(mergedChildren -> {
+            TreeSet<KeyElement> result = new TreeSet<>(elements);
+            for (Pair<Integer, Merged> child : mergedChildren) {
+                KeyElement parent = elements.get(child.left);
+                result.remove(parent);
+                result.add(parent.withTarget(child.right.first));
+                result.addAll(child.right.separators);
+            }
+            result.addAll(inserted);
+            return write(writer, new ArrayList<>(result), storage, maxChildren);
+        });
+    }
+
+    /**
+     * Write sorted elements, starting with the zero key, into as few evenly filled nodes as possible. A full node
+     * split this way leaves every node at least half full.
+     */
+    private static CompletableFuture<Merged> write(PublicKeyHash writer,
+                                                   List<KeyElement> elements,
+                                                   ContentAddressedStorage storage,
+                                                   int maxChildren) {
+        int total = elements.size();
+        int nodeCount = (total + maxChildren - 1) / maxChildren;
+        List<TreeNode> nodes = new ArrayList<>(nodeCount);
+        List<KeyElement> separators = new ArrayList<>(nodeCount - 1);
+        int start = 0;
+        for (int i=0; i < nodeCount; i++) {
+            int size = total / nodeCount + (i < total % nodeCount ? 1 : 0);
+            if (i == 0) {
+                nodes.add(new TreeNode(new TreeSet<>(elements.subList(0, size))));
+            } else {
+                // the separator moves up to the parent, and its old target becomes the left child of the new node
+                KeyElement separator = elements.get(start);
+                separators.add(separator);
+                nodes.add(new TreeNode(zero(separator.targetHash, separator.targetSize), new TreeSet<>(elements.subList(start + 1, start + size))));
+            }
+            start += size;
+        }
+        List<byte[]> blocks = nodes.stream()
+                .map(TreeNode::serialize)
+                .collect(Collectors.toList());
+        return putAll(writer, blocks, storage).thenApply(hashes -> {
+            List<KeyElement> promoted = new ArrayList<>(separators.size());
+            for (int i=0; i < separators.size(); i++)
+                promoted.add(new KeyElement(separators.get(i).key, separators.get(i).valueHash, MaybeMultihash.of(hashes.get(i + 1)), nodes.get(i + 1).valueCount));
+            for (int i=0; i < nodes.size(); i++)
+                cache(nodes.get(i).withHash(MaybeMultihash.of(hashes.get(i))));
+            return new Merged(nodes.get(0).withHash(MaybeMultihash.of(hashes.get(0))), promoted);
+        });
+    }
+
+    private static CompletableFuture<List<Multihash>> putAll(PublicKeyHash writer, List<byte[]> blocks, ContentAddressedStorage storage) {
+        List<CompletableFuture<List<Multihash>>> puts = new ArrayList<>();
+        for (int i=0; i < blocks.size(); i += MAX_BLOCKS_PER_PUT)
+            puts.add(storage.put(writer, blocks.subList(i, Math.min(blocks.size(), i + MAX_BLOCKS_PER_PUT))));
+        return Futures.combineAllInOrder(puts)
+                .thenApply(batches -> batches.stream()
+                        .flatMap(List::stream)
+                        .collect(Collectors.toList()));
+    }
+
     /**
      *  Print a representation of this btree to the print stream. This method is synchronous.
      * @param w
@@ -412,14 +644,14 @@ public class TreeNode implements Cborable {
             String tab = "";
             for (int i=0; i < depth; i++)
                 tab += "   ";
-            w.print(StringUtils.format(tab + "[%d/%d] %s : %s\n", index++, keys.size(), e.key.toString(), new ByteArrayWrapper(e.valueHash.serialize()).toString()));
+            w.print(StringUtils.format(tab + "[%d/%d] %s : %s\n", index++, keys.length, e.key.toString(), new ByteArrayWrapper(e.valueHash.serialize()).toString()));
             if (e.targetHash.isPresent())
                 TreeNode.fromCbor(storage.get(e.targetHash.get()).get().get()).print(w, depth + 1, storage);
         }
     }
 
     public CborObject toCbor() {
-        return new CborObject.CborList(keys.stream()
+        return new CborObject.CborList(Arrays.stream(keys)
                 .map(Cborable::toCbor)
                 .collect(Collectors.toList())
         );
@@ -428,21 +660,34 @@ public class TreeNode implements Cborable {
     public static TreeNode fromCbor(CborObject cbor) {
         if (! (cbor instanceof CborObject.CborList))
             throw new IllegalStateException("Incorrect serialization for tree node! " + cbor);
-        TreeSet<KeyElement> sortedKeys = new TreeSet<>(((CborObject.CborList) cbor).value
-                .stream()
-                .map(KeyElement::fromCbor)
-                .collect(Collectors.toSet()));
-        return new TreeNode(sortedKeys);
+        List<CborObject> elements = ((CborObject.CborList) cbor).value;
+        KeyElement[] keys = new KeyElement[elements.size()];
+        for (int i=0; i < keys.length; i++)
+            keys[i] = KeyElement.fromCbor(elements.get(i));
+        Arrays.sort(keys);
+        boolean canonical = keys.length > 0 && keys[0].key.equals(ZERO_KEY);
+        for (int i=1; i < keys.length && canonical; i++)
+            canonical = keys[i - 1].key.compareTo(keys[i].key) < 0;
+        if (canonical)
+            return new TreeNode(keys, MaybeMultihash.empty());
+        return new TreeNode(new TreeSet<>(Arrays.asList(keys)));
     }
 
-    private static class KeyElement implements Cborable, Comparable<KeyElement> {
+    static class KeyElement implements Cborable, Comparable<KeyElement> {
         public final ByteArrayWrapper key;
         public final MaybeMultihash valueHash, targetHash;
+        // the number of values in the target subtree, or -1 if unknown
+        public final long targetSize;
 
-        public KeyElement(ByteArrayWrapper key, MaybeMultihash valueHash, MaybeMultihash targetHash) {
+        public KeyElement(ByteArrayWrapper key, MaybeMultihash valueHash, MaybeMultihash targetHash, long targetSize) {
             this.key = key;
             this.valueHash = valueHash;
             this.targetHash = targetHash;
+            this.targetSize = targetHash.isPresent() ? targetSize : 0;
+        }
+
+        public KeyElement(ByteArrayWrapper key, MaybeMultihash valueHash, MaybeMultihash targetHash) {
+            this(key, valueHash, targetHash, -1);
         }
 
         public KeyElement(ByteArrayWrapper key, Multihash valueHash, MaybeMultihash targetHash) {
@@ -455,6 +700,16 @@ public class TreeNode implements Cborable {
             this(key, MaybeMultihash.of(valueHash), MaybeMultihash.of(targetHash));
         }
 
+        /** This element pointing at a committed child node */
+        public KeyElement withTarget(TreeNode child) {
+            return new KeyElement(key, valueHash, child.hash, child.valueCount);
+        }
+
+        /** This element pointing at the same subtree as other */
+        public KeyElement withTargetOf(KeyElement other) {
+            return new KeyElement(key, valueHash, other.targetHash, other.targetSize);
+        }
+
         @Override
         public int compareTo(KeyElement that) {
             return key.compareTo(that.key);
@@ -473,6 +728,8 @@ public class TreeNode implements Cborable {
                 cbor.put("v", new CborObject.CborMerkleLink(valueHash.get()));
             if (targetHash.isPresent())
                 cbor.put("t", new CborObject.CborMerkleLink(targetHash.get()));
+            if (targetHash.isPresent() && targetSize >= 0)
+                cbor.put("c", new CborObject.CborLong(targetSize));
 
             return CborObject.CborMap.build(cbor);
         }
@@ -490,7 +747,8 @@ public class TreeNode implements Cborable {
             MaybeMultihash target = getOrDefault(values, "t",
                     c -> MaybeMultihash.of(((CborObject.CborMerkleLink)c).target),
                     MaybeMultihash::empty);
-            return new KeyElement(key, value, target);
+            long targetSize = getOrDefault(values, "c", c -> ((CborObject.CborLong)c).value, () -> -1L);
+            return new KeyElement(key, value, target, targetSize);
         }
 
         private static <T> T getOrDefault(SortedMap<CborObject, CborObject> values, String skey, Function<CborObject, T> converter, Supplier<T> def) {
@@ -14,6 +14,8 @@ public class CachingPointers implements MutablePointers {
     private final MutablePointers target;
     private final int cacheTTL;
     private final Map<PublicKeyHash, Pair<Optional<byte[]>, Long>> cache = new HashMap<>();
+    // incremented when a pointer update starts or finishes, so that a read which overlaps one isn't cached
+    private long updates = 0;
 
     public CachingPointers(MutablePointers target, int cacheTTL) {
         this.target = target;
@@ -22,14 +24,17 @@ public class CachingPointers implements MutablePointers {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer) {
+        long updatesBefore;
         synchronized (cache) {
             Pair<Optional<byte[]>, Long> cached = cache.get(writer);
             if (cached != null && System.currentTimeMillis() - cached.right < cacheTTL)
                 return CompletableFuture.completedFuture(cached.left);
+            updatesBefore = updates;
         }
         return target.getPointer(writer).thenApply(m -> {
             synchronized (cache) {
-                cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
+                if (updates == updatesBefore)
+                    cache.put(writer, new Pair<>(m, System.currentTimeMillis()));
             }
             return m;
         });
@@ -39,7 +44,14 @@ public class CachingPointers implements MutablePointers {
     public CompletableFuture<Boolean> setPointer(PublicKeyHash ownerPublicKey, PublicKeyHash writer, byte[] writerSignedBtreeRootHash) {
         synchronized (cache) {
             cache.remove(writer);
+            updates++;
         }
-        return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash);
+        return target.setPointer(ownerPublicKey, writer, writerSignedBtreeRootHash).thenApply(res -> {
+            synchronized (cache) {
+                cache.remove(writer);
+                updates++;
+            }
+            return res;
+        });
     }
 }
@@ -23,4 +23,13 @@ public interface MutablePointers {
      * @return
      */
     CompletableFuture<Optional<byte[]>> getPointer(PublicKeyHash writer);
+
+    /** Thrown when a pointer update fails because the current value isn't the one it was based on */
+    class CasException extends IllegalStateException {
+        private static final long serialVersionUID = 1L;
+
+        public CasException(String message) {
+            super(message);
+        }
+    }
 }
@@ -9,20 +9,49 @@ import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
+import java.util.stream.*;
 
+/** A read cache bounded by the total size of the cached blocks. Concurrent gets for the same block share a single
+ *  request to the target. The cache is split into independently locked stripes, each with its own LRU order and a
+ *  share of the byte budget.
+ */
 public class CachingStorage implements ContentAddressedStorage {
+    private static final int STRIPES = 16;
+
+    private static final class CacheEntry {
+        public final byte[] raw;
+        // parsed lazily the first time the block is requested as cbor
+        public CborObject parsed;
+
+        public CacheEntry(byte[] raw, CborObject parsed) {
+            this.raw = raw;
+            this.parsed = parsed;
+        }
+    }
+
+    private static final class Stripe {
+        private final LinkedHashMap<Multihash, CacheEntry> cache = new LinkedHashMap<>(16, 0.75f, true);
+        // in flight requests are only ever removed when they complete
+        private final Map<Multihash, CompletableFuture<Optional<CborObject>>> pending = new HashMap<>();
+        private final Map<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw = new HashMap<>();
+        private long bytes, hits, misses, evictions;
+    }
+
     private final ContentAddressedStorage target;
-    private final LRUCache<Multihash, byte[]> cache;
-    private final LRUCache<Multihash, CompletableFuture<Optional<CborObject>>> pending;
-    private final LRUCache<Multihash, CompletableFuture<Optional<byte[]>>> pendingRaw;
+    private final Stripe[] stripes = new Stripe[STRIPES];
+    private final long maxStripeBytes;
     private final int maxValueSize;
 
-    public CachingStorage(ContentAddressedStorage target, int cacheSize, int maxValueSize) {
+    public CachingStorage(ContentAddressedStorage target, long maxCacheBytes, int maxValueSize) {
         this.target = target;
-        this.cache = new LRUCache<>(cacheSize);
+        this.maxStripeBytes = maxCacheBytes / STRIPES;
         this.maxValueSize = maxValueSize;
-        this.pending = new LRUCache<>(100);
-        this.pendingRaw = new LRUCache<>(100);
+        for (int i=0; i < STRIPES; i++)
+            stripes[i] = new Stripe();
+    }
+
+    private Stripe stripe(Multihash key) {
+        return stripes[(key.hashCode() & 0x7fffffff) % STRIPES];
     }
 
     @Override
@@ -32,28 +61,52 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(CborObject.fromByteArray(cache.get(key))));
-
-        if (pending.containsKey(key))
-            return pending.get(key);
-
+        Stripe stripe = stripe(key);
+        CacheEntry cached;
         CompletableFuture<Optional<CborObject>> pipe = new CompletableFuture<>();
-        pending.put(key, pipe);
-        return target.get(key).thenApply(cborOpt -> {
-            if (cborOpt.isPresent()) {
-                byte[] value = cborOpt.get().toByteArray();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+        synchronized (stripe) {
+            cached = stripe.cache.get(key);
+            if (cached != null) {
+                stripe.hits++;
+                if (cached.parsed != null)
+                    return CompletableFuture.completedFuture(Optional.of(cached.parsed));
+            } else {
+                CompletableFuture<Optional<CborObject>> inFlight = stripe.pending.get(key);
+                if (inFlight != null)
+                    return inFlight;
+                stripe.misses++;
+                stripe.pending.put(key, pipe);
+            }
+        }
+        if (cached != null) {
+            CborObject parsed = CborObject.fromByteArray(cached.raw);
+            cached.parsed = parsed;
+            return CompletableFuture.completedFuture(Optional.of(parsed));
+        }
+
+        CompletableFuture<Optional<CborObject>> fetch;
+        try {
+            fetch = target.get(key);
+        } catch (RuntimeException e) {
+            fetch = new CompletableFuture<>();
+            fetch.completeExceptionally(e);
+        }
+        fetch.thenApply(cborOpt -> {
+            if (cborOpt.isPresent())
+                cache(stripe, key, cborOpt.get().toByteArray(), cborOpt.get());
+            synchronized (stripe) {
+                stripe.pending.remove(key);
             }
-            pending.remove(key);
             pipe.complete(cborOpt);
             return cborOpt;
         }).exceptionally(t -> {
-            pending.remove(key);
+            synchronized (stripe) {
+                stripe.pending.remove(key);
+            }
             pipe.completeExceptionally(t);
             return null;
         });
+        return pipe;
     }
 
     @Override
@@ -63,28 +116,173 @@ public class CachingStorage implements ContentAddressedStorage {
 
     @Override
     public CompletableFuture<Optional<byte[]>> getRaw(Multihash key) {
-        if (cache.containsKey(key))
-            return CompletableFuture.completedFuture(Optional.of(cache.get(key)));
-
-        if (pendingRaw.containsKey(key))
-            return pendingRaw.get(key);
-
+        Stripe stripe = stripe(key);
         CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
-        pendingRaw.put(key, pipe);
-        return target.getRaw(key).thenApply(rawOpt -> {
-            if (rawOpt.isPresent()) {
-                byte[] value = rawOpt.get();
-                if (value.length > 0 && value.length < maxValueSize)
-                    cache.put(key, value);
+        synchronized (stripe) {
+            CacheEntry cached = stripe.cache.get(key);
+            if (cached != null) {
+                stripe.hits++;
+                return CompletableFuture.completedFuture(Optional.of(cached.raw));
+            }
+            CompletableFuture<Optional<byte[]>> inFlight = stripe.pendingRaw.get(key);
+            if (inFlight != null)
+                return inFlight;
+            stripe.misses++;
+            stripe.pendingRaw.put(key, pipe);
+        }
+
+        CompletableFuture<Optional<byte[]>> fetch;
+        try {
+            fetch = target.getRaw(key);
+        } catch (RuntimeException e) {
+            fetch = new CompletableFuture<>();
+            fetch.completeExceptionally(e);
+        }
+        fetch.thenApply(rawOpt -> {
+            if (rawOpt.isPresent())
+                cache(stripe, key, rawOpt.get(), null);
+            synchronized (stripe) {
+                stripe.pendingRaw.remove(key);
             }
-            pendingRaw.remove(key);
             pipe.complete(rawOpt);
             return rawOpt;
         }).exceptionally(t -> {
-            pending.remove(key);
+            synchronized (stripe) {
+                stripe.pendingRaw.remove(key);
+            }
             pipe.completeExceptionally(t);
             return null;
         });
+        return pipe;
+    }
+
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        Map<Multihash, CompletableFuture<Optional<byte[]>>> results = new HashMap<>();
+        // the misses we are responsible for fetching, others may already be in flight
+        Map<Multihash, CompletableFuture<Optional<byte[]>>> toFetch = new LinkedHashMap<>();
+        for (Multihash key : hashes) {
+            if (results.containsKey(key))
+                continue;
+            Stripe stripe = stripe(key);
+            synchronized (stripe) {
+                CacheEntry cached = stripe.cache.get(key);
+                if (cached != null) {
+                    stripe.hits++;
+                    results.put(key, CompletableFuture.completedFuture(Optional.of(cached.raw)));
+                    continue;
+                }
+                CompletableFuture<Optional<byte[]>> inFlight = stripe.pendingRaw.get(key);
+                if (inFlight != null) {
+                    results.put(key, inFlight);
+                    continue;
+                }
+                stripe.misses++;
+                CompletableFuture<Optional<byte[]>> pipe = new CompletableFuture<>();
+                stripe.pendingRaw.put(key, pipe);
+                results.put(key, pipe);
+                toFetch.put(key, pipe);
+            }
+        }
+
+        if (! toFetch.isEmpty()) {
+            List<Multihash> missing = new ArrayList<>(toFetch.keySet());
+            CompletableFuture<List<Optional<byte[]>>> fetch;
+            try {
+                fetch = target.getMany(missing);
+            } catch (RuntimeException e) {
+                fetch = new CompletableFuture<>();
+                fetch.completeExceptionally(e);
+            }
+            fetch.thenApply(blocks -> {
+                for (int i=0; i < missing.size(); i++) {
+                    Multihash key = missing.get(i);
+                    Optional<byte[]> block = blocks.get(i);
+                    Stripe stripe = stripe(key);
+                    if (block.isPresent())
+                        cache(stripe, key, block.get(), null);
+                    synchronized (stripe) {
+                        stripe.pendingRaw.remove(key);
+                    }
+                    toFetch.get(key).complete(block);
+                }
+                return blocks;
+            }).exceptionally(t -> {
+                for (Multihash key : missing) {
+                    Stripe stripe = stripe(key);
+                    synchronized (stripe) {
+                        stripe.pendingRaw.remove(key);
+                    }
+                    toFetch.get(key).completeExceptionally(t);
+                }
+                return null;
+            });
+        }
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(results::get)
+                .collect(Collectors.toList()));
+    }
+
+    /** Fetch a whole subtree from the target in one go, and keep every block in it in the cache */
+    @Override
+    public CompletableFuture<DagExport.Export> exportDag(Multihash root, int maxDepth, long maxBytes) {
+        return target.exportDag(root, maxDepth, maxBytes).thenApply(export -> {
+            for (Pair<Multihash, byte[]> block : export.blocks)
+                cache(stripe(block.left), block.left, block.right, null);
+            return export;
+        });
+    }
+
+    private void cache(Stripe stripe, Multihash key, byte[] value, CborObject parsed) {
+        if (value.length == 0 || value.length >= maxValueSize)
+            return;
+        synchronized (stripe) {
+            CacheEntry existing = stripe.cache.put(key, new CacheEntry(value, parsed));
+            stripe.bytes += value.length - (existing == null ? 0 : existing.raw.length);
+            Iterator<Map.Entry<Multihash, CacheEntry>> lru = stripe.cache.entrySet().iterator();
+            while (stripe.bytes > maxStripeBytes && lru.hasNext()) {
+                CacheEntry evicted = lru.next().getValue();
+                lru.remove();
+                stripe.bytes -= evicted.raw.length;
+                stripe.evictions++;
+            }
+        }
+    }
+
+    public long hitCount() {
+        long total = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                total += stripe.hits;
+            }
+        return total;
+    }
+
+    public long missCount() {
+        long total = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                total += stripe.misses;
+            }
+        return total;
+    }
+
+    public long evictionCount() {
+        long total = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                total += stripe.evictions;
+            }
+        return total;
+    }
+
+    public long cachedBytes() {
+        long total = 0;
+        for (Stripe stripe : stripes)
+            synchronized (stripe) {
+                total += stripe.bytes;
+            }
+        return total;
     }
 
     @Override
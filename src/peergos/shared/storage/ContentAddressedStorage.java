@@ -8,6 +8,7 @@ import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.user.*;
+import peergos.shared.util.*;
 
 import java.io.*;
 import java.net.*;
@@ -18,6 +19,8 @@ import java.util.stream.*;
 public interface ContentAddressedStorage {
 
     int MAX_OBJECT_LENGTH  = 1024*256;
+    int MAX_BLOCKS_PER_GET_MANY = 64;
+    long MAX_DAG_EXPORT_BYTES = 64 * 1024 * 1024;
 
     default CompletableFuture<Multihash> put(PublicKeyHash writer, byte[] block) {
         return put(writer, Arrays.asList(block)).thenApply(hashes -> hashes.get(0));
@@ -35,6 +38,30 @@ public interface ContentAddressedStorage {
 
     CompletableFuture<Optional<byte[]>> getRaw(Multihash object);
 
+    /**
+     *
+     * @param hashes
+     * @return the raw bytes of each block, in the same order as hashes
+     */
+    default CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return Futures.combineAllInOrder(hashes.stream()
+                .map(this::getRaw)
+                .collect(Collectors.toList()));
+    }
+
+    /**
+     *
+     * @param root
+     * @param maxDepth the number of links to follow from root, which is at depth 0
+     * @param maxBytes the maximum total size of the returned blocks
+     * @return the blocks reachable from root, each at most once, in breadth first order
+     */
+    default CompletableFuture<DagExport.Export> exportDag(Multihash root, int maxDepth, long maxBytes) {
+        List<Pair<Multihash, byte[]>> res = new ArrayList<>();
+        return DagExport.walk(this, root, maxDepth, maxBytes, res::add)
+                .thenApply(complete -> new DagExport.Export(res, ! complete));
+    }
+
     CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated);
 
     CompletableFuture<List<Multihash>> recursivePin(Multihash h);
@@ -74,14 +101,6 @@ public interface ContentAddressedStorage {
             this.poster = poster;
         }
 
-        private static Multihash getObjectHash(Object rawJson) {
-            Map json = (Map)rawJson;
-            String hash = (String)json.get("Hash");
-            if (hash == null)
-                hash = (String)json.get("Key");
-            return Cid.decode(hash);
-        }
-
         private static String encode(String component) {
             try {
                 return URLEncoder.encode(component, "UTF-8");
@@ -103,9 +122,9 @@ public interface ContentAddressedStorage {
         private CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks, String format) {
             return poster.postMultipart(apiPrefix + "block/put?format=" + format
                     + "&writer=" + encode(writer.toString()), blocks)
-                    .thenApply(bytes -> JSONParser.parseStream(new String(bytes))
+                    .thenApply(bytes -> JSONReader.readStringFields(bytes, "Hash", "Key")
                             .stream()
-                            .map(json -> getObjectHash(json))
+                            .map(Cid::decode)
                             .collect(Collectors.toList()));
         }
 
@@ -121,6 +140,30 @@ public interface ContentAddressedStorage {
                     .thenApply(raw -> raw.length == 0 ? Optional.empty() : Optional.of(raw));
         }
 
+        @Override
+        public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+            if (hashes.size() > MAX_BLOCKS_PER_GET_MANY) {
+                List<CompletableFuture<List<Optional<byte[]>>>> batches = new ArrayList<>();
+                for (int i=0; i < hashes.size(); i += MAX_BLOCKS_PER_GET_MANY)
+                    batches.add(getMany(hashes.subList(i, Math.min(hashes.size(), i + MAX_BLOCKS_PER_GET_MANY))));
+                return Futures.combineAllInOrder(batches)
+                        .thenApply(lists -> lists.stream()
+                                .flatMap(List::stream)
+                                .collect(Collectors.toList()));
+            }
+            byte[] request = new CborObject.CborList(hashes.stream()
+                    .map(CborObject.CborMerkleLink::new)
+                    .collect(Collectors.toList())).toByteArray();
+            return poster.post(apiPrefix + "block/get-many", request, false)
+                    .thenApply(raw -> parseBlocks(CborObject.fromByteArray(raw)));
+        }
+
+        @Override
+        public CompletableFuture<DagExport.Export> exportDag(Multihash root, int maxDepth, long maxBytes) {
+            return poster.get(apiPrefix + "dag/export?arg=" + root.toString() + "&depth=" + maxDepth + "&max-bytes=" + maxBytes)
+                    .thenApply(DagExport::readFrames);
+        }
+
         @Override
         public CompletableFuture<List<Multihash>> recursivePin(Multihash hash) {
             return poster.get(apiPrefix + "pin/add?stream-channels=true&arg=" + hash.toString())
@@ -139,6 +182,24 @@ public interface ContentAddressedStorage {
                     .thenApply(this::getMultiAddr);
         }
 
+        /** Inverse of serializeBlocks */
+        public static List<Optional<byte[]>> parseBlocks(CborObject cbor) {
+            if (! (cbor instanceof CborObject.CborList))
+                throw new IllegalStateException("Invalid cbor for list of blocks: " + cbor);
+            return ((CborObject.CborList) cbor).value.stream()
+                    .map(block -> block instanceof CborObject.CborByteArray && ((CborObject.CborByteArray) block).value.length > 0 ?
+                            Optional.of(((CborObject.CborByteArray) block).value) :
+                            Optional.<byte[]>empty())
+                    .collect(Collectors.toList());
+        }
+
+        /** A missing block is encoded as null */
+        public static CborObject serializeBlocks(List<Optional<byte[]>> blocks) {
+            return new CborObject.CborList(blocks.stream()
+                    .map(opt -> opt.<CborObject>map(CborObject.CborByteArray::new).orElse(new CborObject.CborNull()))
+                    .collect(Collectors.toList()));
+        }
+
         private List<Multihash> getPins(byte[] raw) {
             Map res = (Map)JSONParser.parse(new String(raw));
             List<String> pins = (List<String>)res.get("Pins");
@@ -154,9 +215,8 @@ public interface ContentAddressedStorage {
         @Override
         public CompletableFuture<List<Multihash>> getLinks(Multihash block) {
             return poster.get(apiPrefix + "refs?arg=" + block.toString())
-                    .thenApply(raw -> JSONParser.parseStream(new String(raw))
+                    .thenApply(raw -> JSONReader.readStringFields(raw, "Ref")
                             .stream()
-                            .map(obj -> (String) (((Map) obj).get("Ref")))
                             .map(Cid::decode)
                             .collect(Collectors.toList()));
         }
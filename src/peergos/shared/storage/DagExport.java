@@ -0,0 +1,154 @@
+package peergos.shared.storage;
+
+import peergos.shared.cbor.*;
+import peergos.shared.io.ipfs.cid.*;
+import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
+
+import java.io.*;
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.function.*;
+import java.util.stream.*;
+
+/** Breadth first traversal of the blocks reachable from a root, fetching each level of the DAG in getMany sized
+ *  batches, and the length prefixed framing used to send the result in a single response.
+ *
+ *  The frames are followed by a zero length terminator and a flag saying whether the export was truncated, so a
+ *  client can tell a complete export from one cut short by the byte budget, a missing block, or the connection.
+ */
+public class DagExport {
+
+    public static class Export {
+        public final List<Pair<Multihash, byte[]>> blocks;
+        // whether the walk stopped at the byte budget or found a block missing, rather than reaching every block within
+        // the depth
+        public final boolean truncated;
+
+        public Export(List<Pair<Multihash, byte[]>> blocks, boolean truncated) {
+            this.blocks = blocks;
+            this.truncated = truncated;
+        }
+    }
+
+    /**
+     *
+     * @param storage
+     * @param root
+     * @param maxDepth the number of links to follow from root, which is at depth 0
+     * @param maxBytes the traversal stops before the total size of the blocks would exceed this
+     * @param sink receives each reachable block once, in breadth first order
+     * @return whether every reachable block within maxDepth was passed to sink. A missing block doesn't stop the walk,
+     * but the subtree below it can't be reached, so the result is false.
+     */
+    public static CompletableFuture<Boolean> walk(ContentAddressedStorage storage,
+                                                  Multihash root,
+                                                  int maxDepth,
+                                                  long maxBytes,
+                                                  Consumer<Pair<Multihash, byte[]>> sink) {
+        Set<Multihash> seen = new HashSet<>();
+        seen.add(root);
+        List<Multihash> missing = new ArrayList<>();
+        return walkLevel(storage, Collections.singletonList(root), 0, maxDepth, maxBytes, 0, seen, missing, sink)
+                .thenApply(complete -> complete && missing.isEmpty());
+    }
+
+    private static CompletableFuture<Boolean> walkLevel(ContentAddressedStorage storage,
+                                                        List<Multihash> level,
+                                                        int depth,
+                                                        int maxDepth,
+                                                        long maxBytes,
+                                                        long doneBytes,
+                                                        Set<Multihash> seen,
+                                                        List<Multihash> missing,
+                                                        Consumer<Pair<Multihash, byte[]>> sink) {
+        if (level.isEmpty() || depth > maxDepth)
+            return CompletableFuture.completedFuture(true);
+        List<Multihash> next = new ArrayList<>();
+        return walkBatch(storage, level, 0, depth, maxDepth, maxBytes, doneBytes, seen, missing, next, sink)
+                .thenCompose(total -> total.isPresent() ?
+                        walkLevel(storage, next, depth + 1, maxDepth, maxBytes, total.get(), seen, missing, sink) :
+                        CompletableFuture.completedFuture(false));
+    }
+
+    /**
+     *
+     * @return the total size of the blocks passed to sink so far, or empty if we reached the byte budget
+     */
+    private static CompletableFuture<Optional<Long>> walkBatch(ContentAddressedStorage storage,
+                                                               List<Multihash> level,
+                                                               int offset,
+                                                               int depth,
+                                                               int maxDepth,
+                                                               long maxBytes,
+                                                               long doneBytes,
+                                                               Set<Multihash> seen,
+                                                               List<Multihash> missing,
+                                                               List<Multihash> next,
+                                                               Consumer<Pair<Multihash, byte[]>> sink) {
+        if (offset >= level.size())
+            return CompletableFuture.completedFuture(Optional.of(doneBytes));
+        if (doneBytes >= maxBytes)
+            return CompletableFuture.completedFuture(Optional.empty());
+        List<Multihash> batch = level.subList(offset, Math.min(level.size(), offset + ContentAddressedStorage.MAX_BLOCKS_PER_GET_MANY));
+        return storage.getMany(batch).thenCompose(blocks -> {
+            long total = doneBytes;
+            for (int i=0; i < batch.size(); i++) {
+                if (! blocks.get(i).isPresent()) {
+                    missing.add(batch.get(i));
+                    continue;
+                }
+                byte[] block = blocks.get(i).get();
+                if (total + block.length > maxBytes)
+                    return CompletableFuture.completedFuture(Optional.<Long>empty());
+                total += block.length;
+                Multihash hash = batch.get(i);
+                sink.accept(new Pair<>(hash, block));
+                if (depth == maxDepth || isRaw(hash))
+                    continue;
+                for (Multihash link : CborObject.fromByteArray(block).links())
+                    if (seen.add(link))
+                        next.add(link);
+            }
+            return walkBatch(storage, level, offset + batch.size(), depth, maxDepth, maxBytes, total, seen, missing, next, sink);
+        });
+    }
+
+    private static boolean isRaw(Multihash hash) {
+        return hash instanceof Cid && ((Cid) hash).codec == Cid.Codec.Raw;
+    }
+
+    public static void writeFrame(Multihash hash, byte[] block, DataOutput out) throws IOException {
+        byte[] cid = hash.toBytes();
+        out.writeInt(cid.length);
+        out.write(cid);
+        out.writeInt(block.length);
+        out.write(block);
+    }
+
+    public static void writeEnd(boolean truncated, DataOutput out) throws IOException {
+        out.writeInt(0);
+        out.writeBoolean(truncated);
+    }
+
+    public static Export readFrames(byte[] raw) {
+        try {
+            DataInputStream din = new DataInputStream(new ByteArrayInputStream(raw));
+            List<Pair<Multihash, byte[]>> res = new ArrayList<>();
+            while (true) {
+                int cidLength = din.readInt();
+                if (cidLength == 0)
+                    return new Export(res, din.readBoolean());
+                byte[] cid = Serialize.getByteArray(cidLength, 1024);
+                din.readFully(cid);
+                byte[] block = Serialize.getByteArray(din.readInt(), ContentAddressedStorage.MAX_OBJECT_LENGTH);
+                din.readFully(block);
+                res.add(new Pair<>(Cid.cast(cid), block));
+            }
+        } catch (EOFException e) {
+            throw new IllegalStateException("Dag export was cut short", e);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+}
@@ -6,13 +6,21 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.cid.*;
 import peergos.shared.io.ipfs.multiaddr.*;
 import peergos.shared.io.ipfs.multihash.*;
+import peergos.shared.util.*;
 
 import java.util.*;
 import java.util.concurrent.*;
 import java.util.function.*;
 import java.util.stream.*;
 
+/** Checks that every block received from, or stored by, the source matches its hash.
+ *
+ * Blocks are hashed from the bytes we actually received, and each block is paired with the hash at the same position,
+ * so duplicate blocks in a batch are fine. Large batches are hashed in parallel, which is sequential in javascript.
+ */
 public class HashVerifyingStorage implements ContentAddressedStorage {
+    // below this it isn't worth the overhead of splitting a batch across threads
+    private static final int MIN_PARALLEL_BYTES = 256 * 1024;
 
     private final ContentAddressedStorage source;
 
@@ -20,7 +28,7 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
         this.source = source;
     }
 
-    private <T> T verify(byte[] data, Multihash claimed, Supplier<T> result) {
+    private static <T> T verify(byte[] data, Multihash claimed, Supplier<T> result) {
         switch (claimed.type) {
             case sha2_256:
                 Multihash computed = new Multihash(Multihash.Type.sha2_256, Hash.sha256(data));
@@ -35,26 +43,51 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
         }
     }
 
+    /** Verify each present block against the hash at the same position
+     *
+     * @return the results, in order
+     */
+    private static <T> List<T> verifyAll(List<Optional<byte[]>> blocks, List<Multihash> hashes, IntFunction<T> result) {
+        if (blocks.size() != hashes.size())
+            throw new IllegalStateException("Expected " + hashes.size() + " blocks, but got " + blocks.size());
+        long totalBytes = blocks.stream()
+                .mapToLong(b -> b.map(arr -> arr.length).orElse(0))
+                .sum();
+        IntStream indices = IntStream.range(0, blocks.size());
+        if (blocks.size() > 1 && totalBytes >= MIN_PARALLEL_BYTES)
+            indices = indices.parallel();
+        return indices
+                .mapToObj(i -> blocks.get(i).isPresent() ?
+                        verify(blocks.get(i).get(), hashes.get(i), () -> result.apply(i)) :
+                        result.apply(i))
+                .collect(Collectors.toList());
+    }
+
+    private static List<Optional<byte[]>> present(List<byte[]> blocks) {
+        return blocks.stream()
+                .map(Optional::of)
+                .collect(Collectors.toList());
+    }
+
     @Override
     public CompletableFuture<List<Multihash>> put(PublicKeyHash writer, List<byte[]> blocks) {
         return source.put(writer, blocks)
-                .thenApply(hashes -> hashes.stream()
-                        .map(h -> verify(blocks.get(hashes.indexOf(h)), h, () -> h))
-                        .collect(Collectors.toList()));
+                .thenApply(hashes -> verifyAll(present(blocks), hashes, hashes::get));
     }
 
     @Override
     public CompletableFuture<Optional<CborObject>> get(Multihash hash) {
-        return source.get(hash)
-                .thenApply(cborOpt -> cborOpt.map(cbor -> verify(cbor.toByteArray(), hash, () -> cbor)));
+        // hash the bytes we were sent, rather than re-serializing what we parsed from them
+        return source.getRaw(hash)
+                .thenApply(arrOpt -> arrOpt
+                        .filter(bytes -> bytes.length > 0)
+                        .map(bytes -> verify(bytes, hash, () -> CborObject.fromByteArray(bytes))));
     }
 
     @Override
     public CompletableFuture<List<Multihash>> putRaw(PublicKeyHash writer, List<byte[]> blocks) {
         return source.putRaw(writer, blocks)
-                .thenApply(hashes -> hashes.stream()
-                        .map(h -> verify(blocks.get(hashes.indexOf(h)), h, () -> h))
-                        .collect(Collectors.toList()));
+                .thenApply(hashes -> verifyAll(present(blocks), hashes, hashes::get));
     }
 
     @Override
@@ -63,6 +96,21 @@ public class HashVerifyingStorage implements ContentAddressedStorage {
                 .thenApply(arrOpt -> arrOpt.map(bytes -> verify(bytes, hash, () -> bytes)));
     }
 
+    @Override
+    public CompletableFuture<List<Optional<byte[]>>> getMany(List<Multihash> hashes) {
+        return source.getMany(hashes)
+                .thenApply(blocks -> verifyAll(blocks, hashes, blocks::get));
+    }
+
+    @Override
+    public CompletableFuture<DagExport.Export> exportDag(Multihash root, int maxDepth, long maxBytes) {
+        return source.exportDag(root, maxDepth, maxBytes)
+                .thenApply(export -> new DagExport.Export(verifyAll(
+                        export.blocks.stream().map(block -> Optional.of(block.right)).collect(Collectors.toList()),
+                        export.blocks.stream().map(block -> block.left).collect(Collectors.toList()),
+                        export.blocks::get), export.truncated));
+    }
+
     @Override
     public CompletableFuture<List<MultiAddress>> pinUpdate(Multihash existing, Multihash updated) {
         return source.pinUpdate(existing, updated);
@@ -40,6 +40,93 @@ public interface Btree {
      */
     CompletableFuture<Boolean> remove(SigningPrivateKeyAndPublicHash sharingKey, byte[] mapKey, MaybeMultihash existing);
 
+    /** Apply all the mutations, in order, to the current tree and publish the result with a single commit
+     *
+     * @param sharingKey
+     * @param mutations
+     * @return true if the new root was committed
+     */
+    CompletableFuture<Boolean> apply(SigningPrivateKeyAndPublicHash sharingKey, List<Mutation> mutations);
+
+    /** Fetch the top of a writer's tree in one request, ahead of a batch of lookups in it
+     *
+     * @param sharingKey
+     * @return true if anything was fetched
+     */
+    default CompletableFuture<Boolean> prefetch(PublicKeyHash sharingKey) {
+        return CompletableFuture.completedFuture(false);
+    }
+
+    /**
+     *
+     * @param sharingKey
+     * @return a new transaction which stages mutations in memory until it is committed
+     */
+    default Transaction transaction(SigningPrivateKeyAndPublicHash sharingKey) {
+        return new Transaction(this, sharingKey);
+    }
+
+    /** A put, or a remove if there is no value */
+    class Mutation {
+        public final byte[] mapKey;
+        public final MaybeMultihash existing;
+        public final Optional<Multihash> value;
+
+        public Mutation(byte[] mapKey, MaybeMultihash existing, Optional<Multihash> value) {
+            this.mapKey = mapKey;
+            this.existing = existing;
+            this.value = value;
+        }
+
+        public static Mutation put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            return new Mutation(mapKey, existing, Optional.of(value));
+        }
+
+        public static Mutation remove(byte[] mapKey, MaybeMultihash existing) {
+            return new Mutation(mapKey, existing, Optional.empty());
+        }
+    }
+
+    /** Collects puts and removes for one writer so they can be published with a single root commit, rather than a
+     *  signed commit per operation. Nothing is visible to readers until commit() completes.
+     */
+    class Transaction {
+        private final Btree btree;
+        public final SigningPrivateKeyAndPublicHash writer;
+        private final List<Mutation> staged = new ArrayList<>();
+
+        public Transaction(Btree btree, SigningPrivateKeyAndPublicHash writer) {
+            this.btree = btree;
+            this.writer = writer;
+        }
+
+        public synchronized Transaction put(byte[] mapKey, MaybeMultihash existing, Multihash value) {
+            staged.add(Mutation.put(mapKey, existing, value));
+            return this;
+        }
+
+        public synchronized Transaction remove(byte[] mapKey, MaybeMultihash existing) {
+            staged.add(Mutation.remove(mapKey, existing));
+            return this;
+        }
+
+        public synchronized int size() {
+            return staged.size();
+        }
+
+        /** Publish all the staged mutations with one commit, and start a new empty batch */
+        public CompletableFuture<Boolean> commit() {
+            List<Mutation> toApply;
+            synchronized (this) {
+                toApply = new ArrayList<>(staged);
+                staged.clear();
+            }
+            if (toApply.isEmpty())
+                return CompletableFuture.completedFuture(true);
+            return btree.apply(writer, toApply);
+        }
+    }
+
 
     class CasException extends RuntimeException {
 
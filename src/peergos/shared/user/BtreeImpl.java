@@ -6,7 +6,7 @@ import peergos.shared.crypto.hash.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.merklebtree.*;
 import peergos.shared.mutable.*;
-import peergos.shared.storage.ContentAddressedStorage;
+import peergos.shared.storage.*;
 import peergos.shared.util.*;
 
 import java.util.*;
@@ -16,7 +16,30 @@ public class BtreeImpl implements Btree {
     private final MutablePointers mutable;
     private final ContentAddressedStorage dht;
     private static final boolean LOGGING = false;
-    private final Map<PublicKeyHash, CompletableFuture<CommittedWriterData>> pending = new HashMap<>();
+    private static final int MAX_REBASES = 8;
+    private static final int PREFETCH_DEPTH = 2;
+    private static final long PREFETCH_BYTES = 1024 * 1024;
+    private final Map<PublicKeyHash, WriterQueue> queues = new HashMap<>();
+
+    private static class Update {
+        public final SigningPrivateKeyAndPublicHash writer;
+        public final List<Mutation> mutations;
+        public final CompletableFuture<Boolean> result = new CompletableFuture<>();
+
+        public Update(SigningPrivateKeyAndPublicHash writer, List<Mutation> mutations) {
+            this.writer = writer;
+            this.mutations = mutations;
+        }
+    }
+
+    /** The updates waiting to be committed for a writer. While the queue is busy we reuse the writer data we last
+     *  committed, rather than reading it from the network for every batch.
+     */
+    private static class WriterQueue {
+        public final List<Update> waiting = new ArrayList<>();
+        public boolean running = false;
+        public Optional<CommittedWriterData> committed = Optional.empty();
+    }
 
     public BtreeImpl(MutablePointers mutable, ContentAddressedStorage dht) {
         this.mutable = mutable;
@@ -49,53 +72,196 @@ public class BtreeImpl implements Btree {
                         .thenCompose(x -> getWriterData(hash, x)));
     }
 
-    private CompletableFuture<CommittedWriterData> addToQueue(PublicKeyHash pubKey, CompletableFuture<CommittedWriterData> lock) {
-        synchronized (pending) {
-            // This is subtle, but we need to ensure that there is only ever 1 thenAble waiting on the future for a given key
-            // otherwise when the future completes, then the two or more waiters will both proceed with the existing hash,
-            // and whoever commits first will win. We also need to retrieve the writer data again from the network after
-            // a previous transaction has completed (another node/user may have updated the mapping)
+    @Override
+    public CompletableFuture<Boolean> put(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing, Multihash value) {
+        return apply(writer, Collections.singletonList(Mutation.put(mapKey, existing, value)));
+    }
 
-            if (pending.containsKey(pubKey)) {
-                return pending.put(pubKey, lock).thenCompose(x -> getWriterData(pubKey));
+    @Override
+    public CompletableFuture<Boolean> apply(SigningPrivateKeyAndPublicHash writer, List<Mutation> mutations) {
+        if (mutations.isEmpty())
+            return CompletableFuture.completedFuture(true);
+        PublicKeyHash publicWriterKey = writer.publicKeyHash;
+        Update update = new Update(writer, mutations);
+        WriterQueue queue;
+        boolean start;
+        synchronized (queues) {
+            queue = queues.get(publicWriterKey);
+            if (queue == null) {
+                queue = new WriterQueue();
+                queues.put(publicWriterKey, queue);
             }
-            pending.put(pubKey, lock);
-            return getWriterData(pubKey);
         }
+        synchronized (queue) {
+            queue.waiting.add(update);
+            start = ! queue.running;
+            queue.running = true;
+        }
+        if (start)
+            drain(publicWriterKey, queue);
+        return update.result;
     }
 
-    @Override
-    public CompletableFuture<Boolean> put(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing, Multihash value) {
-        PublicKeyHash publicWriterKey = writer.publicKeyHash;
-        CompletableFuture<CommittedWriterData> lock = new CompletableFuture<>();
+    /** Commit everything that has queued up for a writer as one batch, then any that queued up meanwhile, until
+     *  the queue is empty
+     */
+    private void drain(PublicKeyHash publicWriterKey, WriterQueue queue) {
+        List<Update> batch;
+        synchronized (queue) {
+            if (queue.waiting.isEmpty()) {
+                queue.running = false;
+                // another device may commit while we're idle
+                queue.committed = Optional.empty();
+                return;
+            }
+            batch = new ArrayList<>(queue.waiting);
+            queue.waiting.clear();
+        }
+        commitBatch(publicWriterKey, queue, batch)
+                .thenAccept(x -> drain(publicWriterKey, queue));
+    }
 
-        return addToQueue(publicWriterKey, lock)
-                .thenCompose(committed -> {
-                    WriterData holder = committed.props;
-                    MaybeMultihash btreeRootHash = holder.btree.isPresent() ? MaybeMultihash.of(holder.btree.get()) : MaybeMultihash.empty();
-                    return MerkleBTree.create(publicWriterKey, btreeRootHash, dht)
-                            .thenCompose(btree -> btree.put(publicWriterKey, mapKey, existing, value))
-                            .thenApply(newRoot -> LOGGING ? log(newRoot, "BTREE.put (" + ArrayOps.bytesToHex(mapKey)
-                                    + ", " + value + ") => CAS(" + btreeRootHash + ", " + newRoot + ")") : newRoot)
-                            .thenCompose(newBtreeRoot -> holder.withBtree(newBtreeRoot)
-                                    .commit(writer, committed.hash, mutable, dht, lock::complete))
-                            .thenApply(x -> true)
-                            .exceptionally(e -> {
-                                lock.complete(committed);
-                                if (e instanceof RuntimeException)
-                                    throw (RuntimeException) e;
-                                throw new RuntimeException(e);
+    /**
+     *
+     * @return a future which completes, successfully, once every update in the batch has its result
+     */
+    private CompletableFuture<Boolean> commitBatch(PublicKeyHash publicWriterKey, WriterQueue queue, List<Update> batch) {
+        Optional<CommittedWriterData> last;
+        synchronized (queue) {
+            last = queue.committed;
+        }
+        CompletableFuture<CommittedWriterData> current = last.isPresent() ?
+                CompletableFuture.completedFuture(last.get()) :
+                getWriterData(publicWriterKey);
+        List<Mutation> mutations = new ArrayList<>();
+        for (Update update : batch)
+            mutations.addAll(update.mutations);
+
+        CompletableFuture<Boolean> done = new CompletableFuture<>();
+        current.thenCompose(committed -> commit(batch.get(0).writer, committed, mutations, 0))
+                .thenAccept(committed -> {
+                    synchronized (queue) {
+                        queue.committed = Optional.of(committed);
+                    }
+                    for (Update update : batch)
+                        update.result.complete(true);
+                    done.complete(true);
+                }).exceptionally(e -> {
+                    synchronized (queue) {
+                        queue.committed = Optional.empty();
+                    }
+                    if (batch.size() > 1)
+                        // don't fail every update because of one, e.g. a cas failure
+                        Futures.reduceAll(batch, true,
+                                (x, update) -> commitBatch(publicWriterKey, queue, Collections.singletonList(update)),
+                                (a, b) -> b)
+                                .thenAccept(done::complete);
+                    else {
+                        batch.get(0).result.completeExceptionally(e);
+                        done.complete(true);
+                    }
+                    return null;
+                });
+        return done;
+    }
+
+    /** Apply the mutations to the btree of the given writer data and commit it. If someone else has committed in the
+     *  meantime then replay the mutations onto their root and try again, unless they changed one of the same keys.
+     *
+     * @param rebases the number of times we have already replayed these mutations
+     */
+    private CompletableFuture<CommittedWriterData> commit(SigningPrivateKeyAndPublicHash writer,
+                                                          CommittedWriterData base,
+                                                          List<Mutation> mutations,
+                                                          int rebases) {
+        CompletableFuture<CommittedWriterData> res = new CompletableFuture<>();
+        update(writer, base, mutations)
+                .thenAccept(res::complete)
+                .exceptionally(e -> {
+                    if (! isPointerConflict(e) || rebases >= MAX_REBASES) {
+                        res.completeExceptionally(e);
+                        return null;
+                    }
+                    getWriterData(writer.publicKeyHash)
+                            .thenCompose(latest -> findConflict(base, latest, mutations)
+                                    .thenCompose(conflict -> {
+                                        if (conflict.isPresent())
+                                            throw conflict.get();
+                                        return commit(writer, latest, mutations, rebases + 1);
+                                    }))
+                            .thenAccept(res::complete)
+                            .exceptionally(t -> {
+                                res.completeExceptionally(t);
+                                return null;
                             });
+                    return null;
                 });
+        return res;
+    }
+
+    private static boolean isPointerConflict(Throwable e) {
+        return e instanceof MutablePointers.CasException || e.getCause() instanceof MutablePointers.CasException;
+    }
+
+    /**
+     *
+     * @return a cas exception if any of the mutations are to a key which changed between the two roots
+     */
+    private CompletableFuture<Optional<Btree.CasException>> findConflict(CommittedWriterData base,
+                                                                         CommittedWriterData latest,
+                                                                         List<Mutation> mutations) {
+        if (! base.props.btree.isPresent() || ! latest.props.btree.isPresent())
+            // replaying the mutations still checks their existing values
+            return CompletableFuture.completedFuture(Optional.empty());
+        Map<ByteArrayWrapper, Mutation> staged = new HashMap<>();
+        for (Mutation m : mutations)
+            staged.putIfAbsent(new ByteArrayWrapper(m.mapKey), m);
+        List<Btree.CasException> conflicts = new ArrayList<>();
+        return MerkleBTree.diff(base.props.btree.get(), latest.props.btree.get(), dht, change -> {
+            Mutation m = staged.get(change.key);
+            if (m != null)
+                conflicts.add(new Btree.CasException(change.updated, m.existing));
+        }).thenApply(changes -> LOGGING ? log(changes, "BTREE.rebase over " + changes + " changes") : changes)
+                .thenApply(changes -> conflicts.stream().findFirst());
+    }
+
+    private CompletableFuture<CommittedWriterData> update(SigningPrivateKeyAndPublicHash writer,
+                                                          CommittedWriterData committed,
+                                                          List<Mutation> mutations) {
+        PublicKeyHash publicWriterKey = writer.publicKeyHash;
+        WriterData holder = committed.props;
+        MaybeMultihash btreeRootHash = holder.btree.isPresent() ? MaybeMultihash.of(holder.btree.get()) : MaybeMultihash.empty();
+        return MerkleBTree.create(publicWriterKey, btreeRootHash, dht)
+                .thenCompose(btree -> mutations.size() > 1 && hasDistinctKeys(mutations) ?
+                        btree.merge(publicWriterKey, mutations).thenApply(MaybeMultihash::of) :
+                        Futures.reduceAll(mutations, btreeRootHash,
+                                (root, m) -> apply(btree, publicWriterKey, m).thenApply(MaybeMultihash::of),
+                                (a, b) -> b))
+                .thenApply(newRoot -> LOGGING ? log(newRoot, "BTREE.apply " + mutations.size()
+                        + " mutations => CAS(" + btreeRootHash + ", " + newRoot + ")") : newRoot)
+                .thenCompose(newBtreeRoot -> holder.withBtree(newBtreeRoot.get())
+                        .commit(writer, committed.hash, mutable, dht, x -> {}));
+    }
+
+    private static boolean hasDistinctKeys(List<Mutation> mutations) {
+        Set<ByteArrayWrapper> keys = new HashSet<>();
+        for (Mutation m : mutations)
+            if (! keys.add(new ByteArrayWrapper(m.mapKey)))
+                return false;
+        return true;
+    }
+
+    private static CompletableFuture<Multihash> apply(MerkleBTree btree, PublicKeyHash writer, Mutation m) {
+        if (m.value.isPresent())
+            return btree.put(writer, m.mapKey, m.existing, m.value.get());
+        return btree.delete(writer, m.mapKey, m.existing);
     }
 
     @Override
     public CompletableFuture<MaybeMultihash> get(PublicKeyHash writer, byte[] mapKey) {
-        CompletableFuture<CommittedWriterData> lock = new CompletableFuture<>();
-
-        return addToQueue(writer, lock)
+        // reads don't wait for queued writes, they see the last committed root
+        return getWriterData(writer)
                 .thenCompose(committed -> {
-                    lock.complete(committed);
                     WriterData holder = committed.props;
                     MaybeMultihash btreeRootHash = holder.btree.isPresent() ? MaybeMultihash.of(holder.btree.get()) : MaybeMultihash.empty();
                     return MerkleBTree.create(writer, btreeRootHash, dht)
@@ -106,20 +272,18 @@ public class BtreeImpl implements Btree {
     }
 
     @Override
-    public CompletableFuture<Boolean> remove(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing) {
-        PublicKeyHash publicWriter = writer.publicKeyHash;
-        CompletableFuture<CommittedWriterData> future = new CompletableFuture<>();
+    public CompletableFuture<Boolean> prefetch(PublicKeyHash writer) {
+        // only worth it if there is a cache to keep the blocks in for the lookups that follow
+        if (! (dht instanceof CachingStorage))
+            return CompletableFuture.completedFuture(false);
+        return getWriterData(writer)
+                .thenCompose(committed -> committed.props.btree.isPresent() ?
+                        dht.exportDag(committed.props.btree.get(), PREFETCH_DEPTH, PREFETCH_BYTES).thenApply(export -> true) :
+                        CompletableFuture.completedFuture(false));
+    }
 
-        return addToQueue(publicWriter, future)
-                .thenCompose(committed -> {
-                    WriterData holder = committed.props;
-                    MaybeMultihash btreeRootHash = holder.btree.isPresent() ? MaybeMultihash.of(holder.btree.get()) : MaybeMultihash.empty();
-                    return MerkleBTree.create(publicWriter, btreeRootHash, dht)
-                            .thenCompose(btree -> btree.delete(publicWriter, mapKey, existing))
-                            .thenApply(pair -> LOGGING ? log(pair, "BTREE.rm (" + ArrayOps.bytesToHex(mapKey) + "  => " + pair) : pair)
-                            .thenCompose(newBtreeRoot -> holder.withBtree(newBtreeRoot)
-                                    .commit(writer, committed.hash, mutable, dht, future::complete))
-                            .thenApply(x -> true);
-                });
+    @Override
+    public CompletableFuture<Boolean> remove(SigningPrivateKeyAndPublicHash writer, byte[] mapKey, MaybeMultihash existing) {
+        return apply(writer, Collections.singletonList(Mutation.remove(mapKey, existing)));
     }
 }
@@ -9,12 +9,23 @@ import java.util.*;
 import java.util.concurrent.*;
 import java.util.zip.*;
 
+/** Requests are made on the given executor, so with a pool of threads callers get a future back immediately and can
+ *  keep many requests in flight. Connections are never explicitly disconnected, instead each response is read to the
+ *  end and closed, which returns the socket to the JVM's keep-alive cache for the next request to the same host.
+ */
 public class JavaPoster implements HttpPoster {
 
     private final URL dht;
+    private final Executor requests;
 
-    public JavaPoster(URL dht) {
+    public JavaPoster(URL dht, Executor requests) {
         this.dht = dht;
+        this.requests = requests;
+    }
+
+    /** Requests are made synchronously on the calling thread */
+    public JavaPoster(URL dht) {
+        this(dht, Runnable::run);
     }
 
     public URL buildURL(String method) throws IOException {
@@ -25,6 +36,49 @@ public class JavaPoster implements HttpPoster {
         }
     }
 
+    /** Called before a request body is written
+     *
+     * @param length the length of the body, or -1 if it isn't known up front
+     */
+    protected void prepareBody(HttpURLConnection conn, int length) {}
+
+    private interface Request {
+        byte[] call() throws IOException;
+    }
+
+    private CompletableFuture<byte[]> async(Request request) {
+        CompletableFuture<byte[]> res = new CompletableFuture<>();
+        try {
+            requests.execute(() -> {
+                try {
+                    res.complete(request.call());
+                } catch (Throwable t) {
+                    res.completeExceptionally(t);
+                }
+            });
+        } catch (RuntimeException e) {
+            // e.g. the executor is shut down
+            res.completeExceptionally(e);
+        }
+        return res;
+    }
+
+    /** Read the response body, or the error body, to the end so the connection can be reused */
+    private static byte[] readResponse(HttpURLConnection conn, boolean unzip) throws IOException {
+        try {
+            InputStream in = conn.getInputStream();
+            boolean isGzipped = "gzip".equals(conn.getContentEncoding());
+            return Serialize.readFully(isGzipped && unzip ? new GZIPInputStream(in) : in);
+        } catch (IOException e) {
+            InputStream err = conn.getErrorStream();
+            if (err != null)
+                try {
+                    Serialize.readFully(err);
+                } catch (IOException f) {}
+            throw e;
+        }
+    }
+
     @Override
     public CompletableFuture<byte[]> postUnzip(String url, byte[] payload) {
         return post(url, payload, true);
@@ -32,65 +86,37 @@ public class JavaPoster implements HttpPoster {
 
     @Override
     public CompletableFuture<byte[]> post(String url, byte[] payload, boolean unzip) {
-        HttpURLConnection conn = null;
-        CompletableFuture<byte[]> res = new CompletableFuture<>();
-        try
-        {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
+        return async(() -> {
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
             conn.setDoInput(true);
             conn.setDoOutput(true);
-            DataOutputStream dout = new DataOutputStream(conn.getOutputStream());
-
-            dout.write(payload);
-            dout.flush();
-
-            String contentEncoding = conn.getContentEncoding();
-            boolean isGzipped = "gzip".equals(contentEncoding);
-            DataInputStream din = new DataInputStream(isGzipped && unzip ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream());
-            byte[] resp = Serialize.readFully(din);
-            din.close();
-            res.complete(resp);
-        } catch (IOException e) {
-            res.completeExceptionally(e);
-        } finally {
-            if (conn != null)
-                conn.disconnect();
-        }
-        return res;
+            prepareBody(conn, payload.length);
+            try (OutputStream out = conn.getOutputStream()) {
+                out.write(payload);
+            }
+            return readResponse(conn, unzip);
+        });
     }
 
     @Override
     public CompletableFuture<byte[]> postMultipart(String url, List<byte[]> files) {
-        try {
-            Multipart mPost = new Multipart(buildURL(url).toString(), "UTF-8");
+        return async(() -> {
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
+            prepareBody(conn, -1);
+            Multipart mPost = new Multipart(conn, "UTF-8");
             for (byte[] file : files)
                 mPost.addFilePart("file", new NamedStreamable.ByteArrayWrapper(file));
-            return CompletableFuture.completedFuture(mPost.finish().getBytes());
-        } catch (IOException e) {
-            throw new RuntimeException(e);
-        }
+            return mPost.finishBytes();
+        });
     }
 
     @Override
     public CompletableFuture<byte[]> get(String url) {
-        HttpURLConnection conn = null;
-        try
-        {
-            conn = (HttpURLConnection) buildURL(url).openConnection();
+        return async(() -> {
+            HttpURLConnection conn = (HttpURLConnection) buildURL(url).openConnection();
             conn.setDoInput(true);
-
-            String contentEncoding = conn.getContentEncoding();
-            boolean isGzipped = "gzip".equals(contentEncoding);
-            DataInputStream din = new DataInputStream(isGzipped ? new GZIPInputStream(conn.getInputStream()) : conn.getInputStream());
-            return CompletableFuture.completedFuture(Serialize.readFully(din));
-        } catch (IOException e) {
-            CompletableFuture<byte[]> res = new CompletableFuture<>();
-            res.completeExceptionally(e);
-            return res;
-        } finally {
-            if (conn != null)
-                conn.disconnect();
-        }
+            return readResponse(conn, true);
+        });
     }
 
     @Override
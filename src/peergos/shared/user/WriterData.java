@@ -157,7 +157,7 @@ public class WriterData implements Cborable {
                     return mutable.setPointer(signer.publicKeyHash, signer.publicKeyHash, signed)
                             .thenApply(res -> {
                                 if (!res)
-                                    throw new IllegalStateException("Corenode Crypto CAS failed!");
+                                    throw new MutablePointers.CasException("Corenode Crypto CAS failed!");
                                 CommittedWriterData committed = committed(newHash);
                                 updater.accept(committed);
                                 return committed;
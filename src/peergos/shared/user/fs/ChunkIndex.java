@@ -0,0 +1,122 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.cbor.*;
+import peergos.shared.crypto.*;
+import peergos.shared.crypto.hash.*;
+import peergos.shared.crypto.symmetric.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** The locations of the chunks of a large file, in order. The first chunk's retriever holds this, encrypted with the
+ *  file's data key, so that a reader can go straight to any chunk rather than following the links from the start.
+ *
+ * The index is read with every listing of the file's directory, so it has at most MAX_ENTRIES entries. For a file with
+ * more chunks than that it only holds every stride'th chunk, and a reader follows the links from the closest indexed
+ * chunk before the one it wants.
+ *
+ * Every chunk of a file is written under the same owner and writer, though a copy of the file can have its first chunk
+ * elsewhere. A file which has been extended since the index was written has chunks beyond the end of the index, these
+ * are found by following the links from the last indexed chunk.
+ */
+public class ChunkIndex implements Cborable {
+    // smaller files don't get an index
+    public static final int MIN_CHUNKS = 4;
+    // about 8 KiB of map keys, enough to index every chunk of a file up to 1.25 GiB
+    public static final int MAX_ENTRIES = 256;
+
+    private final PublicKeyHash owner, writer;
+    private final int stride;
+    // the map keys of chunks 0, stride, 2 * stride...
+    private final List<byte[]> mapKeys;
+
+    public ChunkIndex(PublicKeyHash owner, PublicKeyHash writer, int stride, List<byte[]> mapKeys) {
+        if (stride < 1)
+            throw new IllegalArgumentException("Invalid chunk index stride: " + stride);
+        this.owner = owner;
+        this.writer = writer;
+        this.stride = stride;
+        this.mapKeys = mapKeys;
+    }
+
+    /**
+     *
+     * @param chunkMapKeys the map keys of every chunk of the file, in order
+     * @return an index of at most maxEntries of the chunks, evenly spaced and starting with the first
+     */
+    public static ChunkIndex build(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> chunkMapKeys, int maxEntries) {
+        int stride = Math.max(1, (chunkMapKeys.size() + maxEntries - 1) / maxEntries);
+        List<byte[]> entries = new ArrayList<>();
+        for (int i=0; i < chunkMapKeys.size(); i += stride)
+            entries.add(chunkMapKeys.get(i));
+        return new ChunkIndex(owner, writer, stride, entries);
+    }
+
+    public static ChunkIndex build(PublicKeyHash owner, PublicKeyHash writer, List<byte[]> chunkMapKeys) {
+        return build(owner, writer, chunkMapKeys, MAX_ENTRIES);
+    }
+
+    /**
+     *
+     * @return the last chunk in the index
+     */
+    public long lastChunk() {
+        return (long) (mapKeys.size() - 1) * stride;
+    }
+
+    /**
+     *
+     * @param chunk
+     * @return the closest chunk at or before the given one which is in the index
+     */
+    public long floor(long chunk) {
+        if (chunk <= 0)
+            return 0;
+        return Math.min(chunk / stride, mapKeys.size() - 1) * stride;
+    }
+
+    /**
+     *
+     * @param chunk
+     * @return the location of the given chunk, if it is in the index
+     */
+    public Optional<Location> getLocation(long chunk) {
+        if (chunk < 0 || chunk % stride != 0 || chunk / stride >= mapKeys.size())
+            return Optional.empty();
+        return Optional.of(new Location(owner, writer, mapKeys.get((int) (chunk / stride))));
+    }
+
+    public CipherText encrypt(SymmetricKey dataKey) {
+        byte[] nonce = dataKey.createNonce();
+        return new CipherText(nonce, dataKey.encrypt(serialize(), nonce));
+    }
+
+    public static ChunkIndex decrypt(CipherText cipherText, SymmetricKey dataKey) {
+        return cipherText.decrypt(dataKey, raw -> fromCbor(CborObject.fromByteArray(raw)));
+    }
+
+    @Override
+    public CborObject toCbor() {
+        return new CborObject.CborList(Arrays.asList(
+                owner.toCbor(),
+                writer.toCbor(),
+                new CborObject.CborLong(stride),
+                new CborObject.CborList(mapKeys.stream()
+                        .map(CborObject.CborByteArray::new)
+                        .collect(Collectors.toList()))
+        ));
+    }
+
+    public static ChunkIndex fromCbor(CborObject cbor) {
+        if (! (cbor instanceof CborObject.CborList))
+            throw new IllegalStateException("Incorrect cbor for ChunkIndex: " + cbor);
+        List<CborObject> values = ((CborObject.CborList) cbor).value;
+        return new ChunkIndex(
+                PublicKeyHash.fromCbor(values.get(0)),
+                PublicKeyHash.fromCbor(values.get(1)),
+                (int) ((CborObject.CborLong) values.get(2)).value,
+                ((CborObject.CborList) values.get(3)).value.stream()
+                        .map(c -> ((CborObject.CborByteArray) c).value)
+                        .collect(Collectors.toList()));
+    }
+}
@@ -19,17 +19,29 @@ public class EncryptedChunkRetriever implements FileRetriever {
     private final List<Multihash> fragmentHashes;
     private final Optional<CipherText> nextChunk;
     private final Fragmenter fragmenter;
+    // only present in the first chunk of a large file
+    private final Optional<CipherText> chunkIndex;
 
     public EncryptedChunkRetriever(byte[] chunkNonce,
                                    byte[] chunkAuth,
                                    List<Multihash> fragmentHashes,
                                    Optional<CipherText> nextChunk,
-                                   Fragmenter fragmenter) {
+                                   Fragmenter fragmenter,
+                                   Optional<CipherText> chunkIndex) {
         this.chunkNonce = chunkNonce;
         this.chunkAuth = chunkAuth;
         this.fragmentHashes = fragmentHashes;
         this.nextChunk = nextChunk;
         this.fragmenter = fragmenter;
+        this.chunkIndex = chunkIndex;
+    }
+
+    public EncryptedChunkRetriever(byte[] chunkNonce,
+                                   byte[] chunkAuth,
+                                   List<Multihash> fragmentHashes,
+                                   Optional<CipherText> nextChunk,
+                                   Fragmenter fragmenter) {
+        this(chunkNonce, chunkAuth, fragmentHashes, nextChunk, fragmenter, Optional.empty());
     }
 
     @Override
@@ -46,7 +58,8 @@ public class EncryptedChunkRetriever implements FileRetriever {
                     return new LazyInputStreamCombiner(0,
                             chunk.get().chunk.data(), nextChunkPointer,
                             chunk.get().chunk.data(), nextChunkPointer,
-                            network, random, dataKey, fileSize, monitor);
+                            network, random, dataKey, fileSize, monitor,
+                            LazyInputStreamCombiner.DEFAULT_READ_AHEAD_BYTES, getChunkIndex(dataKey));
                 });
     }
 
@@ -59,9 +72,9 @@ public class EncryptedChunkRetriever implements FileRetriever {
                                                                                 NetworkAccess network,
                                                                                 ProgressConsumer<Long> monitor) {
         if (bytesRemainingUntilStart < Chunk.MAX_SIZE) {
-            return network.downloadFragments(fragmentHashes, monitor, fragmenter.storageIncreaseFactor()).thenCompose(fragments -> {
-                fragments = reorder(fragments, fragmentHashes);
-                byte[][] collect = fragments.stream().map(f -> f.fragment.data).toArray(byte[][]::new);
+            int required = fragmenter.requiredFragments(fragmentHashes.size());
+            return network.downloadFragments(fragmentHashes, required, monitor, fragmenter.storageIncreaseFactor()).thenCompose(fragments -> {
+                byte[][] collect = fragments.stream().map(f -> f.map(x -> x.fragment.data).orElse(null)).toArray(byte[][]::new);
                 byte[] cipherText = fragmenter.recombine(collect, Chunk.MAX_SIZE);
                 EncryptedChunk fullEncryptedChunk = new EncryptedChunk(ArrayOps.concat(chunkAuth, cipherText));
                 if (truncateTo < Chunk.MAX_SIZE)
@@ -70,6 +83,23 @@ public class EncryptedChunkRetriever implements FileRetriever {
                 return CompletableFuture.completedFuture(Optional.of(result));
             });
         }
+        Optional<ChunkIndex> index = getChunkIndex(dataKey);
+        long indexedChunk = index.map(i -> i.floor(bytesRemainingUntilStart / Chunk.MAX_SIZE)).orElse(0L);
+        if (indexedChunk > 0) {
+            // go straight to the closest chunk at or before the start
+            Location indexed = index.get().getLocation(indexedChunk).get();
+            long skipped = indexedChunk * Chunk.MAX_SIZE;
+            return network.getMetadata(indexed).thenCompose(meta -> {
+                if (!meta.isPresent())
+                    return CompletableFuture.completedFuture(Optional.empty());
+
+                FileAccess access = (FileAccess) meta.get();
+                FileRetriever retriever = access.retriever();
+                return retriever.getEncryptedChunk(bytesRemainingUntilStart - skipped,
+                        truncateTo - skipped, retriever.getNonce(), dataKey,
+                        indexed, access.committedHash(), network, monitor);
+            });
+        }
         Optional<Location> next = getNext(dataKey);
         if (! next.isPresent())
             return CompletableFuture.completedFuture(Optional.empty());
@@ -88,6 +118,20 @@ public class EncryptedChunkRetriever implements FileRetriever {
     public CompletableFuture<Optional<Location>> getLocationAt(Location startLocation, long offset, SymmetricKey dataKey, NetworkAccess network) {
         if (offset < Chunk.MAX_SIZE)
             return CompletableFuture.completedFuture(Optional.of(startLocation));
+        Optional<ChunkIndex> index = getChunkIndex(dataKey);
+        if (index.isPresent() && index.get().lastChunk() > 0) {
+            long chunk = offset / Chunk.MAX_SIZE;
+            long indexed = index.get().floor(chunk);
+            Location indexedLocation = index.get().getLocation(indexed).get();
+            if (indexed == chunk)
+                return CompletableFuture.completedFuture(Optional.of(indexedLocation));
+            // the chunk is between two indexed chunks, or the file has been extended past the end of the index
+            return network.getMetadata(indexedLocation)
+                    .thenCompose(meta -> meta.isPresent() ?
+                            ((FileAccess)meta.get()).retriever().getLocationAt(indexedLocation, offset - indexed * Chunk.MAX_SIZE, dataKey, network) :
+                            CompletableFuture.completedFuture(Optional.empty())
+                    );
+        }
         Optional<Location> next = getNext(dataKey);
         if (! next.isPresent())
             return CompletableFuture.completedFuture(Optional.empty());
@@ -104,10 +148,22 @@ public class EncryptedChunkRetriever implements FileRetriever {
         return this.nextChunk.map(c -> c.decrypt(dataKey, raw -> Location.fromByteArray(raw)));
     }
 
+    public Optional<ChunkIndex> getChunkIndex(SymmetricKey dataKey) {
+        return this.chunkIndex.map(c -> ChunkIndex.decrypt(c, dataKey));
+    }
+
     public byte[] getNonce() {
         return chunkNonce;
     }
 
+    public List<Multihash> getFragmentHashes() {
+        return fragmentHashes;
+    }
+
+    public Fragmenter getFragmenter() {
+        return fragmenter;
+    }
+
     public CompletableFuture<Optional<LocatedChunk>> getChunkInputStream(NetworkAccess network,
                                                                          SafeRandom random,
                                                                          SymmetricKey dataKey,
@@ -144,7 +200,7 @@ public class EncryptedChunkRetriever implements FileRetriever {
 
     @Override
     public CborObject toCbor() {
-        return new CborObject.CborList(Arrays.asList(
+        List<CborObject> fields = new ArrayList<>(Arrays.asList(
                 new CborObject.CborByteArray(chunkNonce),
                 new CborObject.CborByteArray(chunkAuth),
                 new CborObject.CborList(fragmentHashes
@@ -154,6 +210,9 @@ public class EncryptedChunkRetriever implements FileRetriever {
                 ! nextChunk.isPresent() ? new CborObject.CborNull() : nextChunk.get().toCbor(),
                 fragmenter.toCbor()
         ));
+        // retrievers without an index keep their original serialization
+        chunkIndex.ifPresent(index -> fields.add(index.toCbor()));
+        return new CborObject.CborList(fields);
     }
 
     public static EncryptedChunkRetriever fromCbor(CborObject cbor) {
@@ -169,17 +228,8 @@ public class EncryptedChunkRetriever implements FileRetriever {
                 .collect(Collectors.toList());
         Optional<CipherText> nextChunk = value.get(3) instanceof CborObject.CborNull ? Optional.empty() : Optional.of(CipherText.fromCbor(value.get(3)));
         Fragmenter fragmenter = Fragmenter.fromCbor(value.get(4));
-        return new EncryptedChunkRetriever(chunkNonce, chunkAuth, fragmentHashes, nextChunk, fragmenter);
-    }
-
-    private static List<FragmentWithHash> reorder(List<FragmentWithHash> fragments, List<Multihash> hashes) {
-        FragmentWithHash[] res = new FragmentWithHash[fragments.size()];
-        for (FragmentWithHash f: fragments) {
-            for (int index = 0; index < res.length; index++)
-                if (hashes.get(index).equals(f.hash))
-                    res[index] = f;
-        }
-        return Arrays.asList(res);
+        Optional<CipherText> chunkIndex = value.size() > 5 ? Optional.of(CipherText.fromCbor(value.get(5))) : Optional.empty();
+        return new EncryptedChunkRetriever(chunkNonce, chunkAuth, fragmentHashes, nextChunk, fragmenter, chunkIndex);
     }
 
     private static List<byte[]> split(byte[] arr, int size) {
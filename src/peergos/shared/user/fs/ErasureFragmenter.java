@@ -27,11 +27,26 @@ public class ErasureFragmenter implements Fragmenter {
         return Erasure.split(input, nOriginalFragments, nAllowedFailures);
     }
 
+    @Override
+    public int requiredFragments(int nFragments) {
+        // any of the fragments will do
+        return Math.min(nFragments, nOriginalFragments);
+    }
+
     public byte[] recombine(byte[][] encoded, int truncateLength) {
         // truncateTo should be  input.length
         return Erasure.recombine(encoded, truncateLength, nOriginalFragments, nAllowedFailures);
     }
 
+    @Override
+    public byte[][] repair(byte[][] fragments) {
+        if (Stream.of(fragments).allMatch(f -> f != null))
+            return fragments;
+        // the fragments encode the input padded to whole codewords, and encoding that padded input gives them back
+        int fragmentSize = Stream.of(fragments).filter(f -> f != null).findFirst().get().length;
+        return split(recombine(fragments, fragmentSize * nOriginalFragments));
+    }
+
     @Override
     public CborObject toCbor() {
         Map<String, CborObject> res = new HashMap<>();
@@ -15,6 +15,13 @@ public interface FileRetriever extends Cborable {
 
     Optional<Location> getNext(SymmetricKey dataKey);
 
+    /**
+     *
+     * @param dataKey
+     * @return the locations of the file's chunks, if this is the first chunk of a large file
+     */
+    Optional<ChunkIndex> getChunkIndex(SymmetricKey dataKey);
+
     byte[] getNonce();
 
     CompletableFuture<AsyncReader> getFile(NetworkAccess network,
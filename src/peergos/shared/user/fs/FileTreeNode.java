@@ -27,6 +27,8 @@ import java.util.stream.*;
 public class FileTreeNode {
 
     final static int THUMBNAIL_SIZE = 100;
+    // the last pending child addition to each directory from this client
+    private static final Map<Location, CompletableFuture<FileTreeNode>> pendingChildAdds = new HashMap<>();
 
     private final NativeJSThumbnail thumbnail;
     private final RetrievedFilePointer pointer;
@@ -508,7 +510,7 @@ public class FileTreeNode {
                                         return chunks.upload(network, random, parentLocation.owner, getSigner(), nextChunkLocation)
                                                 .thenCompose(fileLocation -> {
                                                     FilePointer filePointer = new FilePointer(fileLocation, Optional.empty(), fileKey);
-                                                    return addChildPointer(filename, filePointer, network, random, 2);
+                                                    return queueChildPointer(filename, filePointer, network, random, 2);
                                                 });
                                     }))
                             )
@@ -516,6 +518,44 @@ public class FileTreeNode {
         });
     }
 
+    /** Concurrent additions to the same directory from this client are made one at a time, after the previous one has
+     *  committed. Otherwise they all start from the same version of the directory, and each round of retries only
+     *  lets one of them through.
+     */
+    private CompletableFuture<FileTreeNode> queueChildPointer(String filename,
+                                                              FilePointer childPointer,
+                                                              NetworkAccess network,
+                                                              SafeRandom random,
+                                                              int retries) {
+        Location dir = getLocation();
+        CompletableFuture<FileTreeNode> result = new CompletableFuture<>();
+        CompletableFuture<FileTreeNode> previous;
+        synchronized (pendingChildAdds) {
+            previous = pendingChildAdds.get(dir);
+            pendingChildAdds.put(dir, result);
+        }
+        CompletableFuture<Boolean> ourTurn = previous == null ?
+                CompletableFuture.completedFuture(true) :
+                previous.thenApply(x -> true).exceptionally(e -> true);
+        ourTurn.thenCompose(x -> addChildPointer(filename, childPointer, network, random, retries))
+                .thenAccept(updated -> {
+                    dequeueChildPointer(dir, result);
+                    result.complete(updated);
+                }).exceptionally(e -> {
+                    dequeueChildPointer(dir, result);
+                    result.completeExceptionally(e);
+                    return null;
+                });
+        return result;
+    }
+
+    private static void dequeueChildPointer(Location dir, CompletableFuture<FileTreeNode> done) {
+        synchronized (pendingChildAdds) {
+            if (pendingChildAdds.get(dir) == done)
+                pendingChildAdds.remove(dir);
+        }
+    }
+
     private CompletableFuture<FileTreeNode> addChildPointer(String filename,
                                                             FilePointer childPointer,
                                                             NetworkAccess network,
@@ -666,10 +706,14 @@ public class FileTreeNode {
                                         endIndex > currentSize ? endIndex : currentSize,
                                         LocalDateTime.now(), childProps.isHidden, childProps.thumbnail);
 
+                                // keep the index when rewriting the first chunk
+                                Optional<ChunkIndex> chunks = startIndex < Chunk.MAX_SIZE ?
+                                        retriever.getChunkIndex(dataKey) :
+                                        Optional.empty();
                                 CompletableFuture<Multihash> chunkUploaded = FileUploader.uploadChunk(getSigner(),
                                         newProps, getLocation(), us.getParentKey(), baseKey, located,
                                         fragmenter,
-                                        nextChunkLocation, network, monitor);
+                                        nextChunkLocation, network, monitor, Optional.empty(), chunks);
 
                                 return chunkUploaded.thenCompose(isUploaded -> {
                                     //update indices to be relative to next chunk
@@ -8,6 +8,7 @@ import peergos.shared.crypto.random.*;
 import peergos.shared.crypto.symmetric.*;
 import peergos.shared.io.ipfs.multihash.*;
 import peergos.shared.merklebtree.*;
+import peergos.shared.user.*;
 import peergos.shared.util.*;
 
 import java.io.*;
@@ -17,6 +18,8 @@ import java.util.concurrent.*;
 import java.util.stream.*;
 
 public class FileUploader implements AutoCloseable {
+    private static final int MAX_CHUNKS_PER_COMMIT = 64;
+    public static final int DEFAULT_CHUNKS_IN_FLIGHT = 4;
 
     private final String name;
     private final long offset, length;
@@ -74,7 +77,30 @@ public class FileUploader implements AutoCloseable {
                                                    long chunkIndex,
                                                    Location currentLocation,
                                                    MaybeMultihash ourExistingHash,
-                                                   ProgressConsumer<Long> monitor) {
+                                                   ProgressConsumer<Long> monitor,
+                                                   Btree.Transaction transaction) {
+        Location nextLocation = new Location(owner, writer.publicKeyHash, random.randomBytes(32));
+        return startChunk(network, random, owner, writer, chunkIndex, currentLocation, nextLocation, Optional.empty(),
+                ourExistingHash, monitor, transaction)
+                .thenCompose(started -> started.right.thenApply(x -> started.left));
+    }
+
+    /** Read the chunk and start encrypting and uploading it
+     *
+     * @param chunks the index to store in this chunk, only for the first chunk
+     * @return the location of the next chunk, as soon as this chunk has been read, and a future for its upload
+     */
+    private CompletableFuture<Pair<Location, CompletableFuture<Boolean>>> startChunk(NetworkAccess network,
+                                                                                    SafeRandom random,
+                                                                                    PublicKeyHash owner,
+                                                                                    SigningPrivateKeyAndPublicHash writer,
+                                                                                    long chunkIndex,
+                                                                                    Location currentLocation,
+                                                                                    Location nextLocation,
+                                                                                    Optional<ChunkIndex> chunks,
+                                                                                    MaybeMultihash ourExistingHash,
+                                                                                    ProgressConsumer<Long> monitor,
+                                                                                    Btree.Transaction transaction) {
 	    System.out.println("uploading chunk: "+chunkIndex + " of "+name);
 
         long position = chunkIndex * Chunk.MAX_SIZE;
@@ -83,14 +109,16 @@ public class FileUploader implements AutoCloseable {
         boolean isLastChunk = fileLength < position + Chunk.MAX_SIZE;
         int length =  isLastChunk ? (int)(fileLength -  position) : Chunk.MAX_SIZE;
         byte[] data = new byte[length];
-        return reader.readIntoArray(data, 0, data.length).thenCompose(b -> {
+        return reader.readIntoArray(data, 0, data.length).thenApply(b -> {
             byte[] nonce = random.randomBytes(TweetNaCl.SECRETBOX_NONCE_BYTES);
             Chunk chunk = new Chunk(data, metaKey, currentLocation.getMapKey(), nonce);
             LocatedChunk locatedChunk = new LocatedChunk(new Location(owner, writer.publicKeyHash, chunk.mapKey()), ourExistingHash, chunk);
-            byte[] mapKey = random.randomBytes(32);
-            Location nextLocation = new Location(owner, writer.publicKeyHash, mapKey);
-            return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
-                    fragmenter, nextLocation, network, monitor).thenApply(c -> nextLocation);
+            CompletableFuture<Boolean> uploaded = uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, locatedChunk,
+                    fragmenter, nextLocation, network, monitor, Optional.of(transaction), chunks)
+                    .thenCompose(c -> transaction.size() >= MAX_CHUNKS_PER_COMMIT ?
+                            transaction.commit() :
+                            CompletableFuture.completedFuture(true));
+            return new Pair<>(nextLocation, uploaded);
         });
     }
 
@@ -99,12 +127,60 @@ public class FileUploader implements AutoCloseable {
                                               PublicKeyHash owner,
                                               SigningPrivateKeyAndPublicHash writer,
                                               Location currentChunk) {
+        return upload(network, random, owner, writer, currentChunk, DEFAULT_CHUNKS_IN_FLIGHT);
+    }
+
+    /** The chunks are read in order, but encrypted, erasure coded and uploaded concurrently
+     *
+     * @param maxChunksInFlight the most chunks which can be read but not yet uploaded, this bounds the memory used
+     */
+    public CompletableFuture<Location> upload(NetworkAccess network,
+                                              SafeRandom random,
+                                              PublicKeyHash owner,
+                                              SigningPrivateKeyAndPublicHash writer,
+                                              Location currentChunk,
+                                              int maxChunksInFlight) {
+        if (maxChunksInFlight < 1)
+            throw new IllegalArgumentException("Must allow at least one chunk in flight!");
         long t1 = System.currentTimeMillis();
         Location originalChunk = currentChunk;
 
         List<Integer> input = IntStream.range(0, (int) nchunks).mapToObj(i -> Integer.valueOf(i)).collect(Collectors.toList());
-        return Futures.reduceAll(input, currentChunk, (loc, i) -> uploadChunk(network, random, owner, writer, i,
-                loc, MaybeMultihash.empty(), monitor), (a, b) -> b)
+        // choose every chunk's location up front so the first chunk can hold an index of them
+        List<byte[]> mapKeys = new ArrayList<>();
+        mapKeys.add(currentChunk.getMapKey());
+        for (int i=0; i < nchunks; i++)
+            mapKeys.add(random.randomBytes(32));
+        Optional<ChunkIndex> chunks = nchunks >= ChunkIndex.MIN_CHUNKS ?
+                Optional.of(ChunkIndex.build(owner, writer.publicKeyHash, mapKeys.subList(0, (int) nchunks))) :
+                Optional.empty();
+        // the chunks' metadata is committed to the btree in batches, rather than one signed commit per chunk
+        Btree.Transaction transaction = network.btree.transaction(writer);
+        LinkedList<CompletableFuture<Boolean>> inFlight = new LinkedList<>();
+        // this only ever completes exceptionally, with the first chunk to fail, after which we stop reading chunks
+        CompletableFuture<Location> failed = new CompletableFuture<>();
+        return Futures.reduceAll(input, currentChunk, (loc, i) -> failed.isDone() ? failed : startChunk(network, random, owner, writer, i,
+                loc, new Location(owner, writer.publicKeyHash, mapKeys.get(i + 1)), i == 0 ? chunks : Optional.empty(),
+                MaybeMultihash.empty(), monitor, transaction)
+                .thenCompose(started -> {
+                    started.right.exceptionally(e -> {
+                        failed.completeExceptionally(e);
+                        return false;
+                    });
+                    inFlight.add(started.right);
+                    if (inFlight.size() < maxChunksInFlight)
+                        return CompletableFuture.completedFuture(started.left);
+                    // wait for the oldest chunk before reading another, or until any chunk fails
+                    CompletableFuture<Location> window = new CompletableFuture<>();
+                    inFlight.removeFirst().thenAccept(x -> window.complete(started.left));
+                    failed.exceptionally(e -> {
+                        window.completeExceptionally(e);
+                        return null;
+                    });
+                    return window;
+                }), (a, b) -> b)
+                .thenCompose(loc -> Futures.combineAll(inFlight))
+                .thenCompose(loc -> transaction.commit())
                 .thenApply(loc -> {
                     System.out.println("File encryption, erasure coding and upload took: " +(System.currentTimeMillis()-t1) + " mS");
                     return originalChunk;
@@ -114,6 +190,31 @@ public class FileUploader implements AutoCloseable {
     public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer, FileProperties props, Location parentLocation, SymmetricKey parentparentKey,
                                                            SymmetricKey baseKey, LocatedChunk chunk, Fragmenter fragmenter, Location nextChunkLocation,
                                                            NetworkAccess network, ProgressConsumer<Long> monitor) {
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, chunk, fragmenter, nextChunkLocation,
+                network, monitor, Optional.empty());
+    }
+
+    /**
+     *
+     * @param transaction if present the chunk's metadata is staged in it, otherwise it is committed immediately
+     */
+    public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer, FileProperties props, Location parentLocation, SymmetricKey parentparentKey,
+                                                           SymmetricKey baseKey, LocatedChunk chunk, Fragmenter fragmenter, Location nextChunkLocation,
+                                                           NetworkAccess network, ProgressConsumer<Long> monitor,
+                                                           Optional<Btree.Transaction> transaction) {
+        return uploadChunk(writer, props, parentLocation, parentparentKey, baseKey, chunk, fragmenter, nextChunkLocation,
+                network, monitor, transaction, Optional.empty());
+    }
+
+    /**
+     *
+     * @param chunks an index of the file's chunks, to store in the first chunk
+     */
+    public static CompletableFuture<Multihash> uploadChunk(SigningPrivateKeyAndPublicHash writer, FileProperties props, Location parentLocation, SymmetricKey parentparentKey,
+                                                           SymmetricKey baseKey, LocatedChunk chunk, Fragmenter fragmenter, Location nextChunkLocation,
+                                                           NetworkAccess network, ProgressConsumer<Long> monitor,
+                                                           Optional<Btree.Transaction> transaction,
+                                                           Optional<ChunkIndex> chunks) {
         return chunk.chunk.encrypt().thenCompose(encryptedChunk -> {
             List<Fragment> fragments = encryptedChunk.generateFragments(fragmenter);
             System.out.println(StringUtils.format("Uploading chunk with %d fragments\n", fragments.size()));
@@ -121,14 +222,17 @@ public class FileUploader implements AutoCloseable {
             byte[] nextLocationNonce = chunkKey.createNonce();
             byte[] nextLocation = nextChunkLocation.encrypt(chunkKey, nextLocationNonce);
             CipherText encryptedNextChunkLocation = new CipherText(nextLocationNonce, nextLocation);
+            Optional<CipherText> encryptedIndex = chunks.map(index -> index.encrypt(chunkKey));
             return network.uploadFragments(fragments, chunk.location.owner, monitor, fragmenter.storageIncreaseFactor())
                     .thenCompose(hashes -> {
                         FileRetriever retriever = new EncryptedChunkRetriever(chunk.chunk.nonce(), encryptedChunk.getAuth(),
-                                hashes, Optional.of(encryptedNextChunkLocation), fragmenter);
+                                hashes, Optional.of(encryptedNextChunkLocation), fragmenter, encryptedIndex);
                         FileAccess metaBlob = FileAccess.create(chunk.existingHash, baseKey, SymmetricKey.random(),
                                 chunkKey, props, retriever, parentLocation, parentparentKey);
-                        return network.uploadChunk(metaBlob, new Location(chunk.location.owner,
-                                writer.publicKeyHash, chunk.chunk.mapKey()), writer);
+                        Location location = new Location(chunk.location.owner, writer.publicKeyHash, chunk.chunk.mapKey());
+                        return transaction.isPresent() ?
+                                network.uploadChunk(metaBlob, location, transaction.get()) :
+                                network.uploadChunk(metaBlob, location, writer);
                     });
         });
     }
@@ -16,8 +16,35 @@ public interface Fragmenter extends Cborable {
 
     byte[][] split(byte[] input);
 
+    /**
+     *
+     * @param encoded the fragments in order, any that are missing are null
+     * @param inputLength
+     * @return
+     */
     byte[] recombine(byte[][] encoded, int inputLength);
 
+    /**
+     *
+     * @param nFragments the number of fragments a chunk was split into
+     * @return the number of them that are needed to recombine it
+     */
+    default int requiredFragments(int nFragments) {
+        return nFragments;
+    }
+
+    /** Rebuild lost fragments from the surviving ones
+     *
+     * @param fragments the fragments in order, any that are lost are null
+     * @return all the fragments
+     */
+    default byte[][] repair(byte[][] fragments) {
+        for (byte[] fragment : fragments)
+            if (fragment == null)
+                throw new IllegalStateException("Can't rebuild a lost fragment without any redundancy!");
+        return fragments;
+    }
+
     static Fragmenter fromCbor(CborObject cbor) {
         if (! (cbor instanceof CborObject.CborMap))
             throw new IllegalStateException("Incorrect cbor for Fragmenter: " + cbor);
@@ -30,12 +57,17 @@ public interface Fragmenter extends Cborable {
             return new SplitFragmenter();
         int originalFragments = (int)((CborObject.CborLong) values.get(new CborObject.CborString("o"))).value;
         int allowedFailures = (int)((CborObject.CborLong) values.get(new CborObject.CborString("a"))).value;
+        if (type == Type.LOCALLY_REPAIRABLE) {
+            int groupSize = (int)((CborObject.CborLong) values.get(new CborObject.CborString("g"))).value;
+            return new LocallyRepairableFragmenter(originalFragments, allowedFailures, groupSize);
+        }
         return new ErasureFragmenter(originalFragments, allowedFailures);
     }
 
     enum Type  {
         SIMPLE(0),
-        ERASURE_CODING(1);
+        ERASURE_CODING(1),
+        LOCALLY_REPAIRABLE(2);
 
         public final int val;
 
@@ -8,14 +8,33 @@ import peergos.shared.user.fs.cryptree.*;
 import peergos.shared.util.*;
 
 import java.io.*;
+import java.util.*;
 import java.util.concurrent.*;
 
 public class LazyInputStreamCombiner implements AsyncReader {
+    public static final int DEFAULT_READ_AHEAD_BYTES = 4 * Chunk.MAX_SIZE;
+
+    /** A chunk that has been requested, but not necessarily received */
+    private static class ChunkFetch {
+        public final long globalIndex;
+        // completes once we have the chunk's metadata, null if there is no chunk after it
+        public final CompletableFuture<Location> next;
+        public final CompletableFuture<byte[]> data;
+
+        public ChunkFetch(long globalIndex, CompletableFuture<Location> next, CompletableFuture<byte[]> data) {
+            this.globalIndex = globalIndex;
+            this.next = next;
+            this.data = data;
+        }
+    }
+
     private final NetworkAccess network;
     private final SafeRandom random;
     private final SymmetricKey dataKey;
     private final ProgressConsumer<Long> monitor;
     private final long totalLength;
+    private final int readAheadChunks;
+    private final Optional<ChunkIndex> chunkIndex;
 
     private final byte[] originalChunk;
     private final Location originalNextPointer;
@@ -26,6 +45,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
     private long globalIndex; // index of beginning of current chunk in file
     private int index; // index within current chunk
 
+    // the chunks after the current one, in order, which we have started fetching
+    private final LinkedList<ChunkFetch> readAhead = new LinkedList<>();
+    // incremented whenever the read ahead is discarded, so that fetches in progress don't extend it
+    private int readAheadGeneration = 0;
+    // the last read ahead fetch, once we are waiting for its next location, so we only wait on it once
+    private ChunkFetch extending = null;
+    // set once a read reaches the end of a chunk, small one off reads like headers and thumbnails don't read ahead
+    private boolean sequential = false;
+
     public LazyInputStreamCombiner(long globalIndex,
                                    byte[] chunk,
                                    Location nextChunkPointer,
@@ -36,6 +64,27 @@ public class LazyInputStreamCombiner implements AsyncReader {
                                    SymmetricKey dataKey,
                                    long totalLength,
                                    ProgressConsumer<Long> monitor) {
+        this(globalIndex, chunk, nextChunkPointer, originalChunk, originalNextChunkPointer, network, random, dataKey,
+                totalLength, monitor, DEFAULT_READ_AHEAD_BYTES, Optional.empty());
+    }
+
+    /**
+     *
+     * @param maxReadAheadBytes the most memory to use for chunks fetched before they are read
+     * @param chunkIndex the locations of the file's chunks, if it has an index, used to seek without following links
+     */
+    public LazyInputStreamCombiner(long globalIndex,
+                                   byte[] chunk,
+                                   Location nextChunkPointer,
+                                   byte[] originalChunk,
+                                   Location originalNextChunkPointer,
+                                   NetworkAccess network,
+                                   SafeRandom random,
+                                   SymmetricKey dataKey,
+                                   long totalLength,
+                                   ProgressConsumer<Long> monitor,
+                                   int maxReadAheadBytes,
+                                   Optional<ChunkIndex> chunkIndex) {
         if (chunk == null)
             throw new IllegalStateException("Null initial chunk!");
         this.network = network;
@@ -43,6 +92,8 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.dataKey = dataKey;
         this.monitor = monitor;
         this.totalLength = totalLength;
+        this.readAheadChunks = Math.max(0, maxReadAheadBytes / Chunk.MAX_SIZE);
+        this.chunkIndex = chunkIndex;
         this.originalChunk = originalChunk;
         this.originalNextPointer = originalNextChunkPointer;
         this.currentChunk = chunk;
@@ -51,31 +102,84 @@ public class LazyInputStreamCombiner implements AsyncReader {
         this.index = 0;
     }
 
-    public CompletableFuture<Boolean> getNextStream(int len) {
-        if (this.nextChunkPointer != null) {
-            Location nextLocation = this.nextChunkPointer;
-            return network.getMetadata(nextLocation).thenCompose(meta -> {
-                if (!meta.isPresent()) {
+    private ChunkFetch fetch(Location location, long chunkGlobalIndex) {
+        int len = (int) Math.min(Chunk.MAX_SIZE, totalLength - chunkGlobalIndex);
+        CompletableFuture<FileAccess> meta = network.getMetadata(location).thenCompose(opt -> {
+            if (! opt.isPresent()) {
+                CompletableFuture<FileAccess> err = new CompletableFuture<>();
+                err.completeExceptionally(new EOFException());
+                return err;
+            }
+            CryptreeNode access = opt.get();
+            if (! (access instanceof FileAccess))
+                throw new IllegalStateException("File linked to a directory for its next chunk!");
+            return CompletableFuture.completedFuture((FileAccess) access);
+        });
+        CompletableFuture<Location> next = meta.thenApply(access -> access.retriever().getNext(dataKey).orElse(null));
+        CompletableFuture<byte[]> data = meta.thenCompose(access -> access.retriever()
+                .getChunkInputStream(network, random, dataKey, 0, len, location, access.committedHash(), monitor))
+                .thenApply(x -> x.get().chunk.data());
+        return new ChunkFetch(chunkGlobalIndex, next, data);
+    }
+
+    /** Start fetching the chunks after the current one, up to our read ahead limit, once we are reading sequentially */
+    private synchronized void readAhead() {
+        if (! sequential || readAhead.size() >= readAheadChunks)
+            return;
+        if (readAhead.isEmpty()) {
+            long nextGlobalIndex = globalIndex + Chunk.MAX_SIZE;
+            if (nextChunkPointer == null || nextGlobalIndex >= totalLength)
+                return;
+            readAhead.add(fetch(nextChunkPointer, nextGlobalIndex));
+            readAhead();
+            return;
+        }
+        ChunkFetch last = readAhead.getLast();
+        if (extending == last)
+            return;
+        extending = last;
+        int generation = readAheadGeneration;
+        last.next.thenAccept(location -> {
+            synchronized (this) {
+                if (extending == last)
+                    extending = null;
+                long nextGlobalIndex = last.globalIndex + Chunk.MAX_SIZE;
+                if (generation != readAheadGeneration || readAhead.isEmpty() || readAhead.getLast() != last)
+                    return;
+                if (location == null || nextGlobalIndex >= totalLength || readAhead.size() >= readAheadChunks)
+                    return;
+                readAhead.add(fetch(location, nextGlobalIndex));
+                readAhead();
+            }
+        });
+    }
+
+    private synchronized void discardReadAhead() {
+        // futures can't be cancelled, so just drop our references to them
+        readAhead.clear();
+        readAheadGeneration++;
+        extending = null;
+        sequential = false;
+    }
+
+    public CompletableFuture<Boolean> getNextStream() {
+        ChunkFetch next;
+        synchronized (this) {
+            if (readAhead.isEmpty()) {
+                if (this.nextChunkPointer == null) {
                     CompletableFuture<Boolean> err = new CompletableFuture<>();
                     err.completeExceptionally(new EOFException());
                     return err;
                 }
-                CryptreeNode access = meta.get();
-                if (! (access instanceof FileAccess))
-                    throw new IllegalStateException("File linked to a directory for its next chunk!");
-                FileRetriever nextRet = ((FileAccess) access).retriever();
-                Location newNextChunkPointer = nextRet.getNext(dataKey).orElse(null);
-                return nextRet.getChunkInputStream(network, random, dataKey, 0, len, nextLocation, access.committedHash(), monitor)
-                        .thenApply(x -> {
-                            byte[] nextData = x.get().chunk.data();
-                            updateState(0,globalIndex + Chunk.MAX_SIZE, nextData, newNextChunkPointer);
-                            return true;
-                        });
-            });
+                readAhead.add(fetch(nextChunkPointer, globalIndex + Chunk.MAX_SIZE));
+            }
+            next = readAhead.removeFirst();
         }
-        CompletableFuture<Boolean> err = new CompletableFuture<>();
-        err.completeExceptionally(new EOFException());
-        return err;
+        return next.data.thenCompose(nextData -> next.next.thenApply(newNextChunkPointer -> {
+            updateState(0, next.globalIndex, nextData, newNextChunkPointer);
+            readAhead();
+            return true;
+        }));
     }
 
     private CompletableFuture<AsyncReader> skip(long skip) {
@@ -88,17 +192,39 @@ public class LazyInputStreamCombiner implements AsyncReader {
 
         long toRead = Math.min(available, skip);
 
-        int remainingToRead = totalLength - globalIndex > Chunk.MAX_SIZE ? Chunk.MAX_SIZE : (int) (totalLength - globalIndex);
-        return getNextStream(remainingToRead)
+        return getNextStream()
                 .thenCompose(done -> this.skip(skip - toRead));
     }
 
+    /** Make the chunk at the given index the current chunk, without reading any of the chunks before it */
+    private CompletableFuture<AsyncReader> jumpTo(long chunk) {
+        Location location = chunkIndex.get().getLocation(chunk).get();
+        synchronized (this) {
+            discardReadAhead();
+            readAhead.add(fetch(location, chunk * Chunk.MAX_SIZE));
+        }
+        return getNextStream().thenApply(x -> this);
+    }
+
     @Override
     public CompletableFuture<AsyncReader> seek(int hi32, int low32) {
-        long seek = ((long) (hi32) << 32) | low32;
+        long seek = ((long) (hi32) << 32) | (low32 & 0xFFFFFFFFL);
 
         if (totalLength < seek)
             throw new IllegalStateException("Cannot seek to position "+ seek);
+        long chunk = seek / Chunk.MAX_SIZE;
+        long current = globalIndex / Chunk.MAX_SIZE;
+        // the closest chunk at or before the target that we can go to directly
+        long indexed = chunkIndex.map(i -> i.floor(chunk)).orElse(0L);
+        int fetched;
+        synchronized (this) {
+            fetched = readAhead.size();
+        }
+        if (chunk >= current && current + fetched >= indexed)
+            // skip forward from here, through any chunks we have read ahead
+            return skip(seek - globalIndex - index);
+        if (indexed > 0)
+            return jumpTo(indexed).thenCompose(x -> skip(seek - globalIndex - index));
         return reset().thenCompose(x -> ((LazyInputStreamCombiner)x).skip(seek));
     }
 
@@ -106,9 +232,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
         return this.currentChunk.length - this.index;
     }
 
-    public void close() {}
+    public void close() {
+        discardReadAhead();
+    }
 
     public CompletableFuture<AsyncReader> reset() {
+        discardReadAhead();
         this.globalIndex = 0;
         this.currentChunk = originalChunk;
         this.nextChunkPointer = originalNextPointer;
@@ -129,6 +258,12 @@ public class LazyInputStreamCombiner implements AsyncReader {
         System.arraycopy(currentChunk, index, res, offset, toRead);
         index += toRead;
         long globalOffset = globalIndex + index;
+        if (index == currentChunk.length) {
+            synchronized (this) {
+                sequential = true;
+            }
+        }
+        readAhead();
 
         if (available >= length) // we are done
             return CompletableFuture.completedFuture(length);
@@ -137,18 +272,15 @@ public class LazyInputStreamCombiner implements AsyncReader {
             err.completeExceptionally(new EOFException());
             return err;
         }
-        int nextChunkSize = totalLength - globalOffset > Chunk.MAX_SIZE ?
-                Chunk.MAX_SIZE :
-                (int) (totalLength - globalOffset);
-        return getNextStream(nextChunkSize).thenCompose(done ->
+        return getNextStream().thenCompose(done ->
             this.readIntoArray(res, offset + toRead, length - toRead).thenApply(bytesRead -> bytesRead + toRead)
         );
     }
 
-    private void updateState(int index,
-                             long globalIndex,
-                             byte[] chunk,
-                             Location nextChunkPointer) {
+    private synchronized void updateState(int index,
+                                          long globalIndex,
+                                          byte[] chunk,
+                                          Location nextChunkPointer) {
         this.index = index;
         this.globalIndex = globalIndex;
         this.currentChunk = chunk;
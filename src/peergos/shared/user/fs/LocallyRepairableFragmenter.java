@@ -0,0 +1,189 @@
+package peergos.shared.user.fs;
+
+import peergos.shared.cbor.*;
+import peergos.shared.user.fs.erasure.Erasure;
+import peergos.shared.util.*;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A locally repairable code. On top of the Reed-Solomon fragments of an ErasureFragmenter, the original fragments are
+ *  split into groups of groupSize, and each group gets a local parity fragment which is the xor of the group. A single
+ *  lost fragment in a group can be rebuilt from the rest of its group, rather than from nOriginalFragments others.
+ *
+ *  The fragments are in the order: originals, global parity, then local parity.
+ */
+public class LocallyRepairableFragmenter implements Fragmenter {
+
+    private final int nOriginalFragments;
+    private final int nAllowedFailures;
+    private final int groupSize;
+
+    public LocallyRepairableFragmenter(int nOriginalFragments, int nAllowedFailures, int groupSize) {
+        if (groupSize < 1 || groupSize > nOriginalFragments)
+            throw new IllegalArgumentException("Invalid local group size " + groupSize);
+        this.nOriginalFragments = nOriginalFragments;
+        this.nAllowedFailures = nAllowedFailures;
+        this.groupSize = groupSize;
+    }
+
+    private int nGroups() {
+        return (nOriginalFragments + groupSize - 1) / groupSize;
+    }
+
+    private int nGlobalFragments() {
+        return nOriginalFragments + 2 * nAllowedFailures;
+    }
+
+    @Override
+    public double storageIncreaseFactor() {
+        return ((double)(nGlobalFragments() + nGroups())) / nOriginalFragments;
+    }
+
+    @Override
+    public int requiredFragments(int nFragments) {
+        // whichever of the local parity fragments we get, we will have enough of the global fragments
+        return Math.min(nFragments, nOriginalFragments + nGroups());
+    }
+
+    public byte[][] split(byte[] input) {
+        byte[][] global = Erasure.split(input, nOriginalFragments, nAllowedFailures);
+        byte[][] res = Arrays.copyOf(global, global.length + nGroups());
+        for (int group = 0; group < nGroups(); group++)
+            res[global.length + group] = xor(groupMembers(group), res);
+        return res;
+    }
+
+    public byte[] recombine(byte[][] encoded, int truncateLength) {
+        byte[][] global = Arrays.copyOf(encoded, nGlobalFragments());
+        for (int i=0; i < nOriginalFragments; i++)
+            if (isMissing(global[i]) && repairSources(i).stream().noneMatch(j -> isMissing(encoded[j])))
+                global[i] = repair(i, encoded);
+        return Erasure.recombine(global, truncateLength, nOriginalFragments, nAllowedFailures);
+    }
+
+    /**
+     *
+     * @param fragment
+     * @return the indices of the fragments needed to rebuild the given fragment
+     */
+    public List<Integer> repairSources(int fragment) {
+        if (fragment < nOriginalFragments) {
+            int group = fragment / groupSize;
+            List<Integer> res = groupMembers(group).stream()
+                    .filter(i -> i != fragment)
+                    .collect(Collectors.toList());
+            res.add(nGlobalFragments() + group);
+            return res;
+        }
+        if (fragment >= nGlobalFragments())
+            return groupMembers(fragment - nGlobalFragments());
+        // global parity needs all the original data
+        return IntStream.range(0, nOriginalFragments).boxed().collect(Collectors.toList());
+    }
+
+    /**
+     *
+     * @param fragment the index of the fragment to rebuild
+     * @param fragments all the fragments, only those listed by repairSources are used
+     * @return the missing fragment
+     */
+    public byte[] repair(int fragment, byte[][] fragments) {
+        List<Integer> sources = repairSources(fragment);
+        for (int source : sources)
+            if (isMissing(fragments[source]))
+                throw new IllegalStateException("Can't repair fragment " + fragment + " without fragment " + source);
+        if (fragment < nOriginalFragments || fragment >= nGlobalFragments())
+            return xor(sources, fragments);
+        // re-encode the original data
+        byte[][] originals = new byte[nGlobalFragments()][];
+        for (int source : sources)
+            originals[source] = fragments[source];
+        int length = fragments[sources.get(0)].length * nOriginalFragments;
+        byte[] data = Erasure.recombine(originals, length, nOriginalFragments, nAllowedFailures);
+        return Erasure.split(data, nOriginalFragments, nAllowedFailures)[fragment];
+    }
+
+    @Override
+    public byte[][] repair(byte[][] fragments) {
+        byte[][] res = Arrays.copyOf(fragments, fragments.length);
+        // whatever can be rebuilt from its local group, global parity always needs all the original data
+        for (int i=0; i < res.length; i++)
+            if (isMissing(res[i]) && (i < nOriginalFragments || i >= nGlobalFragments())
+                    && repairSources(i).stream().noneMatch(j -> isMissing(res[j])))
+                res[i] = repair(i, res);
+        if (Stream.of(res).noneMatch(LocallyRepairableFragmenter::isMissing))
+            return res;
+
+        int fragmentSize = Stream.of(res).filter(f -> ! isMissing(f)).findFirst().get().length;
+        byte[] data = Erasure.recombine(Arrays.copyOf(res, nGlobalFragments()), fragmentSize * nOriginalFragments,
+                nOriginalFragments, nAllowedFailures);
+        byte[][] global = Erasure.split(data, nOriginalFragments, nAllowedFailures);
+        for (int i=0; i < global.length; i++)
+            if (isMissing(res[i]))
+                res[i] = global[i];
+        for (int group = 0; group < nGroups(); group++)
+            if (isMissing(res[nGlobalFragments() + group]))
+                res[nGlobalFragments() + group] = xor(groupMembers(group), res);
+        return res;
+    }
+
+    private List<Integer> groupMembers(int group) {
+        return IntStream.range(group * groupSize, Math.min(nOriginalFragments, (group + 1) * groupSize))
+                .boxed()
+                .collect(Collectors.toList());
+    }
+
+    private static boolean isMissing(byte[] fragment) {
+        return fragment == null || fragment.length == 0;
+    }
+
+    private static byte[] xor(List<Integer> indices, byte[][] fragments) {
+        byte[] res = new byte[fragments[indices.get(0)].length];
+        for (int index : indices) {
+            byte[] fragment = fragments[index];
+            for (int i=0; i < res.length; i++)
+                res[i] ^= fragment[i];
+        }
+        return res;
+    }
+
+    @Override
+    public CborObject toCbor() {
+        Map<String, CborObject> res = new HashMap<>();
+        res.put("t", new CborObject.CborLong(Type.LOCALLY_REPAIRABLE.val));
+        res.put("o", new CborObject.CborLong(nOriginalFragments));
+        res.put("a", new CborObject.CborLong(nAllowedFailures));
+        res.put("g", new CborObject.CborLong(groupSize));
+        return CborObject.CborMap.build(res);
+    }
+
+    public void serialize(DataSink dout) {
+        dout.writeInt(Type.LOCALLY_REPAIRABLE.val);
+        dout.writeInt(nOriginalFragments);
+        dout.writeInt(nAllowedFailures);
+        dout.writeInt(groupSize);
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (this == o) return true;
+        if (o == null || getClass() != o.getClass()) return false;
+
+        LocallyRepairableFragmenter that = (LocallyRepairableFragmenter) o;
+
+        if (nOriginalFragments != that.nOriginalFragments) return false;
+        if (nAllowedFailures != that.nAllowedFailures) return false;
+        return groupSize == that.groupSize;
+    }
+
+    @Override
+    public int hashCode() {
+        int result = nOriginalFragments;
+        result = 31 * result + nAllowedFailures;
+        result = 31 * result + groupSize;
+        return result;
+    }
+
+    public static final int LRC_GROUP_SIZE = 10; // 4 local groups with the default 40 original fragments
+}
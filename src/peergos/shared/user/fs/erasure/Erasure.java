@@ -9,9 +9,14 @@ public class Erasure {
 
     public static byte[][] split(byte[] input, int originalBlobs, int allowedFailures)
     {
-        return split(input, new GaloisField256(), originalBlobs, allowedFailures);
+        long t1 = System.currentTimeMillis();
+        byte[][] res = ReedSolomon.get(originalBlobs, allowedFailures).encode(input);
+        long t2 = System.currentTimeMillis();
+        System.out.println("Erasure encoding took "+(t2-t1)+ " mS");
+        return res;
     }
 
+    /** Encode each codeword as a polynomial, this works in any field, but ReedSolomon is much faster for GF(256) */
     public static byte[][] split(byte[] input, GaloisField f, int originalBlobs, int allowedFailures)
     {
         long t1 = System.currentTimeMillis();
@@ -48,14 +53,25 @@ public class Erasure {
 
     public static byte[] recombine(byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded, truncateTo, originalBlobs, allowedFailures);
+        long t1 = System.currentTimeMillis();
+        try {
+            return ReedSolomon.get(originalBlobs, allowedFailures).decode(encoded, truncateTo);
+        } finally {
+            long t2 = System.currentTimeMillis();
+            System.out.println("Erasure decoding took " + (t2 - t1) + " mS");
+        }
     }
 
     public static byte[] recombine(List<byte[]> encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
-        return recombine(new GaloisField256(), encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
+        return recombine(encoded.toArray(new byte[0][]), truncateTo, originalBlobs, allowedFailures);
     }
 
+    /**
+     *
+     * @param encoded the fragments in order, with null for any that are missing
+     * @return the original input, as long as no more than 2 * allowedFailures fragments are missing
+     */
     public static byte[] recombine(GaloisField f, byte[][] encoded, int truncateTo, int originalBlobs, int allowedFailures)
     {
         long t1 = System.currentTimeMillis();
@@ -67,7 +83,19 @@ public class Erasure {
             int symbolSize = inputSize / originalBlobs;
             if (encoded.length == 0)
                 return new byte[0];
-            int tbSize = encoded[0].length;
+            // the positions in each codeword of the symbols from missing fragments
+            List<Integer> erasures = new ArrayList<>();
+            int tbSize = -1;
+            for (int j = 0; j < encoded.length; j++) {
+                if (encoded[j] == null) {
+                    for (int s = 0; s < symbolSize; s++)
+                        erasures.add(j * symbolSize + s);
+                } else
+                    tbSize = encoded[j].length;
+            }
+            if (tbSize < 0)
+                throw new IllegalStateException("No fragments to recombine!");
+            byte[] missing = new byte[tbSize];
             // don't bother in the case where we haven't lost any of the original fragments
             for (int k = 0; k < originalBlobs; k++) {
                 if (encoded[k] == null || encoded[k].length == 0)
@@ -88,8 +116,12 @@ public class Erasure {
                 ByteArrayOutputStream bout = new ByteArrayOutputStream();
                 // take a symbol from each stream
                 for (int j = 0; j < n; j++)
-                    bout.write(encoded[j], i, symbolSize);
-                int[] decodedInts = GaloisPolynomial.decode(convert(bout.toByteArray(), f), nec, f);
+                    bout.write(encoded[j] != null ? encoded[j] : missing, i, symbolSize);
+                int[] codeword = convert(bout.toByteArray(), f);
+                // we know where missing fragments are, which lets us recover twice as many as from unknown errors
+                int[] decodedInts = erasures.isEmpty() ?
+                        GaloisPolynomial.decode(codeword, nec, f) :
+                        GaloisPolynomial.decodeErasures(codeword, nec, erasures, f);
                 byte[] raw = convert(decodedInts, f);
                 res.write(raw, 0, inputSize);
             }
@@ -6,7 +6,6 @@ import peergos.shared.util.StringUtils;
 
 public class GaloisPolynomial
 {
-    // TODO implement a Locally Repairable Erasure code, to reduce unnecessary bandwidth usage when repairing
     private final int[] coefficients;
     private final GaloisField f;
 
@@ -195,6 +194,28 @@ public class GaloisPolynomial
         correctErrata(out, synd, errPos, f);
         return out;
     }
+
+    /**
+     *
+     * @param message a codeword with arbitrary values at the erased positions
+     * @param erasures the positions of the unknown symbols, at most nec of them
+     * @return the corrected codeword
+     */
+    public static int[] decodeErasures(int[] message, int nec, List<Integer> erasures, GaloisField f)
+    {
+        if (erasures.size() > nec)
+            throw new IllegalStateException("Too many erasures to correct! ("+erasures.size()+")");
+        int[] out = Arrays.copyOf(message, message.length);
+        int[] synd = syndromes(out, nec, f);
+        int max = 0;
+        for (int i: synd)
+            if (i > max)
+                max = i;
+        if (max == 0)
+            return out;
+        correctErrata(out, synd, erasures, f);
+        return out;
+    }
     /* todo-test 
     public static class Test {
         boolean print = true;
@@ -0,0 +1,239 @@
+package peergos.shared.user.fs.erasure;
+
+import peergos.shared.util.StringUtils;
+
+import java.util.*;
+import java.util.stream.*;
+
+/** A systematic Reed-Solomon code over GF(256) which works directly on bytes. It produces exactly the same fragments as
+ *  encoding each codeword with GaloisPolynomial, but the parity of a codeword is computed as a matrix times its data,
+ *  with a precomputed multiplication table, and codewords are encoded and decoded in parallel where we have threads.
+ *
+ *  Each codeword, or stripe, is symbolSize consecutive bytes from each fragment. Missing fragments are erasures at
+ *  known positions, so any originalBlobs of the fragments are enough to decode.
+ */
+public class ReedSolomon {
+    private static final GaloisField256 FIELD = new GaloisField256();
+    // MUL[a][b] = a * b in GF(256)
+    private static final byte[][] MUL = new byte[256][256];
+    static {
+        for (int a=0; a < 256; a++)
+            for (int b=0; b < 256; b++)
+                MUL[a][b] = (byte) FIELD.mul(a, b);
+    }
+
+    private static final Map<Integer, ReedSolomon> codes = new HashMap<>();
+
+    public final int originalBlobs, nFragments;
+    private final int inputSize, nec, symbolSize;
+    // parityColumns[j][i] is the coefficient of data symbol j in parity symbol i
+    private final byte[][] parityColumns;
+
+    private ReedSolomon(int originalBlobs, int allowedFailures) {
+        this.originalBlobs = originalBlobs;
+        this.nFragments = originalBlobs + allowedFailures * 2;
+        int encodeSize = (FIELD.size() / nFragments) * nFragments;
+        this.inputSize = encodeSize * originalBlobs / nFragments;
+        this.nec = encodeSize - inputSize;
+        this.symbolSize = inputSize / originalBlobs;
+        if (symbolSize * originalBlobs != inputSize)
+            throw new IllegalStateException(StringUtils.format("Bad alignment of bytes in chunking. %d != %d * %d", inputSize, symbolSize, originalBlobs));
+        // the code is linear, so encoding each unit vector gives us the parity matrix
+        this.parityColumns = new byte[inputSize][nec];
+        for (int j=0; j < inputSize; j++) {
+            int[] unit = new int[inputSize];
+            unit[j] = 1;
+            int[] encoded = GaloisPolynomial.encode(unit, nec, FIELD);
+            for (int i=0; i < nec; i++)
+                parityColumns[j][i] = (byte) encoded[inputSize + i];
+        }
+    }
+
+    public static synchronized ReedSolomon get(int originalBlobs, int allowedFailures) {
+        int key = (originalBlobs << 16) | allowedFailures;
+        ReedSolomon code = codes.get(key);
+        if (code == null) {
+            code = new ReedSolomon(originalBlobs, allowedFailures);
+            codes.put(key, code);
+        }
+        return code;
+    }
+
+    public byte[][] encode(byte[] input) {
+        int stripes = (input.length + inputSize - 1) / inputSize;
+        byte[][] res = new byte[nFragments][stripes * symbolSize];
+        IntStream.range(0, stripes).parallel().forEach(s -> encodeStripe(input, s, res));
+        return res;
+    }
+
+    private void encodeStripe(byte[] input, int stripe, byte[][] res) {
+        int offset = stripe * inputSize;
+        int length = Math.min(inputSize, input.length - offset);
+        int fragmentOffset = stripe * symbolSize;
+        for (int f=0; f * symbolSize < length; f++)
+            System.arraycopy(input, offset + f * symbolSize, res[f], fragmentOffset, Math.min(symbolSize, length - f * symbolSize));
+
+        byte[] parity = new byte[nec];
+        for (int j=0; j < length; j++) {
+            int v = input[offset + j] & 0xFF;
+            if (v == 0)
+                continue;
+            byte[] mul = MUL[v];
+            byte[] column = parityColumns[j];
+            for (int i=0; i < nec; i++)
+                parity[i] ^= mul[column[i] & 0xFF];
+        }
+        for (int i=0; i < nec; i++) {
+            int position = inputSize + i;
+            res[position / symbolSize][fragmentOffset + position % symbolSize] = parity[i];
+        }
+    }
+
+    /**
+     *
+     * @param encoded the fragments in order, with null or empty arrays for missing ones
+     * @param truncateTo the length of the original input
+     * @return the original input
+     */
+    public byte[] decode(byte[][] encoded, int truncateTo) {
+        if (encoded.length == 0)
+            return new byte[0];
+        if (encoded.length != nFragments)
+            throw new IllegalStateException("Expected " + nFragments + " fragments, but got " + encoded.length);
+        int fragmentSize = -1, missingFragments = 0;
+        List<Integer> missingData = new ArrayList<>();
+        for (int f=0; f < nFragments; f++) {
+            if (encoded[f] == null || encoded[f].length == 0) {
+                missingFragments++;
+                if (f < originalBlobs)
+                    for (int s=0; s < symbolSize; s++)
+                        missingData.add(f * symbolSize + s);
+            } else
+                fragmentSize = encoded[f].length;
+        }
+        if (missingFragments > nFragments - originalBlobs)
+            throw new IllegalStateException("Too many missing fragments to decode! (" + missingFragments + ")");
+        int stripes = fragmentSize / symbolSize;
+        byte[] res = new byte[truncateTo];
+        Decoder decoder = missingData.isEmpty() ? null : new Decoder(encoded, missingData);
+        IntStream.range(0, stripes).parallel().forEach(s -> {
+            int offset = s * inputSize;
+            if (offset >= truncateTo)
+                return;
+            int fragmentOffset = s * symbolSize;
+            for (int f=0; f < originalBlobs; f++) {
+                int start = offset + f * symbolSize;
+                if (encoded[f] == null || encoded[f].length == 0 || start >= truncateTo)
+                    continue;
+                System.arraycopy(encoded[f], fragmentOffset, res, start, Math.min(symbolSize, truncateTo - start));
+            }
+            if (decoder != null)
+                decoder.recover(encoded, s, res);
+        });
+        return res;
+    }
+
+    /** Solves for the missing data symbols of a stripe using as many surviving parity symbols as there are unknowns */
+    private class Decoder {
+        private final List<Integer> missing;
+        // the codeword positions of the parity symbols we use
+        private final int[] parityPositions;
+        private final int[] knownData;
+        // knownCoefficients[k][r] is the coefficient of known data symbol k in parity symbol r
+        private final byte[][] knownCoefficients;
+        // the inverse of the coefficients of the missing data symbols in the parity symbols
+        private final byte[][] inverse;
+
+        public Decoder(byte[][] encoded, List<Integer> missing) {
+            this.missing = missing;
+            int u = missing.size();
+            parityPositions = new int[u];
+            int found = 0;
+            for (int p = inputSize; p < inputSize + nec && found < u; p++) {
+                byte[] fragment = encoded[p / symbolSize];
+                if (fragment != null && fragment.length > 0)
+                    parityPositions[found++] = p;
+            }
+            Set<Integer> missingSet = new HashSet<>(missing);
+            knownData = IntStream.range(0, inputSize)
+                    .filter(j -> ! missingSet.contains(j))
+                    .toArray();
+            knownCoefficients = new byte[knownData.length][u];
+            for (int k=0; k < knownData.length; k++)
+                for (int r=0; r < u; r++)
+                    knownCoefficients[k][r] = parityColumns[knownData[k]][parityPositions[r] - inputSize];
+            int[][] matrix = new int[u][u];
+            for (int r=0; r < u; r++)
+                for (int c=0; c < u; c++)
+                    matrix[r][c] = parityColumns[missing.get(c)][parityPositions[r] - inputSize] & 0xFF;
+            inverse = invert(matrix);
+        }
+
+        public void recover(byte[][] encoded, int stripe, byte[] res) {
+            int u = missing.size();
+            int fragmentOffset = stripe * symbolSize;
+            byte[] rhs = new byte[u];
+            for (int r=0; r < u; r++) {
+                int p = parityPositions[r];
+                rhs[r] = encoded[p / symbolSize][fragmentOffset + p % symbolSize];
+            }
+            // remove the contribution of the data we have
+            for (int k=0; k < knownData.length; k++) {
+                int j = knownData[k];
+                int v = encoded[j / symbolSize][fragmentOffset + j % symbolSize] & 0xFF;
+                if (v == 0)
+                    continue;
+                byte[] mul = MUL[v];
+                byte[] coefficients = knownCoefficients[k];
+                for (int r=0; r < u; r++)
+                    rhs[r] ^= mul[coefficients[r] & 0xFF];
+            }
+            int offset = stripe * inputSize;
+            for (int c=0; c < u; c++) {
+                int index = offset + missing.get(c);
+                if (index >= res.length)
+                    continue;
+                byte[] row = inverse[c];
+                int v = 0;
+                for (int r=0; r < u; r++)
+                    v ^= MUL[row[r] & 0xFF][rhs[r] & 0xFF];
+                res[index] = (byte) v;
+            }
+        }
+    }
+
+    /** Gauss-Jordan elimination over GF(256) */
+    private static byte[][] invert(int[][] matrix) {
+        int n = matrix.length;
+        int[][] a = new int[n][2 * n];
+        for (int r=0; r < n; r++) {
+            System.arraycopy(matrix[r], 0, a[r], 0, n);
+            a[r][n + r] = 1;
+        }
+        for (int c=0; c < n; c++) {
+            int pivot = c;
+            while (pivot < n && a[pivot][c] == 0)
+                pivot++;
+            if (pivot == n)
+                throw new IllegalStateException("Singular decoding matrix!");
+            int[] tmp = a[c];
+            a[c] = a[pivot];
+            a[pivot] = tmp;
+            int scale = FIELD.div(1, a[c][c]);
+            for (int k=0; k < 2 * n; k++)
+                a[c][k] = FIELD.mul(a[c][k], scale);
+            for (int r=0; r < n; r++) {
+                int factor = a[r][c];
+                if (r == c || factor == 0)
+                    continue;
+                for (int k=0; k < 2 * n; k++)
+                    a[r][k] ^= FIELD.mul(factor, a[c][k]);
+            }
+        }
+        byte[][] res = new byte[n][n];
+        for (int r=0; r < n; r++)
+            for (int c=0; c < n; c++)
+                res[r][c] = (byte) a[r][n + c];
+        return res;
+    }
+}
@@ -76,6 +76,19 @@ public class Serialize
         return bout.toByteArray();
     }
 
+    public static byte[] readFully(InputStream in, int maxLength) throws IOException {
+        ByteArrayOutputStream bout =  new ByteArrayOutputStream();
+        byte[] b =  new  byte[0x1000];
+        int nRead;
+        while ((nRead = in.read(b, 0, b.length)) != -1 ) {
+            if (bout.size() + nRead > maxLength)
+                throw new IOException("Input of more than " + maxLength + " bytes too big.");
+            bout.write(b, 0, nRead);
+        }
+        in.close();
+        return bout.toByteArray();
+    }
+
     public static CompletableFuture<byte[]> readFully(AsyncReader in, long size) {
         byte[] res = new byte[(int)size];
         return in.readIntoArray(res, 0, (int) size).thenApply(i -> res);